@@ -0,0 +1,120 @@
+package casekit.io;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.io.iterator.IteratingSDFReader;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Splits an SD file into the raw text of its records, i.e. the lines up to
+ * and including each "$$$$" delimiter line, without parsing them. Parsing can
+ * then be done elsewhere, e.g. in worker threads, see
+ * {@link #parseRecord(String)}. <br>
+ * The underlying reader is closed when the last record was returned, on
+ * a read error or by {@link #close()}.
+ */
+public class SDFRecordIterator
+        implements Iterator<String>, Closeable {
+
+    private static final String RECORD_DELIMITER = "$$$$";
+
+    private final BufferedReader bufferedReader;
+    private String nextRecord;
+    private boolean closed;
+
+    public SDFRecordIterator(final Reader reader) {
+        this.bufferedReader = reader instanceof BufferedReader
+                ? (BufferedReader) reader
+                : new BufferedReader(reader);
+    }
+
+    public SDFRecordIterator(final String pathToSDF) throws FileNotFoundException {
+        this(new FileReader(pathToSDF));
+    }
+
+    /**
+     * Parses the raw text of a single record in the same way as
+     * {@link IteratingSDFReader} does when reading the whole file.
+     *
+     * @param record raw record text
+     *
+     * @return null if the record could not be parsed
+     */
+    public static IAtomContainer parseRecord(final String record) {
+        try (final IteratingSDFReader iterator = new IteratingSDFReader(new StringReader(record),
+                SilentChemObjectBuilder.getInstance())) {
+            return iterator.hasNext()
+                    ? iterator.next()
+                    : null;
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (this.nextRecord == null
+                && !this.closed) {
+            this.nextRecord = this.readRecord();
+        }
+
+        return this.nextRecord != null;
+    }
+
+    @Override
+    public String next() {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final String record = this.nextRecord;
+        this.nextRecord = null;
+
+        return record;
+    }
+
+    private String readRecord() {
+        final StringBuilder stringBuilder = new StringBuilder();
+        boolean isBlank = true;
+        try {
+            String line;
+            while ((line = this.bufferedReader.readLine()) != null) {
+                stringBuilder.append(line)
+                        .append('\n');
+                if (line.startsWith(RECORD_DELIMITER)) {
+                    return stringBuilder.toString();
+                }
+                if (isBlank
+                        && !line.trim()
+                                .isEmpty()) {
+                    isBlank = false;
+                }
+            }
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+        // end of file (or read error), a last record without delimiter is returned as well
+        this.close();
+
+        return isBlank
+                ? null
+                : stringBuilder.toString();
+    }
+
+    @Override
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            this.bufferedReader.close();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package casekit.nmr.analysis;
 
+import casekit.io.SDFRecordIterator;
+import casekit.nmr.analysis.model.ShiftAccumulator;
 import casekit.nmr.dbservice.COCONUT;
 import casekit.nmr.dbservice.NMRShiftDB;
+import casekit.nmr.dbservice.SDFDataSetIterator;
 import casekit.nmr.fragments.model.ConnectionTree;
 import casekit.nmr.hose.HOSECodeBuilder;
 import casekit.nmr.model.DataSet;
@@ -9,6 +12,7 @@ import casekit.nmr.model.Signal;
 import casekit.nmr.model.Spectrum;
 import casekit.nmr.utils.Statistics;
 import casekit.nmr.utils.Utils;
+import casekit.threading.MultiThreading;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
@@ -20,13 +24,25 @@ import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.nmrshiftdb.util.ExtendedHOSECodeGenerator;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 public class HOSECodeShiftStatistics {
 
     private final static Gson GSON = new GsonBuilder().setLenient()
             .create();
-    private final static ExtendedHOSECodeGenerator extendedHOSECodeGenerator = new ExtendedHOSECodeGenerator();
+    // the generator keeps state while building a HOSE code, so each thread needs its own instance
+    private final static ThreadLocal<ExtendedHOSECodeGenerator> extendedHOSECodeGenerator = ThreadLocal.withInitial(
+            ExtendedHOSECodeGenerator::new);
+    private final static int RECORDS_IN_PROCESS_PER_THREAD = 4;
+    private final static int SHIFT_ACCUMULATORS_MAGIC = 0x48534143; // "HSAC"
+    private final static int SHIFT_ACCUMULATORS_VERSION = 1;
 
     public static Map<String, Map<String, List<Double>>> collectHOSECodeShifts(final List<DataSet> dataSetList,
             final Integer maxSphere,
@@ -50,16 +66,152 @@ public class HOSECodeShiftStatistics {
             final boolean use3D,
             final boolean withExplicitH,
             final Map<String, Map<String, List<Double>>> hoseCodeShifts) {
-        for (final DataSet dataSet : dataSetList) {
-            insert(dataSet, maxSphere, use3D, withExplicitH, hoseCodeShifts);
+        return collectHOSECodeShifts(dataSetList.iterator(), maxSphere, use3D, withExplicitH, hoseCodeShifts);
+    }
+
+    /**
+     * Same as {@link #collectHOSECodeShifts(List, Integer, boolean, boolean, Map)}
+     * but takes the datasets one at a time from an iterator, e.g. from
+     * {@link NMRShiftDB#getDataSetIteratorFromNMRShiftDB(String, String[])}.
+     *
+     * @param dataSetIterator
+     * @param maxSphere
+     * @param hoseCodeShifts
+     *
+     * @return
+     */
+    public static Map<String, Map<String, List<Double>>> collectHOSECodeShifts(
+            final Iterator<DataSet> dataSetIterator,
+            final Integer maxSphere,
+            final boolean use3D,
+            final boolean withExplicitH,
+            final Map<String, Map<String, List<Double>>> hoseCodeShifts) {
+        while (dataSetIterator.hasNext()) {
+            insert(dataSetIterator.next(), maxSphere, use3D, withExplicitH, hoseCodeShifts);
         }
 
         return hoseCodeShifts;
     }
 
+    public static Map<String, Map<String, ShiftAccumulator>> collectHOSECodeShiftAccumulators(
+            final List<DataSet> dataSetList,
+            final Integer maxSphere,
+            final boolean use3D,
+            final boolean withExplicitH) {
+        return collectHOSECodeShiftAccumulators(dataSetList, maxSphere, use3D, withExplicitH, new HashMap<>());
+    }
+
+    /**
+     * Same as {@link #collectHOSECodeShifts(List, Integer, boolean, boolean, Map)}
+     * but collects into mergeable shift accumulators instead of keeping all
+     * shift values.
+     *
+     * @param dataSetList
+     * @param maxSphere
+     * @param hoseCodeShiftAccumulators
+     *
+     * @return
+     */
+    public static Map<String, Map<String, ShiftAccumulator>> collectHOSECodeShiftAccumulators(
+            final List<DataSet> dataSetList,
+            final Integer maxSphere,
+            final boolean use3D,
+            final boolean withExplicitH,
+            final Map<String, Map<String, ShiftAccumulator>> hoseCodeShiftAccumulators) {
+        return collectHOSECodeShiftAccumulators(dataSetList.iterator(), maxSphere, use3D, withExplicitH,
+                hoseCodeShiftAccumulators);
+    }
+
+    /**
+     * Same as
+     * {@link #collectHOSECodeShiftAccumulators(List, Integer, boolean, boolean, Map)}
+     * but takes the datasets one at a time from an iterator, so that neither
+     * the datasets nor the shift values are kept in memory.
+     *
+     * @param dataSetIterator
+     * @param maxSphere
+     * @param hoseCodeShiftAccumulators
+     *
+     * @return
+     */
+    public static Map<String, Map<String, ShiftAccumulator>> collectHOSECodeShiftAccumulators(
+            final Iterator<DataSet> dataSetIterator,
+            final Integer maxSphere,
+            final boolean use3D,
+            final boolean withExplicitH,
+            final Map<String, Map<String, ShiftAccumulator>> hoseCodeShiftAccumulators) {
+        while (dataSetIterator.hasNext()) {
+            insertIntoShiftAccumulators(dataSetIterator.next(), maxSphere, use3D, withExplicitH,
+                    hoseCodeShiftAccumulators);
+        }
+
+        return hoseCodeShiftAccumulators;
+    }
+
+    /**
+     * Merges HOSE code shift accumulators, e.g. partial results of different
+     * threads or files, into the target map.
+     *
+     * @param hoseCodeShiftAccumulators       target map
+     * @param hoseCodeShiftAccumulatorsToMerge accumulators to merge, stay unchanged
+     *
+     * @return
+     */
+    public static Map<String, Map<String, ShiftAccumulator>> mergeShiftAccumulators(
+            final Map<String, Map<String, ShiftAccumulator>> hoseCodeShiftAccumulators,
+            final Map<String, Map<String, ShiftAccumulator>> hoseCodeShiftAccumulatorsToMerge) {
+        for (final Map.Entry<String, Map<String, ShiftAccumulator>> hoseCodes : hoseCodeShiftAccumulatorsToMerge.entrySet()) {
+            final Map<String, ShiftAccumulator> solventShiftAccumulators = hoseCodeShiftAccumulators.computeIfAbsent(
+                    hoseCodes.getKey(), key -> new HashMap<>());
+            for (final Map.Entry<String, ShiftAccumulator> solvents : hoseCodes.getValue()
+                    .entrySet()) {
+                solventShiftAccumulators.computeIfAbsent(solvents.getKey(), key -> new ShiftAccumulator())
+                        .merge(solvents.getValue());
+            }
+        }
+
+        return hoseCodeShiftAccumulators;
+    }
+
     public static boolean insert(final DataSet dataSet, final Integer maxSphere, final boolean use3D,
             final boolean withExplicitH,
             final Map<String, Map<String, List<Double>>> hoseCodeShifts) {
+        return insert(dataSet, maxSphere, use3D, withExplicitH, (hoseCode, solvent, shift) -> {
+            hoseCodeShifts.putIfAbsent(hoseCode, new HashMap<>());
+            hoseCodeShifts.get(hoseCode)
+                    .putIfAbsent(solvent, new ArrayList<>());
+            hoseCodeShifts.get(hoseCode)
+                    .get(solvent)
+                    .add(shift);
+        });
+    }
+
+    /**
+     * Inserts the shifts of a dataset into HOSE code shift accumulators
+     * instead of shift lists, see {@link ShiftAccumulator}.
+     *
+     * @param dataSet
+     * @param maxSphere
+     * @param use3D
+     * @param withExplicitH
+     * @param hoseCodeShiftAccumulators
+     *
+     * @return
+     */
+    public static boolean insertIntoShiftAccumulators(final DataSet dataSet, final Integer maxSphere,
+            final boolean use3D,
+            final boolean withExplicitH,
+            final Map<String, Map<String, ShiftAccumulator>> hoseCodeShiftAccumulators) {
+        return insert(dataSet, maxSphere, use3D, withExplicitH,
+                (hoseCode, solvent, shift) -> hoseCodeShiftAccumulators.computeIfAbsent(hoseCode,
+                        key -> new HashMap<>())
+                        .computeIfAbsent(solvent, key -> new ShiftAccumulator())
+                        .add(shift));
+    }
+
+    private static boolean insert(final DataSet dataSet, final Integer maxSphere, final boolean use3D,
+            final boolean withExplicitH,
+            final HOSECodeShiftConsumer hoseCodeShiftConsumer) {
         final IAtomContainer structure;
         Signal signal;
         String hoseCode;
@@ -121,6 +273,16 @@ public class HOSECodeShiftStatistics {
         }
         atomTypeSpectrum = Utils.getAtomTypeFromNucleus(dataSet.getSpectrum()
                 .getNuclei()[0]);
+        // HOSE codes of all spheres for all atoms of spectrum's element in one pass
+        String[][] hoseCodes = null;
+        if (!use3D) {
+            try {
+                hoseCodes = HOSECodeBuilder.buildHOSECodes(structure, atomTypeSpectrum, maxSphere, false);
+            } catch (final CDKException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
         for (int i = 0; i < structure.getAtomCount(); i++) {
             signalIndices = null;
             if (structure.getAtom(i)
@@ -139,34 +301,27 @@ public class HOSECodeShiftStatistics {
             if (signalIndices != null) {
                 for (final Integer signalIndex : signalIndices) {
                     signal = spectrum.getSignal(signalIndex);
-                    try {
-                        if (maxSphere == null) {
-                            connectionTree = HOSECodeBuilder.buildConnectionTree(structure, i, null);
-                            maxSphereTemp = connectionTree.getMaxSphere(true);
-                        } else {
-                            maxSphereTemp = maxSphere;
-                        }
-                        for (int sphere = 1; sphere <= maxSphereTemp; sphere++) {
-                            if (use3D) {
-                                try {
-                                    hoseCode = extendedHOSECodeGenerator.getHOSECode(structure, structure.getAtom(i),
-                                            sphere);
-                                } catch (final Exception e) {
-                                    // e.printStackTrace();
-                                    continue;
-                                }
-                            } else {
-                                hoseCode = HOSECodeBuilder.buildHOSECode(structure, i, sphere, false);
+                    if (!use3D) {
+                        maxSphereTemp = hoseCodes[i].length - 1;
+                    } else if (maxSphere == null) {
+                        connectionTree = HOSECodeBuilder.buildConnectionTree(structure, i, null);
+                        maxSphereTemp = connectionTree.getMaxSphere(true);
+                    } else {
+                        maxSphereTemp = maxSphere;
+                    }
+                    for (int sphere = 1; sphere <= maxSphereTemp; sphere++) {
+                        if (use3D) {
+                            try {
+                                hoseCode = extendedHOSECodeGenerator.get()
+                                        .getHOSECode(structure, structure.getAtom(i), sphere);
+                            } catch (final Exception e) {
+                                // e.printStackTrace();
+                                continue;
                             }
-                            hoseCodeShifts.putIfAbsent(hoseCode, new HashMap<>());
-                            hoseCodeShifts.get(hoseCode)
-                                    .putIfAbsent(solvent, new ArrayList<>());
-                            hoseCodeShifts.get(hoseCode)
-                                    .get(solvent)
-                                    .add(signal.getShift(0));
+                        } else {
+                            hoseCode = hoseCodes[i][sphere];
                         }
-                    } catch (final CDKException e) {
-                        e.printStackTrace();
+                        hoseCodeShiftConsumer.accept(hoseCode, solvent, signal.getShift(0));
                     }
                 }
             }
@@ -200,6 +355,26 @@ public class HOSECodeShiftStatistics {
         return hoseCodeShiftStatistics;
     }
 
+    public static Map<String, Map<String, Double[]>> buildHOSECodeShiftStatisticsFromShiftAccumulators(
+            final Map<String, Map<String, ShiftAccumulator>> hoseCodeShiftAccumulators) {
+        final Map<String, Map<String, Double[]>> hoseCodeShiftStatistics = new HashMap<>();
+        for (final Map.Entry<String, Map<String, ShiftAccumulator>> hoseCodes : hoseCodeShiftAccumulators.entrySet()) {
+            hoseCodeShiftStatistics.put(hoseCodes.getKey(), new HashMap<>());
+            for (final Map.Entry<String, ShiftAccumulator> solvents : hoseCodes.getValue()
+                    .entrySet()) {
+                if (solvents.getValue()
+                        .getCount() == 0) {
+                    continue;
+                }
+                hoseCodeShiftStatistics.get(hoseCodes.getKey())
+                        .put(solvents.getKey(), solvents.getValue()
+                                .buildStatistics());
+            }
+        }
+
+        return hoseCodeShiftStatistics;
+    }
+
     public static Map<String, Map<String, Double[]>> buildHOSECodeShiftStatistics(final String[] pathsToNMRShiftDBs,
             final String[] pathsToCOCONUTs,
             final String[] nuclei,
@@ -207,25 +382,171 @@ public class HOSECodeShiftStatistics {
             final boolean use3D,
             final boolean withExplicitH) {
         try {
+            // the datasets are read one at a time, only the shift values are kept
             final Map<String, Map<String, List<Double>>> hoseCodeShifts = new HashMap<>();
             for (final String pathsToNMRShiftDB : pathsToNMRShiftDBs) {
-                HOSECodeShiftStatistics.collectHOSECodeShifts(
-                        NMRShiftDB.getDataSetsFromNMRShiftDB(pathsToNMRShiftDB, nuclei), maxSphere, use3D,
-                        withExplicitH, hoseCodeShifts);
+                try (final SDFDataSetIterator dataSetIterator = NMRShiftDB.getDataSetIteratorFromNMRShiftDB(
+                        pathsToNMRShiftDB, nuclei)) {
+                    HOSECodeShiftStatistics.collectHOSECodeShifts(dataSetIterator, maxSphere, use3D, withExplicitH,
+                            hoseCodeShifts);
+                }
             }
             for (final String pathsToCOCONUT : pathsToCOCONUTs) {
-                HOSECodeShiftStatistics.collectHOSECodeShifts(
-                        COCONUT.getDataSetsWithShiftPredictionFromCOCONUT(pathsToCOCONUT, nuclei), maxSphere, use3D,
-                        withExplicitH, hoseCodeShifts);
+                try (final SDFDataSetIterator dataSetIterator = COCONUT.getDataSetIteratorWithShiftPredictionFromCOCONUT(
+                        pathsToCOCONUT, nuclei)) {
+                    HOSECodeShiftStatistics.collectHOSECodeShifts(dataSetIterator, maxSphere, use3D, withExplicitH,
+                            hoseCodeShifts);
+                }
             }
             return HOSECodeShiftStatistics.buildHOSECodeShiftStatistics(hoseCodeShifts);
-        } catch (final CDKException | IOException e) {
+        } catch (final IOException e) {
             e.printStackTrace();
         }
 
         return new HashMap<>();
     }
 
+    /**
+     * Builds the HOSE code shift statistics in a streaming and parallel way.
+     * Molecule records are read one at a time from the given SDF files and
+     * are converted into datasets and inserted on a pool of worker threads.
+     * Each worker collects into its own shift accumulators, which are merged
+     * at the end. The number of records being processed at once is bounded and
+     * no shift lists are kept, so the memory usage only depends on the number
+     * of distinct HOSE codes, not on the size of the databases. <br>
+     * See {@link ShiftAccumulator} for the accuracy of the median.
+     *
+     * @param pathsToNMRShiftDBs paths to NMRShiftDB SDF files
+     * @param pathsToCOCONUTs    paths to COCONUT SDF files
+     * @param nuclei             nuclei to use
+     * @param maxSphere          maximum sphere, null for all spheres
+     * @param use3D              whether to use stereo HOSE codes
+     * @param withExplicitH      whether to use explicit hydrogens
+     * @param nThreads           number of worker threads
+     *
+     * @return
+     */
+    public static Map<String, Map<String, Double[]>> buildHOSECodeShiftStatistics(final String[] pathsToNMRShiftDBs,
+            final String[] pathsToCOCONUTs,
+            final String[] nuclei,
+            final Integer maxSphere,
+            final boolean use3D,
+            final boolean withExplicitH,
+            final int nThreads) {
+        final Map<String, Map<String, ShiftAccumulator>> hoseCodeShiftAccumulators = collectHOSECodeShiftAccumulators(
+                pathsToNMRShiftDBs, pathsToCOCONUTs, nuclei, maxSphere, use3D, withExplicitH, nThreads);
+        if (hoseCodeShiftAccumulators == null) {
+            return new HashMap<>();
+        }
+
+        return buildHOSECodeShiftStatisticsFromShiftAccumulators(hoseCodeShiftAccumulators);
+    }
+
+    /**
+     * Collects the HOSE code shift accumulators of the given SDF files in a
+     * streaming and parallel way, see
+     * {@link #buildHOSECodeShiftStatistics(String[], String[], String[], Integer, boolean, boolean, int)}.
+     *
+     * @param pathsToNMRShiftDBs paths to NMRShiftDB SDF files
+     * @param pathsToCOCONUTs    paths to COCONUT SDF files
+     * @param nuclei             nuclei to use
+     * @param maxSphere          maximum sphere, null for all spheres
+     * @param use3D              whether to use stereo HOSE codes
+     * @param withExplicitH      whether to use explicit hydrogens
+     * @param nThreads           number of worker threads
+     *
+     * @return null if a file could not be read
+     */
+    public static Map<String, Map<String, ShiftAccumulator>> collectHOSECodeShiftAccumulators(
+            final String[] pathsToNMRShiftDBs,
+            final String[] pathsToCOCONUTs,
+            final String[] nuclei,
+            final Integer maxSphere,
+            final boolean use3D,
+            final boolean withExplicitH,
+            final int nThreads) {
+        final int maxRecordsInProcess = RECORDS_IN_PROCESS_PER_THREAD
+                * nThreads;
+        final Semaphore recordsInProcess = new Semaphore(maxRecordsInProcess);
+        final Queue<Map<String, Map<String, ShiftAccumulator>>> partialShiftAccumulatorsQueue = new ConcurrentLinkedQueue<>();
+        final ThreadLocal<Map<String, Map<String, ShiftAccumulator>>> partialShiftAccumulators = ThreadLocal.withInitial(
+                () -> {
+                    final Map<String, Map<String, ShiftAccumulator>> hoseCodeShiftAccumulators = new HashMap<>();
+                    partialShiftAccumulatorsQueue.add(hoseCodeShiftAccumulators);
+                    return hoseCodeShiftAccumulators;
+                });
+        final ExecutorService executor = MultiThreading.initExecuter(nThreads);
+        try {
+            for (final String pathsToNMRShiftDB : pathsToNMRShiftDBs) {
+                processRecords(pathsToNMRShiftDB, structure -> NMRShiftDB.getDataSetsFromNMRShiftDBRecord(structure,
+                        nuclei), maxSphere, use3D, withExplicitH, partialShiftAccumulators, executor,
+                        recordsInProcess);
+            }
+            for (final String pathsToCOCONUT : pathsToCOCONUTs) {
+                processRecords(pathsToCOCONUT,
+                        structure -> COCONUT.getDataSetsWithShiftPredictionFromCOCONUTRecord(structure, nuclei),
+                        maxSphere, use3D, withExplicitH, partialShiftAccumulators, executor, recordsInProcess);
+            }
+            // wait until all records are processed
+            recordsInProcess.acquire(maxRecordsInProcess);
+        } catch (final IOException | InterruptedException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            MultiThreading.stopExecuter(executor, 5);
+        }
+
+        final Map<String, Map<String, ShiftAccumulator>> hoseCodeShiftAccumulators = new HashMap<>();
+        for (final Map<String, Map<String, ShiftAccumulator>> partial : partialShiftAccumulatorsQueue) {
+            mergeShiftAccumulators(hoseCodeShiftAccumulators, partial);
+        }
+
+        return hoseCodeShiftAccumulators;
+    }
+
+    private static void processRecords(final String pathToSDF,
+            final SDFDataSetIterator.RecordConverter recordConverter,
+            final Integer maxSphere,
+            final boolean use3D,
+            final boolean withExplicitH,
+            final ThreadLocal<Map<String, Map<String, ShiftAccumulator>>> partialShiftAccumulators,
+            final ExecutorService executor,
+            final Semaphore recordsInProcess) throws IOException, InterruptedException {
+        // only the record texts are split here, parsing is done by the workers
+        try (final SDFRecordIterator iterator = new SDFRecordIterator(pathToSDF)) {
+            while (iterator.hasNext()) {
+                final String record = iterator.next();
+                recordsInProcess.acquire();
+                try {
+                    executor.execute(() -> {
+                        try {
+                            final IAtomContainer structure = SDFRecordIterator.parseRecord(record);
+                            if (structure == null) {
+                                return;
+                            }
+                            for (final DataSet dataSet : recordConverter.convert(structure)) {
+                                insertIntoShiftAccumulators(dataSet, maxSphere, use3D, withExplicitH,
+                                        partialShiftAccumulators.get());
+                            }
+                        } catch (final Exception e) {
+                            e.printStackTrace();
+                        } finally {
+                            recordsInProcess.release();
+                        }
+                    });
+                } catch (final RejectedExecutionException e) {
+                    recordsInProcess.release();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private interface HOSECodeShiftConsumer {
+
+        void accept(String hoseCode, String solvent, Double shift);
+    }
+
     public static Map<String, Map<String, Double[]>> buildHOSECodeShiftStatistics(final List<DataSet> dataSetList,
             final Integer maxSphere,
             final boolean use3D,
@@ -234,6 +555,15 @@ public class HOSECodeShiftStatistics {
                 collectHOSECodeShifts(dataSetList, maxSphere, use3D, withExplicitH));
     }
 
+    public static Map<String, Map<String, Double[]>> buildHOSECodeShiftStatistics(
+            final Iterator<DataSet> dataSetIterator,
+            final Integer maxSphere,
+            final boolean use3D,
+            final boolean withExplicitH) {
+        return HOSECodeShiftStatistics.buildHOSECodeShiftStatistics(
+                collectHOSECodeShifts(dataSetIterator, maxSphere, use3D, withExplicitH, new HashMap<>()));
+    }
+
     public static boolean writeHOSECodeShiftStatistics(final Map<String, Map<String, Double[]>> hoseCodeShifts,
             final String pathToJsonFile) {
         try {
@@ -309,4 +639,215 @@ public class HOSECodeShiftStatistics {
 
         return hoseCodeShiftStatistics;
     }
+
+    /**
+     * Writes HOSE code shift statistics into the compact binary format of
+     * {@link HOSECodeShiftStatisticsStore}.
+     *
+     * @param hoseCodeShiftStatistics
+     * @param pathToBinaryFile
+     *
+     * @return
+     */
+    public static boolean writeHOSECodeShiftStatisticsBinary(
+            final Map<String, Map<String, Double[]>> hoseCodeShiftStatistics, final String pathToBinaryFile) {
+        try {
+            HOSECodeShiftStatisticsStore.write(hoseCodeShiftStatistics, pathToBinaryFile);
+
+            return true;
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+
+        return false;
+    }
+
+    /**
+     * Opens a binary HOSE code shift statistics file as memory-mapped,
+     * read-only map. Lookups are served from the file without loading the
+     * whole table on heap.
+     *
+     * @param pathToBinaryFile
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    public static Map<String, Map<String, Double[]>> readHOSECodeShiftStatisticsBinary(
+            final String pathToBinaryFile) throws IOException {
+        return HOSECodeShiftStatisticsStore.open(pathToBinaryFile);
+    }
+
+    /**
+     * Writes HOSE code shift accumulators including their complete state, so
+     * that the table can be updated later on, see
+     * {@link #updateHOSECodeShiftAccumulators(String, List, Integer, boolean, boolean)}.
+     *
+     * @param hoseCodeShiftAccumulators
+     * @param pathToFile
+     *
+     * @return
+     */
+    public static boolean writeHOSECodeShiftAccumulators(
+            final Map<String, Map<String, ShiftAccumulator>> hoseCodeShiftAccumulators, final String pathToFile) {
+        try (final DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(pathToFile)))) {
+            dos.writeInt(SHIFT_ACCUMULATORS_MAGIC);
+            dos.writeInt(SHIFT_ACCUMULATORS_VERSION);
+            dos.writeInt(hoseCodeShiftAccumulators.size());
+            for (final Map.Entry<String, Map<String, ShiftAccumulator>> hoseCodes : hoseCodeShiftAccumulators.entrySet()) {
+                dos.writeUTF(hoseCodes.getKey());
+                dos.writeInt(hoseCodes.getValue()
+                        .size());
+                for (final Map.Entry<String, ShiftAccumulator> solvents : hoseCodes.getValue()
+                        .entrySet()) {
+                    dos.writeUTF(solvents.getKey());
+                    solvents.getValue()
+                            .write(dos);
+                }
+            }
+
+            return true;
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+
+        return false;
+    }
+
+    public static Map<String, Map<String, ShiftAccumulator>> readHOSECodeShiftAccumulators(
+            final String pathToFile) throws IOException {
+        try (final DataInputStream dis = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(pathToFile)))) {
+            if (dis.readInt() != SHIFT_ACCUMULATORS_MAGIC) {
+                throw new IOException("not a HOSE code shift accumulators file: "
+                        + pathToFile);
+            }
+            final int version = dis.readInt();
+            if (version != SHIFT_ACCUMULATORS_VERSION) {
+                throw new IOException("unsupported HOSE code shift accumulators file version: "
+                        + version);
+            }
+            final int hoseCodeCount = dis.readInt();
+            final Map<String, Map<String, ShiftAccumulator>> hoseCodeShiftAccumulators = new HashMap<>(2
+                    * hoseCodeCount);
+            String hoseCode;
+            int solventCount;
+            Map<String, ShiftAccumulator> solventShiftAccumulators;
+            for (int i = 0; i < hoseCodeCount; i++) {
+                hoseCode = dis.readUTF();
+                solventCount = dis.readInt();
+                solventShiftAccumulators = new HashMap<>(2
+                        * solventCount);
+                for (int j = 0; j < solventCount; j++) {
+                    solventShiftAccumulators.put(dis.readUTF(), ShiftAccumulator.read(dis));
+                }
+                hoseCodeShiftAccumulators.put(hoseCode, solventShiftAccumulators);
+            }
+
+            return hoseCodeShiftAccumulators;
+        }
+    }
+
+    /**
+     * Applies new datasets to a previously written HOSE code shift accumulators
+     * file and writes the updated table back. Only the given datasets are
+     * processed, the already contained ones are kept in their accumulated
+     * state. <br>
+     * If the file does not exist yet, a new table is created.
+     *
+     * @param pathToFile    path to HOSE code shift accumulators file
+     * @param dataSetList   datasets to add
+     * @param maxSphere
+     * @param use3D
+     * @param withExplicitH
+     *
+     * @return updated accumulators or null if the file could not be read or written
+     */
+    public static Map<String, Map<String, ShiftAccumulator>> updateHOSECodeShiftAccumulators(final String pathToFile,
+            final List<DataSet> dataSetList,
+            final Integer maxSphere,
+            final boolean use3D,
+            final boolean withExplicitH) {
+        final Map<String, Map<String, ShiftAccumulator>> hoseCodeShiftAccumulators;
+        try {
+            hoseCodeShiftAccumulators = new File(pathToFile).exists()
+                    ? readHOSECodeShiftAccumulators(pathToFile)
+                    : new HashMap<>();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        collectHOSECodeShiftAccumulators(dataSetList, maxSphere, use3D, withExplicitH, hoseCodeShiftAccumulators);
+
+        return replaceHOSECodeShiftAccumulators(hoseCodeShiftAccumulators, pathToFile)
+                ? hoseCodeShiftAccumulators
+                : null;
+    }
+
+    /**
+     * Applies new records of NMRShiftDB and COCONUT SDF files to a previously
+     * written HOSE code shift accumulators file and writes the updated table
+     * back, see
+     * {@link #updateHOSECodeShiftAccumulators(String, List, Integer, boolean, boolean)}.
+     * The new records are processed in a streaming and parallel way.
+     *
+     * @param pathToFile         path to HOSE code shift accumulators file
+     * @param pathsToNMRShiftDBs paths to NMRShiftDB SDF files with new records
+     * @param pathsToCOCONUTs    paths to COCONUT SDF files with new records
+     * @param nuclei
+     * @param maxSphere
+     * @param use3D
+     * @param withExplicitH
+     * @param nThreads
+     *
+     * @return updated accumulators or null if a file could not be read or written
+     */
+    public static Map<String, Map<String, ShiftAccumulator>> updateHOSECodeShiftAccumulators(final String pathToFile,
+            final String[] pathsToNMRShiftDBs,
+            final String[] pathsToCOCONUTs,
+            final String[] nuclei,
+            final Integer maxSphere,
+            final boolean use3D,
+            final boolean withExplicitH,
+            final int nThreads) {
+        final Map<String, Map<String, ShiftAccumulator>> hoseCodeShiftAccumulators;
+        try {
+            hoseCodeShiftAccumulators = new File(pathToFile).exists()
+                    ? readHOSECodeShiftAccumulators(pathToFile)
+                    : new HashMap<>();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        final Map<String, Map<String, ShiftAccumulator>> deltaHOSECodeShiftAccumulators = collectHOSECodeShiftAccumulators(
+                pathsToNMRShiftDBs, pathsToCOCONUTs, nuclei, maxSphere, use3D, withExplicitH, nThreads);
+        if (deltaHOSECodeShiftAccumulators == null) {
+            return null;
+        }
+        mergeShiftAccumulators(hoseCodeShiftAccumulators, deltaHOSECodeShiftAccumulators);
+
+        return replaceHOSECodeShiftAccumulators(hoseCodeShiftAccumulators, pathToFile)
+                ? hoseCodeShiftAccumulators
+                : null;
+    }
+
+    private static boolean replaceHOSECodeShiftAccumulators(
+            final Map<String, Map<String, ShiftAccumulator>> hoseCodeShiftAccumulators, final String pathToFile) {
+        // write into a temporary file first to not lose the previous table on failure
+        final String pathToTemporaryFile = pathToFile
+                + ".tmp";
+        if (!writeHOSECodeShiftAccumulators(hoseCodeShiftAccumulators, pathToTemporaryFile)) {
+            return false;
+        }
+        try {
+            Files.move(Paths.get(pathToTemporaryFile), Paths.get(pathToFile), StandardCopyOption.REPLACE_EXISTING);
+
+            return true;
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+
+        return false;
+    }
 }
@@ -0,0 +1,167 @@
+package casekit.nmr.analysis;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lookup index over the keys of a HOSE code shift statistics table, used to
+ * skip spheres without any matching HOSE code when looking for the highest
+ * matching sphere of an atom. <br>
+ * HOSE codes of different spheres are no string prefixes of each other, because
+ * the ranking of child nodes changes with the number of spheres. Therefore, the
+ * index stores for each solvent and root sphere (e.g. "C-4;") which numbers of
+ * spheres occur in the HOSE codes of the table. <br>
+ * The index is a snapshot of the table at creation time.
+ */
+public class HOSECodeShiftStatisticsIndex {
+
+    private final static int MAX_INDEXED_SPHERE_COUNT = Long.SIZE
+            - 1;
+
+    private final Map<String, Map<String, Double[]>> hoseCodeShiftStatistics;
+    // solvent -> root sphere -> bit mask of sphere counts
+    private final Map<String, Map<String, Long>> sphereCountMasks;
+
+    public HOSECodeShiftStatisticsIndex(final Map<String, Map<String, Double[]>> hoseCodeShiftStatistics) {
+        this.hoseCodeShiftStatistics = hoseCodeShiftStatistics;
+        this.sphereCountMasks = new HashMap<>();
+        String rootSphere;
+        long sphereCountBit;
+        for (final Map.Entry<String, Map<String, Double[]>> entry : hoseCodeShiftStatistics.entrySet()) {
+            rootSphere = getRootSphere(entry.getKey());
+            sphereCountBit = getSphereCountBit(getSphereCount(entry.getKey()));
+            for (final String solvent : entry.getValue()
+                                             .keySet()) {
+                this.sphereCountMasks.computeIfAbsent(solvent, k -> new HashMap<>())
+                                     .merge(rootSphere, sphereCountBit, (mask1, mask2) -> mask1
+                                             | mask2);
+            }
+        }
+    }
+
+    private static long getSphereCountBit(final int sphereCount) {
+        return 1L
+                << Math.min(sphereCount, MAX_INDEXED_SPHERE_COUNT);
+    }
+
+    /**
+     * Returns the root sphere of a HOSE code incl. the separator, e.g. "C-4;".
+     *
+     * @param hoseCode HOSE code
+     *
+     * @return
+     */
+    public static String getRootSphere(final String hoseCode) {
+        return hoseCode.substring(0, hoseCode.indexOf(';')
+                + 1);
+    }
+
+    /**
+     * Returns the number of spheres of a HOSE code without the root sphere,
+     * which is the same as the maximum sphere (incl. ring closures) of the
+     * connection tree it was built from.
+     *
+     * @param hoseCode HOSE code
+     *
+     * @return
+     */
+    public static int getSphereCount(final String hoseCode) {
+        final int semicolonIndex = hoseCode.indexOf(';');
+        final int openingBracketIndex = hoseCode.indexOf('(', semicolonIndex);
+        final int closingBracketIndex = hoseCode.lastIndexOf(')');
+        if (closingBracketIndex
+                > openingBracketIndex
+                + 1) {
+            int sphereCount = 2;
+            for (int i = openingBracketIndex
+                    + 1; i
+                         < closingBracketIndex; i++) {
+                if (hoseCode.charAt(i)
+                        == '/') {
+                    sphereCount++;
+                }
+            }
+
+            return sphereCount;
+        }
+
+        return openingBracketIndex
+                       > semicolonIndex
+                       + 1
+               ? 1
+               : 0;
+    }
+
+    public Map<String, Map<String, Double[]>> getHOSECodeShiftStatistics() {
+        return this.hoseCodeShiftStatistics;
+    }
+
+    /**
+     * Checks whether the table could contain a HOSE code with the given root
+     * sphere, number of spheres and solvent.
+     *
+     * @param rootSphere  root sphere, see {@link #getRootSphere(String)}
+     * @param sphereCount number of spheres, see {@link #getSphereCount(String)}
+     * @param solvent     solvent
+     *
+     * @return
+     */
+    public boolean containsSphereCount(final String rootSphere, final int sphereCount, final String solvent) {
+        final Map<String, Long> sphereCountMasksOfSolvent = this.sphereCountMasks.get(solvent);
+        if (sphereCountMasksOfSolvent
+                == null) {
+            return false;
+        }
+        final Long sphereCountMask = sphereCountMasksOfSolvent.get(rootSphere);
+
+        return sphereCountMask
+                != null
+                && (sphereCountMask
+                & getSphereCountBit(sphereCount))
+                != 0;
+    }
+
+    /**
+     * Returns the maximum number of spheres of all HOSE codes in the table with
+     * the given root sphere and solvent, or -1 if there is none.
+     *
+     * @param rootSphere root sphere, see {@link #getRootSphere(String)}
+     * @param solvent    solvent
+     *
+     * @return
+     */
+    public int getMaxSphereCount(final String rootSphere, final String solvent) {
+        final Map<String, Long> sphereCountMasksOfSolvent = this.sphereCountMasks.get(solvent);
+        if (sphereCountMasksOfSolvent
+                == null
+                || !sphereCountMasksOfSolvent.containsKey(rootSphere)) {
+            return -1;
+        }
+        final int maxSphereCount = MAX_INDEXED_SPHERE_COUNT
+                - Long.numberOfLeadingZeros(sphereCountMasksOfSolvent.get(rootSphere));
+
+        return maxSphereCount
+                       == MAX_INDEXED_SPHERE_COUNT
+               ? Integer.MAX_VALUE
+               : maxSphereCount;
+    }
+
+    /**
+     * Returns the statistics of a HOSE code and solvent, or null if not
+     * present.
+     *
+     * @param hoseCode HOSE code
+     * @param solvent  solvent
+     *
+     * @return {count, min, mean, median, max}
+     */
+    public Double[] getStatistics(final String hoseCode, final String solvent) {
+        final Map<String, Double[]> statisticsPerSolvent = this.hoseCodeShiftStatistics.get(hoseCode);
+        if (statisticsPerSolvent
+                == null) {
+            return null;
+        }
+
+        return statisticsPerSolvent.get(solvent);
+    }
+}
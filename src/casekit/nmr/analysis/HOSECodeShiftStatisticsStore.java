@@ -0,0 +1,408 @@
+package casekit.nmr.analysis;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Read-only, memory-mapped view of a HOSE code shift statistics table written
+ * by {@link #write(Map, String)}. <br>
+ * The file consists of a header with the solvent dictionary, a sorted HOSE
+ * code dictionary (UTF-8 bytes plus offsets) and one primitive statistics
+ * block per HOSE code and solvent: {count, min, mean, median, max}. <br>
+ * Lookups are done by binary search directly on the mapped file, so the table
+ * is never materialized on heap. Only absolute buffer reads are used, which
+ * makes a store instance safe for concurrent readers.
+ */
+public class HOSECodeShiftStatisticsStore
+        extends AbstractMap<String, Map<String, Double[]>> {
+
+    private final static int MAGIC = 0x484F5345; // "HOSE"
+    private final static int VERSION = 1;
+    private final static int STATISTICS_COUNT = 5;
+    private final static int ENTRY_BYTES = Integer.BYTES
+            + STATISTICS_COUNT
+            * Double.BYTES;
+
+    private final String[] solvents;
+    private final int hoseCodeCount;
+    private final IntBuffer keyOffsets;
+    private final IntBuffer entryOffsets;
+    private final ByteBuffer keys;
+    private final ByteBuffer entries;
+
+    private HOSECodeShiftStatisticsStore(final String pathToBinaryFile) throws IOException {
+        try (final FileChannel fileChannel = FileChannel.open(Paths.get(pathToBinaryFile), StandardOpenOption.READ);
+             final DataInputStream dis = new DataInputStream(
+                     new BufferedInputStream(new FileInputStream(pathToBinaryFile)))) {
+            if (dis.readInt()
+                    != MAGIC) {
+                throw new IOException("not a HOSE code shift statistics file: "
+                                              + pathToBinaryFile);
+            }
+            final int version = dis.readInt();
+            if (version
+                    != VERSION) {
+                throw new IOException("unsupported HOSE code shift statistics file version: "
+                                              + version);
+            }
+            long position = 2L
+                    * Integer.BYTES;
+            final int solventCount = dis.readInt();
+            position += Integer.BYTES;
+            this.solvents = new String[solventCount];
+            byte[] bytes;
+            for (int i = 0; i
+                    < solventCount; i++) {
+                bytes = new byte[dis.readInt()];
+                dis.readFully(bytes);
+                this.solvents[i] = new String(bytes, StandardCharsets.UTF_8);
+                position += Integer.BYTES
+                        + bytes.length;
+            }
+            this.hoseCodeCount = dis.readInt();
+            final int keyBytesCount = dis.readInt();
+            final int entryCount = dis.readInt();
+            position += 3L
+                    * Integer.BYTES;
+
+            final long offsetsSize = (long) (this.hoseCodeCount
+                    + 1)
+                    * Integer.BYTES;
+            this.keyOffsets = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, offsetsSize)
+                                         .asIntBuffer();
+            position += offsetsSize;
+            this.entryOffsets = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, offsetsSize)
+                                           .asIntBuffer();
+            position += offsetsSize;
+            this.keys = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, keyBytesCount);
+            position += keyBytesCount;
+            this.entries = fileChannel.map(FileChannel.MapMode.READ_ONLY, position,
+                                           (long) entryCount
+                                                   * ENTRY_BYTES);
+        }
+    }
+
+    /**
+     * Opens a binary HOSE code shift statistics file and maps it into memory.
+     *
+     * @param pathToBinaryFile path to file written by {@link #write(Map, String)}
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    public static HOSECodeShiftStatisticsStore open(final String pathToBinaryFile) throws IOException {
+        return new HOSECodeShiftStatisticsStore(pathToBinaryFile);
+    }
+
+    /**
+     * Writes HOSE code shift statistics in the binary format read by
+     * {@link #open(String)}.
+     *
+     * @param hoseCodeShiftStatistics statistics as built by
+     *                                {@link HOSECodeShiftStatistics#buildHOSECodeShiftStatistics(Map)}
+     * @param pathToBinaryFile        output path
+     *
+     * @throws IOException
+     */
+    public static void write(final Map<String, Map<String, Double[]>> hoseCodeShiftStatistics,
+                             final String pathToBinaryFile) throws IOException {
+        final List<String> solventList = new ArrayList<>();
+        final Map<String, Integer> solventIndices = new HashMap<>();
+        final List<byte[]> keyList = new ArrayList<>(hoseCodeShiftStatistics.size());
+        long keyBytesCount = 0;
+        long entryCount = 0;
+        for (final Map.Entry<String, Map<String, Double[]>> entry : hoseCodeShiftStatistics.entrySet()) {
+            final byte[] key = entry.getKey()
+                                    .getBytes(StandardCharsets.UTF_8);
+            keyList.add(key);
+            keyBytesCount += key.length;
+            for (final String solvent : entry.getValue()
+                                             .keySet()) {
+                if (!solventIndices.containsKey(solvent)) {
+                    solventIndices.put(solvent, solventList.size());
+                    solventList.add(solvent);
+                }
+            }
+            entryCount += entry.getValue()
+                               .size();
+        }
+        if (keyBytesCount
+                > Integer.MAX_VALUE
+                || entryCount
+                * ENTRY_BYTES
+                > Integer.MAX_VALUE) {
+            throw new IOException("HOSE code shift statistics are too large for a single binary file");
+        }
+        keyList.sort(HOSECodeShiftStatisticsStore::compareBytes);
+
+        try (final DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(pathToBinaryFile)))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeInt(solventList.size());
+            for (final String solvent : solventList) {
+                final byte[] bytes = solvent.getBytes(StandardCharsets.UTF_8);
+                dos.writeInt(bytes.length);
+                dos.write(bytes);
+            }
+            dos.writeInt(keyList.size());
+            dos.writeInt((int) keyBytesCount);
+            dos.writeInt((int) entryCount);
+            // key offsets
+            int offset = 0;
+            dos.writeInt(offset);
+            for (final byte[] key : keyList) {
+                offset += key.length;
+                dos.writeInt(offset);
+            }
+            // entry offsets
+            offset = 0;
+            dos.writeInt(offset);
+            for (final byte[] key : keyList) {
+                offset += hoseCodeShiftStatistics.get(new String(key, StandardCharsets.UTF_8))
+                                                 .size();
+                dos.writeInt(offset);
+            }
+            // keys
+            for (final byte[] key : keyList) {
+                dos.write(key);
+            }
+            // statistics blocks, sorted by solvent index within each HOSE code
+            Double[] statistics;
+            for (final byte[] key : keyList) {
+                final Map<String, Double[]> solventStatistics = hoseCodeShiftStatistics.get(
+                        new String(key, StandardCharsets.UTF_8));
+                final List<String> solvents = new ArrayList<>(solventStatistics.keySet());
+                solvents.sort(Comparator.comparingInt(solventIndices::get));
+                for (final String solvent : solvents) {
+                    dos.writeInt(solventIndices.get(solvent));
+                    statistics = solventStatistics.get(solvent);
+                    for (int k = 0; k
+                            < STATISTICS_COUNT; k++) {
+                        dos.writeDouble(statistics
+                                                == null
+                                                || k
+                                                >= statistics.length
+                                                || statistics[k]
+                                                == null
+                                        ? Double.NaN
+                                        : statistics[k]);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int compareBytes(final byte[] bytes1, final byte[] bytes2) {
+        final int n = Math.min(bytes1.length, bytes2.length);
+        int c;
+        for (int i = 0; i
+                < n; i++) {
+            c = Integer.compare(bytes1[i]
+                                        & 0xFF, bytes2[i]
+                                        & 0xFF);
+            if (c
+                    != 0) {
+                return c;
+            }
+        }
+
+        return Integer.compare(bytes1.length, bytes2.length);
+    }
+
+    private int compareKey(final int index, final byte[] query) {
+        final int start = this.keyOffsets.get(index);
+        final int end = this.keyOffsets.get(index
+                                                    + 1);
+        final int n = Math.min(end
+                                       - start, query.length);
+        int c;
+        for (int i = 0; i
+                < n; i++) {
+            c = Integer.compare(this.keys.get(start
+                                                      + i)
+                                        & 0xFF, query[i]
+                                        & 0xFF);
+            if (c
+                    != 0) {
+                return c;
+            }
+        }
+
+        return Integer.compare(end
+                                       - start, query.length);
+    }
+
+    private int indexOf(final Object hoseCode) {
+        if (!(hoseCode instanceof String)) {
+            return -1;
+        }
+        final byte[] query = ((String) hoseCode).getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = this.hoseCodeCount
+                - 1;
+        int mid, c;
+        while (low
+                <= high) {
+            mid = (low
+                    + high)
+                    >>> 1;
+            c = this.compareKey(mid, query);
+            if (c
+                    < 0) {
+                low = mid
+                        + 1;
+            } else if (c
+                    > 0) {
+                high = mid
+                        - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return -1;
+    }
+
+    private String getKey(final int index) {
+        final int start = this.keyOffsets.get(index);
+        final byte[] bytes = new byte[this.keyOffsets.get(index
+                                                                  + 1)
+                                              - start];
+        for (int i = 0; i
+                < bytes.length; i++) {
+            bytes[i] = this.keys.get(start
+                                             + i);
+        }
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Map<String, Double[]> getValues(final int index) {
+        final int start = this.entryOffsets.get(index);
+        final int end = this.entryOffsets.get(index
+                                                      + 1);
+        final Map<String, Double[]> values = new HashMap<>(2
+                                                                   * (end
+                                                                   - start));
+        int position;
+        Double[] statistics;
+        for (int e = start; e
+                < end; e++) {
+            position = e
+                    * ENTRY_BYTES;
+            statistics = new Double[STATISTICS_COUNT];
+            for (int k = 0; k
+                    < STATISTICS_COUNT; k++) {
+                statistics[k] = this.entries.getDouble(position
+                                                               + Integer.BYTES
+                                                               + k
+                                                               * Double.BYTES);
+                if (statistics[k].isNaN()) {
+                    statistics[k] = null;
+                }
+            }
+            values.put(this.solvents[this.entries.getInt(position)], statistics);
+        }
+
+        return values;
+    }
+
+    /**
+     * Returns the median shift for a HOSE code and solvent without creating
+     * the intermediate solvent map.
+     *
+     * @param hoseCode HOSE code
+     * @param solvent  solvent
+     *
+     * @return median shift or null if not contained
+     */
+    public Double getMedian(final String hoseCode, final String solvent) {
+        final int index = this.indexOf(hoseCode);
+        if (index
+                == -1) {
+            return null;
+        }
+        int position;
+        for (int e = this.entryOffsets.get(index); e
+                < this.entryOffsets.get(index
+                                                + 1); e++) {
+            position = e
+                    * ENTRY_BYTES;
+            if (this.solvents[this.entries.getInt(position)].equals(solvent)) {
+                final double median = this.entries.getDouble(position
+                                                                     + Integer.BYTES
+                                                                     + 3
+                                                                     * Double.BYTES);
+                return Double.isNaN(median)
+                       ? null
+                       : median;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public Map<String, Double[]> get(final Object hoseCode) {
+        final int index = this.indexOf(hoseCode);
+        return index
+                       == -1
+               ? null
+               : this.getValues(index);
+    }
+
+    @Override
+    public boolean containsKey(final Object hoseCode) {
+        return this.indexOf(hoseCode)
+                != -1;
+    }
+
+    @Override
+    public int size() {
+        return this.hoseCodeCount;
+    }
+
+    @Override
+    public Set<Entry<String, Map<String, Double[]>>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<String, Map<String, Double[]>>> iterator() {
+                return new Iterator<>() {
+                    private int index = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return this.index
+                                < HOSECodeShiftStatisticsStore.this.hoseCodeCount;
+                    }
+
+                    @Override
+                    public Entry<String, Map<String, Double[]>> next() {
+                        if (!this.hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        final Entry<String, Map<String, Double[]>> entry = new SimpleImmutableEntry<>(
+                                HOSECodeShiftStatisticsStore.this.getKey(this.index),
+                                HOSECodeShiftStatisticsStore.this.getValues(this.index));
+                        this.index++;
+
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return HOSECodeShiftStatisticsStore.this.hoseCodeCount;
+            }
+        };
+    }
+}
@@ -11,6 +11,7 @@
  */
 package casekit.nmr.analysis;
 
+import casekit.nmr.model.ColumnarSpectrum;
 import casekit.nmr.model.Signal;
 import casekit.nmr.model.Spectrum;
 
@@ -87,22 +88,66 @@ public class MultiplicitySectionsBuilder {
         return multiplicitySections;
     }
 
+    public Map<String, List<Integer>> buildMultiplicitySections(final ColumnarSpectrum columnarSpectrum,
+                                                                final int dim) {
+        final Map<String, List<Integer>> multiplicitySections = new HashMap<>();
+        // init
+        for (final String multiplicity : this.multiplicities) {
+            multiplicitySections.put(multiplicity, new ArrayList<>());
+        }
+        // set the mult. sections
+        String multiplicity;
+        for (int i = 0; i
+                < columnarSpectrum.getSignalCount(); i++) {
+            if (Double.isNaN(columnarSpectrum.getShift(i, dim))) {
+                System.err.println("MultiplicitySectionsBuilder: signal or its chemical shift is missing: "
+                                           + columnarSpectrum.getSignal(i));
+                continue;
+            }
+            multiplicity = this.checkMultiplicity(columnarSpectrum.getMultiplicity(i));
+            if (multiplicity
+                    == null) {
+                System.err.println("MultiplicitySectionsBuilder: signal multiplicity is not in list: "
+                                           + columnarSpectrum.getSignal(i));
+                continue;
+            }
+            multiplicitySections.get(multiplicity)
+                                .add(this.calculateShiftSection(columnarSpectrum.getShift(i, dim)));
+        }
+
+        return multiplicitySections;
+    }
+
     public Integer calculateShiftSection(final Signal signal, final int dim) {
         if (signal
-                == null
-                || signal.getShift(dim)
                 == null) {
             return null;
         }
-        return (int) ((signal.getShift(dim)
+        return this.calculateShiftSection(signal.getShift(dim));
+    }
+
+    public Integer calculateShiftSection(final Double shift) {
+        if (shift
+                == null) {
+            return null;
+        }
+        return this.calculateShiftSection(shift.doubleValue());
+    }
+
+    public int calculateShiftSection(final double shift) {
+        return (int) ((shift
                 - this.minLimit)
                 / this.stepSize);
     }
 
     public String checkMultiplicity(final Signal signal) {
-        final String multiplicity = signal.getMultiplicity()
+        return this.checkMultiplicity(signal.getMultiplicity());
+    }
+
+    public String checkMultiplicity(final String signalMultiplicity) {
+        final String multiplicity = signalMultiplicity
                                             != null
-                                    ? signal.getMultiplicity()
+                                    ? signalMultiplicity
                                     : "unknown";
         if (!this.multiplicities.contains(multiplicity)) {
             return null;
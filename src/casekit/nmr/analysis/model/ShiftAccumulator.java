@@ -0,0 +1,332 @@
+package casekit.nmr.analysis.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Accumulates the shift values observed for one HOSE code and solvent in
+ * constant memory: count, minimum, maximum, sum (for the mean) and a
+ * mergeable streaming histogram for the median. <br>
+ * The histogram stores distinct shift values with their frequencies. As long
+ * as the number of distinct values does not exceed the capacity, the median is
+ * exact; afterwards the two closest histogram bins are merged into their
+ * weighted mean, which keeps the median approximation within the distance of
+ * merged neighbouring values.
+ */
+public class ShiftAccumulator {
+
+    public final static int DEFAULT_CAPACITY = 64;
+
+    private final int capacity;
+    private long count;
+    private double min;
+    private double max;
+    private double sum;
+    private double[] binValues;
+    private long[] binWeights;
+    private int binCount;
+
+    public ShiftAccumulator() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ShiftAccumulator(final int capacity) {
+        if (capacity
+                < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2");
+        }
+        this.capacity = capacity;
+        this.count = 0;
+        this.min = Double.POSITIVE_INFINITY;
+        this.max = Double.NEGATIVE_INFINITY;
+        this.sum = 0;
+        this.binValues = new double[Math.min(capacity, 8)
+                + 1];
+        this.binWeights = new long[this.binValues.length];
+        this.binCount = 0;
+    }
+
+    public void add(final Double shift) {
+        if (shift
+                == null
+                || shift.isNaN()) {
+            return;
+        }
+        this.count++;
+        this.sum += shift;
+        this.min = Math.min(this.min, shift);
+        this.max = Math.max(this.max, shift);
+        this.addToHistogram(shift, 1);
+    }
+
+    /**
+     * Merges all values accumulated by another accumulator into this one.
+     *
+     * @param shiftAccumulator accumulator to merge, stays unchanged
+     */
+    public void merge(final ShiftAccumulator shiftAccumulator) {
+        if (shiftAccumulator.count
+                == 0) {
+            return;
+        }
+        this.count += shiftAccumulator.count;
+        this.sum += shiftAccumulator.sum;
+        this.min = Math.min(this.min, shiftAccumulator.min);
+        this.max = Math.max(this.max, shiftAccumulator.max);
+        for (int i = 0; i
+                < shiftAccumulator.binCount; i++) {
+            this.addToHistogram(shiftAccumulator.binValues[i], shiftAccumulator.binWeights[i]);
+        }
+    }
+
+    private void addToHistogram(final double value, final long weight) {
+        int low = 0;
+        int high = this.binCount
+                - 1;
+        int mid;
+        while (low
+                <= high) {
+            mid = (low
+                    + high)
+                    >>> 1;
+            if (this.binValues[mid]
+                    < value) {
+                low = mid
+                        + 1;
+            } else if (this.binValues[mid]
+                    > value) {
+                high = mid
+                        - 1;
+            } else {
+                this.binWeights[mid] += weight;
+                return;
+            }
+        }
+        if (this.binCount
+                == this.binValues.length) {
+            final int newLength = Math.min(2
+                                                   * this.binValues.length, this.capacity
+                                                   + 1);
+            this.binValues = Arrays.copyOf(this.binValues, newLength);
+            this.binWeights = Arrays.copyOf(this.binWeights, newLength);
+        }
+        System.arraycopy(this.binValues, low, this.binValues, low
+                + 1, this.binCount
+                                 - low);
+        System.arraycopy(this.binWeights, low, this.binWeights, low
+                + 1, this.binCount
+                                 - low);
+        this.binValues[low] = value;
+        this.binWeights[low] = weight;
+        this.binCount++;
+        if (this.binCount
+                > this.capacity) {
+            this.mergeClosestBins();
+        }
+    }
+
+    private void mergeClosestBins() {
+        int closestIndex = 0;
+        double minGap = Double.POSITIVE_INFINITY;
+        double gap;
+        for (int i = 0; i
+                < this.binCount
+                - 1; i++) {
+            gap = this.binValues[i
+                    + 1]
+                    - this.binValues[i];
+            if (gap
+                    < minGap) {
+                minGap = gap;
+                closestIndex = i;
+            }
+        }
+        final long weight = this.binWeights[closestIndex]
+                + this.binWeights[closestIndex
+                + 1];
+        this.binValues[closestIndex] = (this.binValues[closestIndex]
+                * this.binWeights[closestIndex]
+                + this.binValues[closestIndex
+                + 1]
+                * this.binWeights[closestIndex
+                + 1])
+                / weight;
+        this.binWeights[closestIndex] = weight;
+        System.arraycopy(this.binValues, closestIndex
+                + 2, this.binValues, closestIndex
+                                 + 1, this.binCount
+                                 - closestIndex
+                                 - 2);
+        System.arraycopy(this.binWeights, closestIndex
+                + 2, this.binWeights, closestIndex
+                                 + 1, this.binCount
+                                 - closestIndex
+                                 - 2);
+        this.binCount--;
+    }
+
+    private double getValueAtRank(final long rank) {
+        long cumulativeWeight = 0;
+        for (int i = 0; i
+                < this.binCount; i++) {
+            cumulativeWeight += this.binWeights[i];
+            if (rank
+                    < cumulativeWeight) {
+                return this.binValues[i];
+            }
+        }
+
+        return this.binValues[this.binCount
+                - 1];
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    public Double getMin() {
+        return this.count
+                       == 0
+               ? null
+               : this.min;
+    }
+
+    public Double getMax() {
+        return this.count
+                       == 0
+               ? null
+               : this.max;
+    }
+
+    public double getSum() {
+        return this.sum;
+    }
+
+    public Double getMean() {
+        return this.count
+                       == 0
+               ? null
+               : this.sum
+                       / this.count;
+    }
+
+    /**
+     * Returns the median in the same way as
+     * {@link casekit.nmr.utils.Statistics#getMedian(java.util.List)}, i.e. the
+     * mean of both middle values for an even number of values.
+     *
+     * @return
+     */
+    public Double getMedian() {
+        if (this.count
+                == 0) {
+            return null;
+        }
+        if (this.count
+                % 2
+                == 1) {
+            return this.getValueAtRank(this.count
+                                               / 2);
+        }
+
+        return (this.getValueAtRank(this.count
+                                            / 2
+                                            - 1)
+                + this.getValueAtRank(this.count
+                                              / 2))
+                / 2.0;
+    }
+
+    /**
+     * Returns the statistics in the format used for HOSE code shift
+     * statistics: {count, min, mean, median, max}.
+     *
+     * @return
+     */
+    public Double[] buildStatistics() {
+        return new Double[]{(double) this.count, this.getMin(), this.getMean(), this.getMedian(), this.getMax()};
+    }
+
+    /**
+     * Writes the complete state of this accumulator, so that it can be
+     * restored by {@link #read(DataInput)} and updated further.
+     *
+     * @param dataOutput output to write to
+     *
+     * @throws IOException
+     */
+    public void write(final DataOutput dataOutput) throws IOException {
+        dataOutput.writeInt(this.capacity);
+        dataOutput.writeLong(this.count);
+        dataOutput.writeDouble(this.min);
+        dataOutput.writeDouble(this.max);
+        dataOutput.writeDouble(this.sum);
+        dataOutput.writeInt(this.binCount);
+        for (int i = 0; i
+                < this.binCount; i++) {
+            dataOutput.writeDouble(this.binValues[i]);
+            dataOutput.writeLong(this.binWeights[i]);
+        }
+    }
+
+    /**
+     * Restores an accumulator written by {@link #write(DataOutput)}.
+     *
+     * @param dataInput input to read from
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    public static ShiftAccumulator read(final DataInput dataInput) throws IOException {
+        final ShiftAccumulator shiftAccumulator = new ShiftAccumulator(dataInput.readInt());
+        shiftAccumulator.count = dataInput.readLong();
+        shiftAccumulator.min = dataInput.readDouble();
+        shiftAccumulator.max = dataInput.readDouble();
+        shiftAccumulator.sum = dataInput.readDouble();
+        final int binCount = dataInput.readInt();
+        if (binCount
+                < 0
+                || binCount
+                > shiftAccumulator.capacity) {
+            throw new IOException("invalid shift accumulator bin count: "
+                                          + binCount);
+        }
+        shiftAccumulator.binValues = new double[binCount
+                + 1];
+        shiftAccumulator.binWeights = new long[binCount
+                + 1];
+        for (int i = 0; i
+                < binCount; i++) {
+            shiftAccumulator.binValues[i] = dataInput.readDouble();
+            shiftAccumulator.binWeights[i] = dataInput.readLong();
+        }
+        shiftAccumulator.binCount = binCount;
+
+        return shiftAccumulator;
+    }
+
+    @Override
+    public String toString() {
+        return "ShiftAccumulator{"
+                + "count="
+                + this.count
+                + ", min="
+                + this.getMin()
+                + ", mean="
+                + this.getMean()
+                + ", median="
+                + this.getMedian()
+                + ", max="
+                + this.getMax()
+                + ", binCount="
+                + this.binCount
+                + '}';
+    }
+}
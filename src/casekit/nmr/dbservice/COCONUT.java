@@ -7,10 +7,12 @@ import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.io.iterator.IteratingSDFReader;
 import org.openscience.cdk.silent.SilentChemObjectBuilder;
 
+import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Stream;
 
 public class COCONUT {
 
@@ -19,8 +21,68 @@ public class COCONUT {
         final List<DataSet> dataSetList = new ArrayList<>();
         final IteratingSDFReader iterator = new IteratingSDFReader(new FileReader(pathToCOCONUT),
                 SilentChemObjectBuilder.getInstance());
-        IAtomContainer structure;
-        DataSet dataSet;
+
+        while (iterator.hasNext()) {
+            dataSetList.addAll(getDataSetsWithShiftPredictionFromCOCONUTRecord(iterator.next(), nuclei));
+        }
+
+        iterator.close();
+
+        return dataSetList;
+    }
+
+    /**
+     * Returns the same data sets as
+     * {@link #getDataSetsWithShiftPredictionFromCOCONUT(String, String[])} in
+     * the same order, but reads the records lazily one at a time, see
+     * {@link SDFDataSetIterator}.
+     *
+     * @param pathToCOCONUT path to COCONUT file
+     * @param nuclei        nuclei to get the spectra for
+     *
+     * @return
+     *
+     * @throws FileNotFoundException
+     */
+    public static SDFDataSetIterator getDataSetIteratorWithShiftPredictionFromCOCONUT(final String pathToCOCONUT,
+            final String[] nuclei) throws FileNotFoundException {
+        return new SDFDataSetIterator(pathToCOCONUT,
+                structure -> getDataSetsWithShiftPredictionFromCOCONUTRecord(structure, nuclei));
+    }
+
+    /**
+     * Same as
+     * {@link #getDataSetIteratorWithShiftPredictionFromCOCONUT(String, String[])}
+     * as sequential stream. The stream should be closed if it is not consumed
+     * completely.
+     *
+     * @param pathToCOCONUT path to COCONUT file
+     * @param nuclei        nuclei to get the spectra for
+     *
+     * @return
+     *
+     * @throws FileNotFoundException
+     */
+    public static Stream<DataSet> getDataSetStreamWithShiftPredictionFromCOCONUT(final String pathToCOCONUT,
+            final String[] nuclei) throws FileNotFoundException {
+        return getDataSetIteratorWithShiftPredictionFromCOCONUT(pathToCOCONUT, nuclei).stream();
+    }
+
+    /**
+     * Returns a {@link DataSet} class object for each of the given nuclei with
+     * predicted shifts in a single COCONUT molecule record.
+     *
+     * @param structure molecule record as read from COCONUT file
+     * @param nuclei    nuclei to get the spectra for
+     *
+     * @return
+     *
+     * @throws CDKException
+     */
+    public static List<DataSet> getDataSetsWithShiftPredictionFromCOCONUTRecord(final IAtomContainer structure,
+            final String[] nuclei) throws CDKException {
+        final List<DataSet> dataSets = new ArrayList<>();
+        final DataSet dataSet;
         Spectrum spectrum;
         Assignment assignment;
         String[] split, split2;
@@ -29,76 +91,72 @@ public class COCONUT {
         List<Integer> closestSignalList;
         int atomIndex;
 
-        while (iterator.hasNext()) {
-            structure = iterator.next();
-            dataSet = Utils.atomContainerToDataSet(structure);
+        dataSet = Utils.atomContainerToDataSet(structure);
 
-            for (final String nucleus : nuclei) {
-                final String atomType = casekit.nmr.utils.Utils.getAtomTypeFromNucleus(nucleus);
-                final List<Integer> atomIndices = Utils.getAtomTypeIndicesByElement(structure, atomType);
-                spectrumPropertyString = structure.getProperty("Predicted "
+        for (final String nucleus : nuclei) {
+            final String atomType = casekit.nmr.utils.Utils.getAtomTypeFromNucleus(nucleus);
+            final List<Integer> atomIndices = Utils.getAtomTypeIndicesByElement(structure, atomType);
+            spectrumPropertyString = structure.getProperty("Predicted "
+                    + nucleus
+                    + " shifts", String.class);
+            if (spectrumPropertyString == null) {
+                spectrumPropertyString = structure.getProperty("Predicted_"
                         + nucleus
-                        + " shifts", String.class);
-                if (spectrumPropertyString == null) {
-                    spectrumPropertyString = structure.getProperty("Predicted_"
-                            + nucleus
-                            + "_shifts", String.class);
-                }
-                if (spectrumPropertyString == null) {
-                    continue;
-                }
-
-                spectrumPropertyString = spectrumPropertyString.replaceAll("[\\n\\r]", ";");
-                split = spectrumPropertyString.split(";");
-                spectrum = new Spectrum();
-                spectrum.setNuclei(new String[] { nucleus });
-                spectrum.setSignals(new ArrayList<>());
-                assignment = new Assignment();
-                assignment.setNuclei(spectrum.getNuclei());
-                assignment.initAssignments(spectrum.getSignalCount());
-                for (int i = 0; i < split.length; i++) {
-                    split2 = split[i].split("\\s+");
-                    atomIndex = atomIndices.get(i);
-                    calcShift = Double.parseDouble(split2[1]);
-                    multiplicity = Utils.getMultiplicityFromProtonsCount(structure.getAtom(atomIndex)
-                            .getImplicitHydrogenCount())
-                            .toLowerCase();
-                    // add assignment (at first here because of search for already existing
-                    // equivalent signals)
-                    // just to be sure that we take the right signal if equivalences are present
-                    closestSignalList = spectrum.pickByClosestShift(calcShift, 0, 0.0);
-                    closestSignalList.retainAll(spectrum.pickByMultiplicity(multiplicity));
-                    if (closestSignalList.isEmpty()) {
-                        assignment.addAssignment(0, new int[] { atomIndex });
-                    } else {
-                        assignment.addAssignmentEquivalence(0, closestSignalList.get(0), atomIndex);
-                    }
-                    // add signal
-                    spectrum.addSignal(
-                            new Signal(new String[] { nucleus }, new Double[] { calcShift }, multiplicity, "signal",
-                                    null, 1,
-                                    0, null, null));
-                }
+                        + "_shifts", String.class);
+            }
+            if (spectrumPropertyString == null) {
+                continue;
+            }
 
-                // if no spectrum could be built or the number of signals in spectrum is
-                // different than the atom number in molecule
-                if (Utils.getDifferenceSpectrumSizeAndMolecularFormulaCount(spectrum,
-                        Utils.getMolecularFormulaFromString(
-                                dataSet.getMeta()
-                                        .get("mf")),
-                        0) != 0) {
-                    continue;
+            spectrumPropertyString = spectrumPropertyString.replaceAll("[\\n\\r]", ";");
+            split = spectrumPropertyString.split(";");
+            spectrum = new Spectrum();
+            spectrum.setNuclei(new String[] { nucleus });
+            spectrum.setSignals(new ArrayList<>());
+            spectrum.setShiftIndexEnabled(true);
+            assignment = new Assignment();
+            assignment.setNuclei(spectrum.getNuclei());
+            assignment.initAssignments(spectrum.getSignalCount());
+            for (int i = 0; i < split.length; i++) {
+                split2 = split[i].split("\\s+");
+                atomIndex = atomIndices.get(i);
+                calcShift = Double.parseDouble(split2[1]);
+                multiplicity = Utils.getMultiplicityFromProtonsCount(structure.getAtom(atomIndex)
+                        .getImplicitHydrogenCount())
+                        .toLowerCase();
+                // add assignment (at first here because of search for already existing
+                // equivalent signals)
+                // just to be sure that we take the right signal if equivalences are present
+                closestSignalList = spectrum.checkForEquivalences(new Double[] { calcShift }, multiplicity,
+                        new double[] { 0.0 }, true);
+                if (closestSignalList.isEmpty()) {
+                    assignment.addAssignment(0, new int[] { atomIndex });
+                } else {
+                    assignment.addAssignmentEquivalence(0, closestSignalList.get(0), atomIndex);
                 }
-                dataSet.setSpectrum(new SpectrumCompact(spectrum));
-                dataSet.setAssignment(assignment);
+                // add signal
+                spectrum.addSignal(
+                        new Signal(new String[] { nucleus }, new Double[] { calcShift }, multiplicity, "signal",
+                                null, 1,
+                                0, null, null));
+            }
 
-                dataSetList.add(dataSet.buildClone());
+            // if no spectrum could be built or the number of signals in spectrum is
+            // different than the atom number in molecule
+            if (Utils.getDifferenceSpectrumSizeAndMolecularFormulaCount(spectrum,
+                    Utils.getMolecularFormulaFromString(
+                            dataSet.getMeta()
+                                    .get("mf")),
+                    0) != 0) {
+                continue;
             }
-        }
+            dataSet.setSpectrum(new SpectrumCompact(spectrum));
+            dataSet.setAssignment(assignment);
 
-        iterator.close();
+            dataSets.add(dataSet.buildClone());
+        }
 
-        return dataSetList;
+        return dataSets;
     }
 
 }
@@ -12,20 +12,26 @@
 
 package casekit.nmr.dbservice;
 
+import casekit.io.SDFRecordIterator;
 import casekit.nmr.model.*;
 import casekit.nmr.utils.Utils;
+import casekit.threading.MultiThreading;
 
 import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IMolecularFormula;
 import org.openscience.cdk.io.iterator.IteratingSDFReader;
 import org.openscience.cdk.silent.SilentChemObjectBuilder;
-import org.openscience.cdk.tools.manipulator.AtomContainerManipulator;
 
+import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 public class NMRShiftDB {
 
@@ -85,94 +91,216 @@ public class NMRShiftDB {
         final List<DataSet> dataSets = new ArrayList<>();
         final IteratingSDFReader iterator = new IteratingSDFReader(new FileReader(pathToNMRShiftDB),
                 SilentChemObjectBuilder.getInstance());
-        IAtomContainer structure;
+
+        while (iterator.hasNext()) {
+            dataSets.addAll(getDataSetsFromNMRShiftDBRecord(iterator.next(), nuclei));
+        }
+
+        iterator.close();
+
+        return dataSets;
+    }
+
+    /**
+     * Returns the same data sets as
+     * {@link #getDataSetsFromNMRShiftDB(String, String[])} in the same order,
+     * but reads the records lazily one at a time, see
+     * {@link SDFDataSetIterator}.
+     *
+     * @param pathToNMRShiftDB path to NMRShiftDB file
+     * @param nuclei           nuclei to get the spectra for
+     *
+     * @return
+     *
+     * @throws FileNotFoundException
+     */
+    public static SDFDataSetIterator getDataSetIteratorFromNMRShiftDB(final String pathToNMRShiftDB,
+            final String[] nuclei) throws FileNotFoundException {
+        return new SDFDataSetIterator(pathToNMRShiftDB,
+                structure -> getDataSetsFromNMRShiftDBRecord(structure, nuclei));
+    }
+
+    /**
+     * Same as {@link #getDataSetIteratorFromNMRShiftDB(String, String[])} as
+     * sequential stream. The stream should be closed if it is not consumed
+     * completely.
+     *
+     * @param pathToNMRShiftDB path to NMRShiftDB file
+     * @param nuclei           nuclei to get the spectra for
+     *
+     * @return
+     *
+     * @throws FileNotFoundException
+     */
+    public static Stream<DataSet> getDataSetStreamFromNMRShiftDB(final String pathToNMRShiftDB,
+            final String[] nuclei) throws FileNotFoundException {
+        return getDataSetIteratorFromNMRShiftDB(pathToNMRShiftDB, nuclei).stream();
+    }
+
+    /**
+     * Returns the same data sets as
+     * {@link #getDataSetsFromNMRShiftDB(String, String[])} in the same order,
+     * as lazy stream. One thread splits the file into raw record texts, see
+     * {@link SDFRecordIterator}, and the records are parsed and converted by
+     * a pool of worker threads, see
+     * {@link MultiThreading#processOrdered(Iterator, java.util.function.Function, int)}.
+     * Records which can not be parsed or converted are skipped. <br>
+     * The stream should be closed if it is not consumed completely.
+     *
+     * @param pathToNMRShiftDB path to NMRShiftDB file
+     * @param nuclei           nuclei to get the spectra for
+     * @param nThreads         number of worker threads
+     *
+     * @return
+     *
+     * @throws FileNotFoundException
+     */
+    public static Stream<DataSet> getDataSetStreamFromNMRShiftDB(final String pathToNMRShiftDB,
+            final String[] nuclei,
+            final int nThreads) throws FileNotFoundException {
+        final SDFRecordIterator sdfRecordIterator = new SDFRecordIterator(pathToNMRShiftDB);
+
+        return MultiThreading.processOrdered(sdfRecordIterator,
+                record -> getDataSetsFromNMRShiftDBRecord(record, nuclei), nThreads)
+                .flatMap(List::stream)
+                .onClose(sdfRecordIterator::close);
+    }
+
+    /**
+     * Passes the same data sets as
+     * {@link #getDataSetsFromNMRShiftDB(String, String[])} in the same order
+     * to a consumer, without holding all of them in memory, see
+     * {@link #getDataSetStreamFromNMRShiftDB(String, String[], int)}.
+     *
+     * @param pathToNMRShiftDB path to NMRShiftDB file
+     * @param nuclei           nuclei to get the spectra for
+     * @param nThreads         number of worker threads
+     * @param consumer         consumer of the data sets, called on the calling thread
+     *
+     * @throws FileNotFoundException
+     */
+    public static void getDataSetsFromNMRShiftDB(final String pathToNMRShiftDB, final String[] nuclei,
+            final int nThreads, final Consumer<DataSet> consumer) throws FileNotFoundException {
+        try (final Stream<DataSet> dataSetStream = getDataSetStreamFromNMRShiftDB(pathToNMRShiftDB, nuclei,
+                nThreads)) {
+            dataSetStream.forEach(consumer);
+        }
+    }
+
+    private static List<DataSet> getDataSetsFromNMRShiftDBRecord(final String record, final String[] nuclei) {
+        final IAtomContainer structure = SDFRecordIterator.parseRecord(record);
+        if (structure == null) {
+            return new ArrayList<>();
+        }
+        try {
+            return getDataSetsFromNMRShiftDBRecord(structure, nuclei);
+        } catch (final CDKException e) {
+            e.printStackTrace();
+        }
+
+        return new ArrayList<>();
+    }
+
+    /**
+     * Returns a {@link DataSet} class object
+     * for each valid spectrum of the given nuclei in a single NMRShiftDB
+     * molecule record, see {@link #getDataSetsFromNMRShiftDB(String, String[])}.
+     * The structure is prepared only once per record and only if it contains
+     * any spectrum of the given nuclei; it is modified in place then, see
+     * {@link Utils#atomContainerToDataSet(IAtomContainer)}. All data sets of
+     * the record share the same {@link StructureCompact} object.
+     *
+     * @param structure molecule record as read from NMRShiftDB file
+     * @param nuclei    nuclei to get the spectra for
+     *
+     * @return
+     *
+     * @throws CDKException
+     * @see DataSet
+     */
+    public static List<DataSet> getDataSetsFromNMRShiftDBRecord(final IAtomContainer structure,
+            final String[] nuclei) throws CDKException {
+        final List<DataSet> dataSets = new ArrayList<>();
+        NMRShiftDBSpectrumValues spectrumValues;
         Spectrum spectrum;
         Assignment assignment;
-        DataSet dataSet;
+        final List<List<String>> spectraProperties1DPerNucleus = new ArrayList<>();
         List<String> spectraProperties1D;
         String[] split;
         String spectrumIndexInRecord;
-        List<Integer> explicitHydrogenIndices;
-        int[] temp;
 
-        while (iterator.hasNext()) {
-            structure = iterator.next();
-            AtomContainerManipulator.percieveAtomTypesAndConfigureAtoms(structure);
-            explicitHydrogenIndices = casekit.nmr.utils.Utils.getExplicitHydrogenIndices(structure);
-            Collections.sort(explicitHydrogenIndices);
-            dataSet = Utils.atomContainerToDataSet(structure);
-
-            for (final String nucleus : nuclei) {
-                spectraProperties1D = getSpectraProperties1D(structure, nucleus);
-                for (final String spectrumProperty1D : spectraProperties1D) {
-                    split = spectrumProperty1D.split("\\s");
-                    spectrumIndexInRecord = split[split.length
-                            - 1];
-
-                    // skip molecules which do not contain any of requested spectrum information
-                    spectrum = NMRShiftDBSpectrumToSpectrum(structure.getProperty(spectrumProperty1D), nucleus);
-                    // if no spectrum could be built or the number of signals in spectrum is
-                    // different than the atom number in molecule
-                    if ((spectrum == null)
-                            || casekit.nmr.utils.Utils.getDifferenceSpectrumSizeAndMolecularFormulaCount(spectrum,
-                                    Utils.getMolecularFormulaFromString(
-                                            dataSet.getMeta()
-                                                    .get("mf")),
-                                    0) != 0) {
-                        continue;
-                    }
-                    if (structure.getProperty("Solvent") != null) {
-                        spectrum.addMetaInfo("solvent",
-                                getSolvent(structure.getProperty("Solvent"), spectrumIndexInRecord));
-                    }
-                    if (structure.getProperty("Field Strength [MHz]") != null) {
-                        for (final String fieldStrength : structure.getProperty("Field Strength [MHz]")
-                                .toString()
-                                .split("\\s")) {
-                            if (fieldStrength.startsWith(spectrumIndexInRecord
-                                    + ":")) {
-                                try {
-                                    spectrum.addMetaInfo("spectrometerFrequency", fieldStrength.split(
-                                            spectrumIndexInRecord
-                                                    + ":")[1]);
-                                } catch (final NumberFormatException e) {
-                                    // e.printStackTrace();
-                                }
-                                break;
-                            }
-                        }
-                    }
+        boolean containsSpectra = false;
+        for (final String nucleus : nuclei) {
+            spectraProperties1D = getSpectraProperties1D(structure, nucleus);
+            spectraProperties1DPerNucleus.add(spectraProperties1D);
+            containsSpectra = containsSpectra
+                    || !spectraProperties1D.isEmpty();
+        }
+        // skip the structure preparation for records without any requested spectrum
+        if (!containsSpectra) {
+            return dataSets;
+        }
+        // built once and used for the assignments of all spectra in record,
+        // before the explicit hydrogens are removed in structure preparation
+        final int[] explicitHydrogenCountsBefore = casekit.nmr.utils.Utils.getExplicitHydrogenCountsBefore(structure);
+        // atom type perception, hydrogen handling, aromaticity and SMILES once per record
+        final DataSet recordDataSet = Utils.atomContainerToDataSet(structure);
+        final IMolecularFormula molecularFormula = Utils.getMolecularFormulaFromString(recordDataSet.getMeta()
+                .get("mf"));
+
+        for (int n = 0; n < nuclei.length; n++) {
+            final String nucleus = nuclei[n];
+            for (final String spectrumProperty1D : spectraProperties1DPerNucleus.get(n)) {
+                split = spectrumProperty1D.split("\\s");
+                spectrumIndexInRecord = split[split.length
+                        - 1];
 
-                    assignment = NMRShiftDBSpectrumToAssignment(structure.getProperty(spectrumProperty1D), nucleus);
-                    if (assignment != null
-                            && !explicitHydrogenIndices.isEmpty()) {
-                        int hCount;
-                        for (int i = 0; i < assignment.getSize(); i++) {
-                            for (int k = 0; k < assignment.getAssignment(0, i).length; k++) {
-                                hCount = 0;
-                                for (int j = 0; j < explicitHydrogenIndices.size(); j++) {
-                                    if (explicitHydrogenIndices.get(j) >= assignment.getAssignment(0, i, k)) {
-                                        break;
-                                    }
-                                    hCount++;
-                                }
-                                temp = assignment.getAssignment(0, i);
-                                temp[k] = assignment.getAssignment(0, i, k)
-                                        - hCount;
-                                assignment.setAssignment(0, i, temp);
+                // skip molecules which do not contain any of requested spectrum information
+                // the spectrum string is parsed once for both spectrum and assignment
+                spectrumValues = parseNMRShiftDBSpectrumValues(structure.getProperty(spectrumProperty1D));
+                spectrum = spectrumValues == null
+                        ? null
+                        : buildSpectrum(spectrumValues, nucleus);
+                // if no spectrum could be built or the number of signals in spectrum is
+                // different than the atom number in molecule
+                if ((spectrum == null)
+                        || casekit.nmr.utils.Utils.getDifferenceSpectrumSizeAndMolecularFormulaCount(spectrum,
+                                molecularFormula, 0) != 0) {
+                    continue;
+                }
+                if (structure.getProperty("Solvent") != null) {
+                    spectrum.addMetaInfo("solvent",
+                            getSolvent(structure.getProperty("Solvent"), spectrumIndexInRecord));
+                }
+                if (structure.getProperty("Field Strength [MHz]") != null) {
+                    for (final String fieldStrength : structure.getProperty("Field Strength [MHz]")
+                            .toString()
+                            .split("\\s")) {
+                        if (fieldStrength.startsWith(spectrumIndexInRecord
+                                + ":")) {
+                            try {
+                                spectrum.addMetaInfo("spectrometerFrequency", fieldStrength.split(
+                                        spectrumIndexInRecord
+                                                + ":")[1]);
+                            } catch (final NumberFormatException e) {
+                                // e.printStackTrace();
                             }
+                            break;
                         }
                     }
-                    dataSet.setSpectrum(new SpectrumCompact(spectrum));
-                    dataSet.setAssignment(assignment);
+                }
 
-                    dataSets.add(dataSet.buildClone());
+                assignment = buildAssignment(spectrumValues, spectrum);
+                if (assignment != null) {
+                    casekit.nmr.utils.Utils.convertToAtomIndicesWithoutExplicitHydrogens(assignment,
+                            explicitHydrogenCountsBefore);
                 }
+                // spectrum and assignment are new per spectrum, so no clone is needed
+                dataSets.add(new DataSet(recordDataSet.getStructure(), new SpectrumCompact(spectrum), assignment,
+                        new HashMap<>(recordDataSet.getMeta()), new HashMap<>()));
             }
         }
 
-        iterator.close();
-
         return dataSets;
     }
 
@@ -325,68 +453,222 @@ public class NMRShiftDB {
         return values;
     }
 
-    public static Spectrum NMRShiftDBSpectrumToSpectrum(final String NMRShiftDBSpectrum, final String nucleus) {
+    /**
+     * Parses a given NMRShiftDB spectrum string in a single pass into
+     * primitive arrays, with the same values as
+     * {@link #parseNMRShiftDBSpectrum(String)} would give after number
+     * parsing.
+     *
+     * @param NMRShiftDBSpectrum NMRShiftDB spectrum string, e.g. "17.6;0.0Q;9|..."
+     *
+     * @return null if the spectrum string is empty or malformed
+     */
+    private static NMRShiftDBSpectrumValues parseNMRShiftDBSpectrumValues(final String NMRShiftDBSpectrum) {
         if ((NMRShiftDBSpectrum == null)
                 || NMRShiftDBSpectrum.trim()
                         .isEmpty()) {
             return null;
         }
-        final String[][] spectrumStringArray = parseNMRShiftDBSpectrum(NMRShiftDBSpectrum);
-        final Spectrum spectrum = new Spectrum();
-        spectrum.setNuclei(new String[] { nucleus });
-        spectrum.setSignals(new ArrayList<>());
-        String multiplicity;
-        Double shift, intensity;
+        // trailing empty signals are dropped, as in String.split
+        int end = NMRShiftDBSpectrum.length();
+        while (end > 0
+                && NMRShiftDBSpectrum.charAt(end
+                        - 1) == '|') {
+            end--;
+        }
+        int signalCount = 0;
+        if (end > 0) {
+            signalCount = 1;
+            for (int k = 0; k < end; k++) {
+                if (NMRShiftDBSpectrum.charAt(k) == '|') {
+                    signalCount++;
+                }
+            }
+        }
+        final NMRShiftDBSpectrumValues values = new NMRShiftDBSpectrumValues(signalCount);
+        int signalStart = 0, signalEnd, firstSeparator, secondSeparator, thirdSeparator;
         try {
-            for (int i = 0; i < spectrumStringArray.length; i++) {
-                shift = Double.parseDouble(spectrumStringArray[i][0]);
-                intensity = Double.parseDouble(spectrumStringArray[i][1]);
-                multiplicity = spectrumStringArray[i][2].trim()
-                        .isEmpty()
-                                ? null
-                                : spectrumStringArray[i][2].trim()
-                                        .toLowerCase();
-                spectrum.addSignal(
-                        new Signal(new String[] { nucleus }, new Double[] { shift }, multiplicity, "signal", intensity,
-                                1, 0,
-                                null, null));
+            for (int i = 0; i < signalCount; i++) {
+                signalEnd = NMRShiftDBSpectrum.indexOf('|', signalStart);
+                if (signalEnd == -1
+                        || signalEnd > end) {
+                    signalEnd = end;
+                }
+                firstSeparator = NMRShiftDBSpectrum.indexOf(';', signalStart);
+                if (firstSeparator == -1
+                        || firstSeparator >= signalEnd) {
+                    return null;
+                }
+                secondSeparator = NMRShiftDBSpectrum.indexOf(';', firstSeparator
+                        + 1);
+                if (secondSeparator == -1
+                        || secondSeparator >= signalEnd) {
+                    return null;
+                }
+                thirdSeparator = NMRShiftDBSpectrum.indexOf(';', secondSeparator
+                        + 1);
+                if (thirdSeparator == -1
+                        || thirdSeparator > signalEnd) {
+                    thirdSeparator = signalEnd;
+                }
+                values.shifts[i] = Double.parseDouble(NMRShiftDBSpectrum.substring(signalStart, firstSeparator));
+                if (!parseIntensityAndMultiplicity(NMRShiftDBSpectrum.substring(firstSeparator
+                        + 1, secondSeparator), values, i)) {
+                    return null;
+                }
+                values.atomIndices[i] = Integer.parseInt(NMRShiftDBSpectrum.substring(secondSeparator
+                        + 1, thirdSeparator));
+
+                signalStart = signalEnd
+                        + 1;
             }
-        } catch (final Exception e) {
+        } catch (final NumberFormatException e) {
             return null;
         }
 
-        return spectrum;
+        return values;
     }
 
-    public static Assignment NMRShiftDBSpectrumToAssignment(final String NMRShiftDBSpectrum, final String nucleus) {
-        if ((NMRShiftDBSpectrum == null)
-                || NMRShiftDBSpectrum.trim()
-                        .isEmpty()) {
-            return null;
+    private static boolean parseIntensityAndMultiplicity(final String intensityAndMultiplicity,
+            final NMRShiftDBSpectrumValues values, final int signalIndex) {
+        // common form: digits, decimal point, digits and a multiplicity without digits, e.g. "0.0Q"
+        final int length = intensityAndMultiplicity.length();
+        int position = 0;
+        while (position < length
+                && isDigit(intensityAndMultiplicity.charAt(position))) {
+            position++;
+        }
+        boolean isCommonForm = position > 0
+                && position
+                        + 1 < length
+                && intensityAndMultiplicity.charAt(position) == '.'
+                && isDigit(intensityAndMultiplicity.charAt(position
+                        + 1));
+        String multiplicity = null;
+        if (isCommonForm) {
+            position++;
+            while (position < length
+                    && isDigit(intensityAndMultiplicity.charAt(position))) {
+                position++;
+            }
+            multiplicity = intensityAndMultiplicity.substring(position);
+            for (int k = 0; k < multiplicity.length(); k++) {
+                if (multiplicity.charAt(k) > 127
+                        || isDigit(multiplicity.charAt(k))) {
+                    isCommonForm = false;
+                    break;
+                }
+            }
         }
-        final String[][] NMRShiftDBSpectrumStringArray = parseNMRShiftDBSpectrum(NMRShiftDBSpectrum);
-        final Spectrum spectrum = NMRShiftDBSpectrumToSpectrum(NMRShiftDBSpectrum, nucleus);
+        String intensity;
+        if (isCommonForm) {
+            // the intensity ends at the first letter
+            final String lowerCaseMultiplicity = multiplicity.toLowerCase();
+            int intensityEnd = position;
+            while (intensityEnd
+                    - position < lowerCaseMultiplicity.length()
+                    && (lowerCaseMultiplicity.charAt(intensityEnd
+                            - position) < 'a'
+                            || lowerCaseMultiplicity.charAt(intensityEnd
+                                    - position) > 'z')) {
+                intensityEnd++;
+            }
+            intensity = intensityAndMultiplicity.substring(0, intensityEnd);
+        } else {
+            // any other form is parsed as in parseNMRShiftDBSpectrum
+            try {
+                intensity = intensityAndMultiplicity.toLowerCase()
+                        .split("[a-z]")[0];
+                multiplicity = intensityAndMultiplicity.split("\\d+\\.\\d+").length > 0
+                        ? intensityAndMultiplicity.split("\\d+\\.\\d+")[1]
+                        : "";
+            } catch (final ArrayIndexOutOfBoundsException e) {
+                return false;
+            }
+        }
+        values.intensities[signalIndex] = Double.parseDouble(intensity);
+        values.multiplicities[signalIndex] = multiplicity.trim()
+                .isEmpty()
+                        ? null
+                        : multiplicity.trim()
+                                .toLowerCase();
+
+        return true;
+    }
+
+    private static boolean isDigit(final char c) {
+        // same as \d in regular expressions
+        return c >= '0'
+                && c <= '9';
+    }
+
+    private static Spectrum buildSpectrum(final NMRShiftDBSpectrumValues values, final String nucleus) {
+        final Spectrum spectrum = new Spectrum();
+        spectrum.setNuclei(new String[] { nucleus });
+        spectrum.setSignals(new ArrayList<>());
+        spectrum.setShiftIndexEnabled(true);
+        for (int i = 0; i < values.shifts.length; i++) {
+            spectrum.addSignal(
+                    new Signal(new String[] { nucleus }, new Double[] { values.shifts[i] }, values.multiplicities[i],
+                            "signal", values.intensities[i], 1, 0, null, null));
+        }
+
+        return spectrum;
+    }
+
+    private static Assignment buildAssignment(final NMRShiftDBSpectrumValues values, final Spectrum spectrum) {
         final Assignment assignment = new Assignment();
-        assignment.setNuclei(spectrum.getNuclei());
+        assignment.setNuclei(spectrum.getNuclei()
+                .clone());
         assignment.initAssignments(spectrum.getSignalCount());
         int signalIndex;
-        String multiplicity;
         List<Integer> closestSignalList;
-        for (int i = 0; i < NMRShiftDBSpectrumStringArray.length; i++) {
+        for (int i = 0; i < values.shifts.length; i++) {
             // just to be sure that we take the right signal if equivalences are present
-            closestSignalList = spectrum.pickByClosestShift(Double.parseDouble(NMRShiftDBSpectrumStringArray[i][0]), 0,
-                    0.0);
-            multiplicity = NMRShiftDBSpectrumStringArray[i][2].trim()
-                    .isEmpty()
-                            ? null
-                            : NMRShiftDBSpectrumStringArray[i][2].trim()
-                                    .toLowerCase();
-            closestSignalList.retainAll(spectrum.pickByMultiplicity(multiplicity));
+            closestSignalList = spectrum.checkForEquivalences(new Double[] { values.shifts[i] },
+                    values.multiplicities[i], new double[] { 0.0 }, true);
             signalIndex = closestSignalList.get(0);
 
-            assignment.addAssignmentEquivalence(0, signalIndex, Integer.parseInt(NMRShiftDBSpectrumStringArray[i][3]));
+            assignment.addAssignmentEquivalence(0, signalIndex, values.atomIndices[i]);
         }
 
         return assignment;
     }
+
+    public static Spectrum NMRShiftDBSpectrumToSpectrum(final String NMRShiftDBSpectrum, final String nucleus) {
+        final NMRShiftDBSpectrumValues values = parseNMRShiftDBSpectrumValues(NMRShiftDBSpectrum);
+        if (values == null) {
+            return null;
+        }
+
+        return buildSpectrum(values, nucleus);
+    }
+
+    public static Assignment NMRShiftDBSpectrumToAssignment(final String NMRShiftDBSpectrum, final String nucleus) {
+        final NMRShiftDBSpectrumValues values = parseNMRShiftDBSpectrumValues(NMRShiftDBSpectrum);
+        if (values == null) {
+            return null;
+        }
+
+        return buildAssignment(values, buildSpectrum(values, nucleus));
+    }
+
+    /**
+     * Signal values of one NMRShiftDB spectrum string, see
+     * {@link #parseNMRShiftDBSpectrumValues(String)}.
+     */
+    private static final class NMRShiftDBSpectrumValues {
+
+        private final double[] shifts;
+        private final double[] intensities;
+        private final String[] multiplicities;
+        private final int[] atomIndices;
+
+        private NMRShiftDBSpectrumValues(final int signalCount) {
+            this.shifts = new double[signalCount];
+            this.intensities = new double[signalCount];
+            this.multiplicities = new String[signalCount];
+            this.atomIndices = new int[signalCount];
+        }
+    }
 }
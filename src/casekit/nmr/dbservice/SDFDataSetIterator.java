@@ -0,0 +1,98 @@
+package casekit.nmr.dbservice;
+
+import casekit.nmr.model.DataSet;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.io.iterator.IteratingSDFReader;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazily reads the molecule records of an SD file one at a time and yields
+ * the {@link DataSet} objects a record converter builds from each record, in
+ * file order. Only the data sets of the current record are held in memory.
+ * <br>
+ * Records which can not be converted are reported and skipped. The underlying
+ * reader is closed when the last data set was returned or by
+ * {@link #close()}.
+ */
+public class SDFDataSetIterator
+        implements Iterator<DataSet>, Closeable {
+
+    private final IteratingSDFReader iteratingSDFReader;
+    private final RecordConverter recordConverter;
+    private final Deque<DataSet> nextDataSets;
+    private boolean closed;
+
+    public SDFDataSetIterator(final String pathToSDF, final RecordConverter recordConverter)
+            throws FileNotFoundException {
+        this.iteratingSDFReader = new IteratingSDFReader(new FileReader(pathToSDF),
+                SilentChemObjectBuilder.getInstance());
+        this.recordConverter = recordConverter;
+        this.nextDataSets = new ArrayDeque<>();
+    }
+
+    /**
+     * Returns this iterator as sequential stream, which closes the iterator
+     * when it is closed.
+     *
+     * @return
+     */
+    public Stream<DataSet> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED
+                | Spliterator.NONNULL), false)
+                .onClose(this::close);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (this.nextDataSets.isEmpty()
+                && !this.closed) {
+            if (!this.iteratingSDFReader.hasNext()) {
+                this.close();
+                break;
+            }
+            try {
+                this.nextDataSets.addAll(this.recordConverter.convert(this.iteratingSDFReader.next()));
+            } catch (final CDKException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return !this.nextDataSets.isEmpty();
+    }
+
+    @Override
+    public DataSet next() {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        return this.nextDataSets.poll();
+    }
+
+    @Override
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            this.iteratingSDFReader.close();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public interface RecordConverter {
+
+        List<DataSet> convert(IAtomContainer structure) throws CDKException;
+    }
+}
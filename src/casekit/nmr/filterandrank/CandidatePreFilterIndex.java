@@ -0,0 +1,203 @@
+package casekit.nmr.filterandrank;
+
+import casekit.nmr.filterandrank.model.PreFilterResult;
+import casekit.nmr.filterandrank.model.PreparedQuery;
+import casekit.nmr.model.DataSet;
+import casekit.nmr.similarity.Utilities;
+import casekit.nmr.similarity.model.MatchingSignals;
+
+import java.util.*;
+
+/**
+ * Index over candidate data sets to reject candidates which can not pass
+ * {@link FilterAndRank#checkDataSet(DataSet, PreparedQuery)} by counting
+ * only, before any spectra matching. <br>
+ * Per candidate, the index stores the signal count, the counts of signal
+ * multiplicities (compared case-insensitively, as in spectra matching), the
+ * sorted shifts of the first dimension and the molecular formula from
+ * meta["mf"]. A candidate is rejected if
+ * <ul>
+ * <li>it has no signal within the shift tolerance of any query signal,</li>
+ * <li>or, if incomplete matches are not allowed, it has more signals than the
+ * query, more signals of a multiplicity than the query (if multiplicities are
+ * checked), or a signal without any query signal within the shift
+ * tolerance,</li>
+ * <li>or a molecular formula is requested and the candidate has another
+ * one.</li>
+ * </ul>
+ * The index is a snapshot of the candidates at creation time.
+ */
+public class CandidatePreFilterIndex {
+
+    private final List<DataSet> dataSetList;
+    private final int[] signalCounts;
+    private final double[][] sortedShifts;
+    // multiplicity code -> count, per candidate
+    private final int[][] multiplicityCounts;
+    private final Map<String, Integer> multiplicityCodes;
+    private final String[] mfs;
+
+    public CandidatePreFilterIndex(final List<DataSet> dataSetList) {
+        this.dataSetList = new ArrayList<>(dataSetList);
+        this.signalCounts = new int[this.dataSetList.size()];
+        this.sortedShifts = new double[this.dataSetList.size()][];
+        this.mfs = new String[this.dataSetList.size()];
+        this.multiplicityCodes = new HashMap<>();
+        final int[][] multiplicityCodesPerSignal = new int[this.dataSetList.size()][];
+        DataSet dataSet;
+        MatchingSignals matchingSignals;
+        for (int k = 0; k
+                < this.dataSetList.size(); k++) {
+            dataSet = this.dataSetList.get(k);
+            matchingSignals = Utilities.buildMatchingSignals(dataSet.getSpectrum(), 0);
+            this.signalCounts[k] = matchingSignals.getSignalCount();
+            this.sortedShifts[k] = getSortedShifts(matchingSignals);
+            multiplicityCodesPerSignal[k] = new int[matchingSignals.getSignalCount()];
+            for (int i = 0; i
+                    < matchingSignals.getSignalCount(); i++) {
+                multiplicityCodesPerSignal[k][i] = this.multiplicityCodes.computeIfAbsent(
+                        getMultiplicityKey(matchingSignals.getMultiplicities()[i]),
+                        key -> this.multiplicityCodes.size());
+            }
+            this.mfs[k] = dataSet.getMeta()
+                                  != null
+                          ? dataSet.getMeta()
+                                   .get("mf")
+                          : null;
+        }
+        this.multiplicityCounts = new int[this.dataSetList.size()][];
+        for (int k = 0; k
+                < this.dataSetList.size(); k++) {
+            this.multiplicityCounts[k] = new int[this.multiplicityCodes.size()];
+            for (final int multiplicityCode : multiplicityCodesPerSignal[k]) {
+                this.multiplicityCounts[k][multiplicityCode]++;
+            }
+        }
+    }
+
+    private static double[] getSortedShifts(final MatchingSignals matchingSignals) {
+        final double[] sortedShifts = new double[matchingSignals.getSortedSignalIndices().length];
+        for (int i = 0; i
+                < sortedShifts.length; i++) {
+            sortedShifts[i] = matchingSignals.getShifts()[matchingSignals.getSortedSignalIndices()[i]];
+        }
+
+        return sortedShifts;
+    }
+
+    private static String getMultiplicityKey(final String multiplicity) {
+        // null only matches null, see spectra matching
+        return multiplicity
+                       == null
+               ? null
+               : multiplicity.toLowerCase(Locale.ROOT);
+    }
+
+    public List<DataSet> getDataSetList() {
+        return this.dataSetList;
+    }
+
+    public int size() {
+        return this.dataSetList.size();
+    }
+
+    /**
+     * Returns all candidates which could pass the prepared query. If the
+     * prepared query is not checked by
+     * {@link FilterAndRank#filter(List, PreparedQuery)} (other than 1D 13C
+     * queries), only the molecular formula is used.
+     *
+     * @param preparedQuery prepared query
+     * @param mf            molecular formula the candidates must have, can be null
+     *
+     * @return
+     */
+    public PreFilterResult preFilter(final PreparedQuery preparedQuery, final String mf) {
+        final boolean check = preparedQuery.getQuerySpectrum()
+                                           .getNDim()
+                == 1
+                && preparedQuery.getQuerySpectrum()
+                                .getNuclei()[0].equals("13C");
+        final MatchingSignals queryMatchingSignals = preparedQuery.getQueryMatchingSignals();
+        final double[] querySortedShifts = getSortedShifts(queryMatchingSignals);
+        final int[] queryMultiplicityCounts = new int[this.multiplicityCodes.size()];
+        Integer multiplicityCode;
+        for (int j = 0; j
+                < queryMatchingSignals.getSignalCount(); j++) {
+            multiplicityCode = this.multiplicityCodes.get(
+                    getMultiplicityKey(queryMatchingSignals.getMultiplicities()[j]));
+            if (multiplicityCode
+                    != null) {
+                queryMultiplicityCounts[multiplicityCode]++;
+            }
+        }
+        final List<DataSet> candidates = new ArrayList<>();
+        for (int k = 0; k
+                < this.dataSetList.size(); k++) {
+            if (mf
+                    != null
+                    && !mf.equals(this.mfs[k])) {
+                continue;
+            }
+            if (check
+                    && !this.checkCandidate(k, preparedQuery, querySortedShifts, queryMultiplicityCounts)) {
+                continue;
+            }
+            candidates.add(this.dataSetList.get(k));
+        }
+
+        return new PreFilterResult(candidates, this.dataSetList.size());
+    }
+
+    private boolean checkCandidate(final int k, final PreparedQuery preparedQuery, final double[] querySortedShifts,
+                                   final int[] queryMultiplicityCounts) {
+        final boolean allowIncompleteMatch = preparedQuery.isAllowIncompleteMatch();
+        if (!allowIncompleteMatch) {
+            // every candidate signal needs its own query signal
+            if (this.signalCounts[k]
+                    > querySortedShifts.length
+                    || this.sortedShifts[k].length
+                    < this.signalCounts[k]) {
+                return false;
+            }
+            if (preparedQuery.isCheckMultiplicity()) {
+                for (int code = 0; code
+                        < queryMultiplicityCounts.length; code++) {
+                    if (this.multiplicityCounts[k][code]
+                            > queryMultiplicityCounts[code]) {
+                        return false;
+                    }
+                }
+            }
+        }
+        // count the candidate shifts with a query shift within the tolerance, both are sorted
+        final double shiftTolerance = preparedQuery.getShiftTolerance();
+        final double[] candidateSortedShifts = this.sortedShifts[k];
+        int coveredCount = 0;
+        int queryPosition = 0;
+        for (final double shift : candidateSortedShifts) {
+            while (queryPosition
+                    < querySortedShifts.length
+                    && shift
+                    - querySortedShifts[queryPosition]
+                    > shiftTolerance) {
+                queryPosition++;
+            }
+            if (queryPosition
+                    < querySortedShifts.length
+                    && Math.abs(shift
+                                        - querySortedShifts[queryPosition])
+                    <= shiftTolerance) {
+                coveredCount++;
+                if (allowIncompleteMatch) {
+                    return true;
+                }
+            } else if (!allowIncompleteMatch) {
+                return false;
+            }
+        }
+
+        return coveredCount
+                > 0;
+    }
+}
@@ -1,18 +1,33 @@
 package casekit.nmr.filterandrank;
 
+import casekit.io.SDFRecordIterator;
 import casekit.nmr.analysis.MultiplicitySectionsBuilder;
+import casekit.nmr.dbservice.SDFDataSetIterator;
 import casekit.nmr.elucidation.model.Detections;
+import casekit.nmr.filterandrank.model.PreparedQuery;
+import casekit.nmr.filterandrank.model.RankedDataSet;
 import casekit.nmr.model.Assignment;
+import casekit.nmr.model.ColumnarSpectrum;
 import casekit.nmr.model.DataSet;
 import casekit.nmr.model.Spectrum;
 import casekit.nmr.similarity.Similarity;
+import casekit.nmr.similarity.Utilities;
+import casekit.nmr.similarity.model.MatchingSignals;
 import casekit.nmr.utils.Statistics;
+import casekit.threading.MultiThreading;
+import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.fingerprint.BitSetFingerprint;
+import org.openscience.cdk.interfaces.IAtomContainer;
 
-import java.util.Arrays;
-import java.util.List;
-import java.util.Objects;
+import java.io.FileNotFoundException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class FilterAndRank {
 
@@ -33,9 +48,21 @@ public class FilterAndRank {
                                               final boolean allowLowerEquivalencesCount,
                                               final MultiplicitySectionsBuilder multiplicitySectionsBuilder,
                                               final boolean allowIncompleteMatch, final Detections detections) {
+        return filterAndRank(dataSetList, querySpectrum, shiftTolerance, maxAverageDeviation, checkMultiplicity,
+                             checkEquivalencesCount, allowLowerEquivalencesCount, multiplicitySectionsBuilder,
+                             allowIncompleteMatch, detections, false);
+    }
+
+    public static List<DataSet> filterAndRank(final List<DataSet> dataSetList, final Spectrum querySpectrum,
+                                              final double shiftTolerance, final double maxAverageDeviation,
+                                              final boolean checkMultiplicity, final boolean checkEquivalencesCount,
+                                              final boolean allowLowerEquivalencesCount,
+                                              final MultiplicitySectionsBuilder multiplicitySectionsBuilder,
+                                              final boolean allowIncompleteMatch, final Detections detections,
+                                              final boolean optimalAssignment) {
         return rank(filter(dataSetList, querySpectrum, shiftTolerance, maxAverageDeviation, checkMultiplicity,
                            checkEquivalencesCount, allowLowerEquivalencesCount, multiplicitySectionsBuilder,
-                           allowIncompleteMatch, detections));
+                           allowIncompleteMatch, detections, optimalAssignment));
     }
 
     public static List<DataSet> filter(final List<DataSet> dataSetList, final Spectrum querySpectrum,
@@ -56,15 +83,32 @@ public class FilterAndRank {
                                        final boolean allowLowerEquivalencesCount,
                                        final MultiplicitySectionsBuilder multiplicitySectionsBuilder,
                                        final boolean allowIncompleteMatch, final Detections detections) {
-        if (querySpectrum.getNDim()
+        return filter(dataSetList, querySpectrum, shiftTolerance, maxAverageDeviation, checkMultiplicity,
+                      checkEquivalencesCount, allowLowerEquivalencesCount, multiplicitySectionsBuilder,
+                      allowIncompleteMatch, detections, false);
+    }
+
+    public static List<DataSet> filter(final List<DataSet> dataSetList, final Spectrum querySpectrum,
+                                       final double shiftTolerance, final double maxAverageDeviation,
+                                       final boolean checkMultiplicity, final boolean checkEquivalencesCount,
+                                       final boolean allowLowerEquivalencesCount,
+                                       final MultiplicitySectionsBuilder multiplicitySectionsBuilder,
+                                       final boolean allowIncompleteMatch, final Detections detections,
+                                       final boolean optimalAssignment) {
+        return filter(dataSetList,
+                      prepareQuery(querySpectrum, shiftTolerance, maxAverageDeviation, checkMultiplicity,
+                                   checkEquivalencesCount, allowLowerEquivalencesCount, multiplicitySectionsBuilder,
+                                   allowIncompleteMatch, detections, optimalAssignment));
+    }
+
+    public static List<DataSet> filter(final List<DataSet> dataSetList, final PreparedQuery preparedQuery) {
+        if (preparedQuery.getQuerySpectrum()
+                         .getNDim()
                 == 1
-                && querySpectrum.getNuclei()[0].equals("13C")) {
+                && preparedQuery.getQuerySpectrum()
+                                .getNuclei()[0].equals("13C")) {
             return dataSetList.stream()
-                              .filter(dataSet -> checkDataSet(dataSet, querySpectrum, shiftTolerance,
-                                                              maxAverageDeviation, checkMultiplicity,
-                                                              checkEquivalencesCount, allowLowerEquivalencesCount,
-                                                              multiplicitySectionsBuilder, allowIncompleteMatch,
-                                                              detections)
+                              .filter(dataSet -> checkDataSet(dataSet, preparedQuery)
                                       != null)
                               .collect(Collectors.toList());
         }
@@ -72,6 +116,59 @@ public class FilterAndRank {
         return dataSetList;
     }
 
+    /**
+     * Same as {@link #filter(List, PreparedQuery)} but lazily, e.g. for data
+     * sets read one at a time from a database file.
+     *
+     * @param dataSetStream data sets to check
+     * @param preparedQuery prepared query, see {@link #prepareQuery(Spectrum, double, double, boolean, boolean, boolean, MultiplicitySectionsBuilder, boolean, Detections, boolean)}
+     *
+     * @return
+     */
+    public static Stream<DataSet> filter(final Stream<DataSet> dataSetStream, final PreparedQuery preparedQuery) {
+        if (preparedQuery.getQuerySpectrum()
+                         .getNDim()
+                == 1
+                && preparedQuery.getQuerySpectrum()
+                                .getNuclei()[0].equals("13C")) {
+            return dataSetStream.filter(dataSet -> checkDataSet(dataSet, preparedQuery)
+                    != null);
+        }
+
+        return dataSetStream;
+    }
+
+    /**
+     * Prepares a query spectrum and the filter settings for checking many data
+     * sets, see {@link #checkDataSet(DataSet, PreparedQuery)}.
+     *
+     * @param querySpectrum               query spectrum
+     * @param shiftTolerance              shift tolerance
+     * @param maxAverageDeviation         maximum average deviation
+     * @param checkMultiplicity           whether to check multiplicity
+     * @param checkEquivalencesCount      whether to check equivalences
+     * @param allowLowerEquivalencesCount whether to allow lower equivalences
+     * @param multiplicitySectionsBuilder multiplicity sections builder for fingerprints
+     * @param allowIncompleteMatch        whether to allow incomplete matches
+     * @param detections                  detections to use as structural filter, can be null
+     * @param optimalAssignment           whether to use the optimal instead of the greedy assignment
+     *
+     * @return
+     */
+    public static PreparedQuery prepareQuery(final Spectrum querySpectrum, final double shiftTolerance,
+                                             final double maxAverageDeviation, final boolean checkMultiplicity,
+                                             final boolean checkEquivalencesCount,
+                                             final boolean allowLowerEquivalencesCount,
+                                             final MultiplicitySectionsBuilder multiplicitySectionsBuilder,
+                                             final boolean allowIncompleteMatch, final Detections detections,
+                                             final boolean optimalAssignment) {
+        return new PreparedQuery(querySpectrum, Utilities.buildMatchingSignals(querySpectrum, 0),
+                                 Similarity.getBitSetFingerprint(querySpectrum, 0, multiplicitySectionsBuilder),
+                                 shiftTolerance, maxAverageDeviation, checkMultiplicity, checkEquivalencesCount,
+                                 allowLowerEquivalencesCount, multiplicitySectionsBuilder, allowIncompleteMatch,
+                                 detections, optimalAssignment);
+    }
+
     public static DataSet checkDataSet(final DataSet dataSet, final Spectrum querySpectrum, final double shiftTolerance,
                                        final double maxAverageDeviation, final boolean checkMultiplicity,
                                        final boolean checkEquivalencesCount, final boolean allowLowerEquivalencesCount,
@@ -87,51 +184,104 @@ public class FilterAndRank {
                                        final boolean checkEquivalencesCount, final boolean allowLowerEquivalencesCount,
                                        final MultiplicitySectionsBuilder multiplicitySectionsBuilder,
                                        final boolean allowIncompleteMatch, final Detections detections) {
-        final Spectrum spectrum = dataSet.getSpectrum()
-                                         .toSpectrum();
+        return checkDataSet(dataSet, querySpectrum, shiftTolerance, maxAverageDeviation, checkMultiplicity,
+                            checkEquivalencesCount, allowLowerEquivalencesCount, multiplicitySectionsBuilder,
+                            allowIncompleteMatch, detections, false);
+    }
+
+    public static DataSet checkDataSet(final DataSet dataSet, final Spectrum querySpectrum, final double shiftTolerance,
+                                       final double maxAverageDeviation, final boolean checkMultiplicity,
+                                       final boolean checkEquivalencesCount, final boolean allowLowerEquivalencesCount,
+                                       final MultiplicitySectionsBuilder multiplicitySectionsBuilder,
+                                       final boolean allowIncompleteMatch, final Detections detections,
+                                       final boolean optimalAssignment) {
+        return checkDataSet(dataSet,
+                            prepareQuery(querySpectrum, shiftTolerance, maxAverageDeviation, checkMultiplicity,
+                                         checkEquivalencesCount, allowLowerEquivalencesCount,
+                                         multiplicitySectionsBuilder, allowIncompleteMatch, detections,
+                                         optimalAssignment));
+    }
 
+    /**
+     * Checks a data set against a prepared query. Only the data set side is
+     * computed here, without creating a full {@link Spectrum} object from the
+     * data set spectrum.
+     *
+     * @param dataSet       data set to check
+     * @param preparedQuery prepared query, see {@link #prepareQuery(Spectrum, double, double, boolean, boolean, boolean, MultiplicitySectionsBuilder, boolean, Detections, boolean)}
+     *
+     * @return the data set with match attachments if it passed, null otherwise
+     */
+    public static DataSet checkDataSet(final DataSet dataSet, final PreparedQuery preparedQuery) {
+        return checkDataSet(dataSet, Utilities.buildMatchingSignals(dataSet.getSpectrum(), 0), preparedQuery);
+    }
+
+    /**
+     * Checks a data set against a prepared query, with the data set spectrum
+     * already given as columnar spectrum, e.g. if kept in that form for
+     * repeated checks.
+     *
+     * @param dataSet          data set to check
+     * @param columnarSpectrum spectrum of the data set as columnar spectrum
+     * @param preparedQuery    prepared query, see {@link #prepareQuery(Spectrum, double, double, boolean, boolean, boolean, MultiplicitySectionsBuilder, boolean, Detections, boolean)}
+     *
+     * @return the data set with match attachments if it passed, null otherwise
+     *
+     * @see #checkDataSet(DataSet, PreparedQuery)
+     */
+    public static DataSet checkDataSet(final DataSet dataSet, final ColumnarSpectrum columnarSpectrum,
+                                       final PreparedQuery preparedQuery) {
+        return checkDataSet(dataSet, Utilities.buildMatchingSignals(columnarSpectrum, 0), preparedQuery);
+    }
 
-        final Assignment spectralMatchAssignment = detections
+    private static DataSet checkDataSet(final DataSet dataSet, final MatchingSignals matchingSignals,
+                                        final PreparedQuery preparedQuery) {
+        final MatchingSignals queryMatchingSignals = preparedQuery.getQueryMatchingSignals();
+
+        final Assignment spectralMatchAssignment = preparedQuery.getDetections()
                                                            != null
-                                                   ? Similarity.matchSpectra(spectrum, querySpectrum, 0, 0,
-                                                                             shiftTolerance, checkMultiplicity,
-                                                                             checkEquivalencesCount,
-                                                                             allowLowerEquivalencesCount,
+                                                   ? Similarity.matchSpectra(matchingSignals, queryMatchingSignals,
+                                                                             preparedQuery.getShiftTolerance(),
+                                                                             preparedQuery.isCheckMultiplicity(),
+                                                                             preparedQuery.isCheckEquivalencesCount(),
+                                                                             preparedQuery.isAllowLowerEquivalencesCount(),
                                                                              dataSet.getStructure()
                                                                                     .toAtomContainer(),
-                                                                             dataSet.getAssignment(), detections)
-                                                   : Similarity.matchSpectra(spectrum, querySpectrum, 0, 0,
-                                                                             shiftTolerance, checkMultiplicity,
-                                                                             checkEquivalencesCount,
-                                                                             allowLowerEquivalencesCount);
-        dataSet.addAttachment("querySpectrumSignalCount", querySpectrum.getSignalCount());
-        final boolean isCompleteSpectralMatch = spectrum.getSignalCount()
+                                                                             dataSet.getAssignment(),
+                                                                             preparedQuery.getDetections(),
+                                                                             preparedQuery.isOptimalAssignment())
+                                                   : Similarity.matchSpectra(matchingSignals, queryMatchingSignals,
+                                                                             preparedQuery.getShiftTolerance(),
+                                                                             preparedQuery.isCheckMultiplicity(),
+                                                                             preparedQuery.isCheckEquivalencesCount(),
+                                                                             preparedQuery.isAllowLowerEquivalencesCount(),
+                                                                             null, null, null,
+                                                                             preparedQuery.isOptimalAssignment());
+        dataSet.addAttachment("querySpectrumSignalCount", queryMatchingSignals.getSignalCount());
+        final boolean isCompleteSpectralMatch = matchingSignals.getSignalCount()
                 == spectralMatchAssignment.getSetAssignmentsCount(0);
         dataSet.addAttachment("setAssignmentsCount", spectralMatchAssignment.getSetAssignmentsCount(0));
         dataSet.addAttachment("isCompleteSpectralMatch", isCompleteSpectralMatch);
         dataSet.addAttachment("spectralMatchAssignment", spectralMatchAssignment);
 
-        Double[] deviations = Similarity.getDeviations(spectrum, querySpectrum, 0, 0, spectralMatchAssignment);
-        if (allowIncompleteMatch) {
+        double[] deviations = Similarity.getDeviations(matchingSignals, queryMatchingSignals,
+                                                       spectralMatchAssignment);
+        if (preparedQuery.isAllowIncompleteMatch()) {
             deviations = Arrays.stream(deviations)
-                               .filter(Objects::nonNull)
-                               .toArray(Double[]::new);
+                               .filter(deviation -> !Double.isNaN(deviation))
+                               .toArray();
         }
-        final Double averageDeviation = Statistics.calculateAverageDeviation(deviations);
-        if (averageDeviation
-                != null
+        final double averageDeviation = Statistics.calculateAverageDeviation(deviations);
+        if (!Double.isNaN(averageDeviation)
                 && averageDeviation
-                <= maxAverageDeviation) {
+                <= preparedQuery.getMaxAverageDeviation()) {
             dataSet.addAttachment("averageDeviation", averageDeviation);
-            final Double rmsd = Statistics.calculateRMSD(deviations);
-            dataSet.addAttachment("rmsd", rmsd);
-
-            final BitSetFingerprint bitSetFingerprintQuerySpectrum = Similarity.getBitSetFingerprint(querySpectrum, 0,
-                                                                                                     multiplicitySectionsBuilder);
-            final BitSetFingerprint bitSetFingerprintDataSet = Similarity.getBitSetFingerprint(spectrum, 0,
-                                                                                               multiplicitySectionsBuilder);
-            final Double tanimotoCoefficient = Similarity.calculateTanimotoCoefficient(bitSetFingerprintQuerySpectrum,
-                                                                                       bitSetFingerprintDataSet);
+            dataSet.addAttachment("rmsd", Statistics.calculateRMSD(deviations));
+
+            final BitSetFingerprint bitSetFingerprintDataSet = Similarity.getBitSetFingerprint(matchingSignals,
+                                                                                               preparedQuery.getMultiplicitySectionsBuilder());
+            final Double tanimotoCoefficient = Similarity.calculateTanimotoCoefficient(
+                    preparedQuery.getQueryBitSetFingerprint(), bitSetFingerprintDataSet);
             dataSet.addAttachment("tanimoto", tanimotoCoefficient);
 
             return dataSet;
@@ -140,57 +290,330 @@ public class FilterAndRank {
         return null;
     }
 
-    public static List<DataSet> rank(final List<DataSet> dataSetList) {
-        dataSetList.sort((dataSet1, dataSet2) -> {
-            final int setAssignmentsCountComparison = compareNumericDataSetAttachmentKey(dataSet1, dataSet2,
-                                                                                         "setAssignmentsCount");
-            if (setAssignmentsCountComparison
-                    != 0) {
-                return -1
-                        * setAssignmentsCountComparison;
+    /**
+     * Rejects candidates of an index by counting first, see
+     * {@link CandidatePreFilterIndex#preFilter(PreparedQuery, String)}, and then
+     * filters and ranks the remaining ones, see
+     * {@link #filterAndRank(Iterator, PreparedQuery, int, int)}.
+     *
+     * @param candidatePreFilterIndex index over the candidate data sets
+     * @param preparedQuery           prepared query, see {@link #prepareQuery(Spectrum, double, double, boolean, boolean, boolean, MultiplicitySectionsBuilder, boolean, Detections, boolean)}
+     * @param mf                      molecular formula the candidates must have, can be null
+     * @param maxResultCount          maximum number of ranked data sets to keep
+     * @param nThreads                number of threads to use
+     *
+     * @return
+     */
+    public static List<DataSet> filterAndRank(final CandidatePreFilterIndex candidatePreFilterIndex,
+                                              final PreparedQuery preparedQuery, final String mf,
+                                              final int maxResultCount, final int nThreads) {
+        return filterAndRank(candidatePreFilterIndex.preFilter(preparedQuery, mf)
+                                                    .getDataSetList()
+                                                    .iterator(), preparedQuery, maxResultCount, nThreads);
+    }
+
+    /**
+     * Filters and ranks data sets consumed from a stream, see
+     * {@link #filterAndRank(Iterator, PreparedQuery, int, int)}.
+     *
+     * @param dataSetStream  data sets to check
+     * @param preparedQuery  prepared query, see {@link #prepareQuery(Spectrum, double, double, boolean, boolean, boolean, MultiplicitySectionsBuilder, boolean, Detections, boolean)}
+     * @param maxResultCount maximum number of ranked data sets to keep
+     * @param nThreads       number of threads to use
+     *
+     * @return
+     */
+    public static List<DataSet> filterAndRank(final Stream<DataSet> dataSetStream, final PreparedQuery preparedQuery,
+                                              final int maxResultCount, final int nThreads) {
+        return filterAndRank(dataSetStream.iterator(), preparedQuery, maxResultCount, nThreads);
+    }
+
+    /**
+     * Filters data sets consumed from an iterator in parallel and keeps only
+     * the best ranked ones, see
+     * {@link #filterAndRank(Iterator, Function, PreparedQuery, int, int)}. <br>
+     * The iterator's next method is called while holding the lock on the
+     * iterator. For iterators which build the data sets on demand, like
+     * {@link SDFDataSetIterator}, use
+     * {@link #filterAndRank(String, SDFDataSetIterator.RecordConverter, PreparedQuery, int, int)}
+     * instead, which builds the data sets in parallel.
+     *
+     * @param dataSetIterator data sets to check
+     * @param preparedQuery   prepared query, see {@link #prepareQuery(Spectrum, double, double, boolean, boolean, boolean, MultiplicitySectionsBuilder, boolean, Detections, boolean)}
+     * @param maxResultCount  maximum number of ranked data sets to keep
+     * @param nThreads        number of threads to use
+     *
+     * @return
+     */
+    public static List<DataSet> filterAndRank(final Iterator<DataSet> dataSetIterator,
+                                              final PreparedQuery preparedQuery, final int maxResultCount,
+                                              final int nThreads) {
+        return filterAndRank(dataSetIterator, Collections::singletonList, preparedQuery, maxResultCount, nThreads);
+    }
+
+    /**
+     * Filters and ranks the data sets of the records in an SD file, see
+     * {@link #filterAndRank(Iterator, Function, PreparedQuery, int, int)}.
+     * Only the splitting into raw records is done by one thread at a time,
+     * parsing and converting the records runs in parallel. Records which can
+     * not be parsed or converted are reported and skipped.
+     *
+     * @param pathToSDF       path to SD file
+     * @param recordConverter converter of a parsed record into data sets, e.g.
+     *                        {@link casekit.nmr.dbservice.NMRShiftDB#getDataSetsFromNMRShiftDBRecord(IAtomContainer, String[])}
+     * @param preparedQuery   prepared query, see {@link #prepareQuery(Spectrum, double, double, boolean, boolean, boolean, MultiplicitySectionsBuilder, boolean, Detections, boolean)}
+     * @param maxResultCount  maximum number of ranked data sets to keep
+     * @param nThreads        number of threads to use
+     *
+     * @return
+     *
+     * @throws FileNotFoundException
+     */
+    public static List<DataSet> filterAndRank(final String pathToSDF,
+                                              final SDFDataSetIterator.RecordConverter recordConverter,
+                                              final PreparedQuery preparedQuery, final int maxResultCount,
+                                              final int nThreads) throws FileNotFoundException {
+        try (final SDFRecordIterator sdfRecordIterator = new SDFRecordIterator(pathToSDF)) {
+            return filterAndRank(sdfRecordIterator, record -> {
+                final IAtomContainer structure = SDFRecordIterator.parseRecord(record);
+                if (structure
+                        == null) {
+                    return null;
+                }
+                try {
+                    return recordConverter.convert(structure);
+                } catch (final CDKException e) {
+                    e.printStackTrace();
+                }
+
+                return null;
+            }, preparedQuery, maxResultCount, nThreads);
+        }
+    }
+
+    /**
+     * Converts elements consumed from an iterator into data sets, filters
+     * them in parallel and keeps only the best ranked ones, in the same order
+     * as {@link #rank(List)} applied on {@link #filter(List, PreparedQuery)}
+     * would return them first. <br>
+     * Only taking the next element from the iterator is done by one thread
+     * at a time, the conversion, e.g. parsing of raw records, and the check
+     * of the data sets run in parallel. Each thread keeps its own bounded heap
+     * of the best ranked data sets, so the memory needed for the results does
+     * not depend on the number of consumed elements. <br>
+     * Failures are isolated per element and per data set: they are reported
+     * and the affected data sets are skipped.
+     *
+     * @param sourceIterator elements to convert into data sets
+     * @param converter      conversion of one element into its data sets, may return null
+     * @param preparedQuery  prepared query, see {@link #prepareQuery(Spectrum, double, double, boolean, boolean, boolean, MultiplicitySectionsBuilder, boolean, Detections, boolean)}
+     * @param maxResultCount maximum number of ranked data sets to keep
+     * @param nThreads       number of threads to use
+     * @param <S>            element type
+     *
+     * @return
+     */
+    public static <S> List<DataSet> filterAndRank(final Iterator<S> sourceIterator,
+                                                  final Function<S, List<DataSet>> converter,
+                                                  final PreparedQuery preparedQuery, final int maxResultCount,
+                                                  final int nThreads) {
+        if (maxResultCount
+                <= 0) {
+            return new ArrayList<>();
+        }
+        final boolean check = preparedQuery.getQuerySpectrum()
+                                           .getNDim()
+                == 1
+                && preparedQuery.getQuerySpectrum()
+                                .getNuclei()[0].equals("13C");
+        final AtomicLong indexCounter = new AtomicLong();
+        final List<Future<PriorityQueue<RankedDataSet>>> futures = new ArrayList<>();
+        final ExecutorService executor = MultiThreading.initExecuter(nThreads);
+        final List<RankedDataSet> rankedDataSetList = new ArrayList<>();
+        try {
+            for (int i = 0; i
+                    < nThreads; i++) {
+                futures.add(executor.submit(() -> {
+                    // worst ranked data set on top
+                    final PriorityQueue<RankedDataSet> rankedDataSets = new PriorityQueue<>(
+                            (rankedDataSet1, rankedDataSet2) -> compareRankedDataSets(rankedDataSet2,
+                                                                                      rankedDataSet1));
+                    S source;
+                    long index;
+                    List<DataSet> dataSets;
+                    DataSet dataSet;
+                    while (true) {
+                        synchronized (sourceIterator) {
+                            try {
+                                if (!sourceIterator.hasNext()) {
+                                    break;
+                                }
+                                source = sourceIterator.next();
+                            } catch (final RuntimeException e) {
+                                // the iterator is not usable anymore, keep the results so far
+                                e.printStackTrace();
+                                break;
+                            }
+                            index = indexCounter.getAndIncrement();
+                        }
+                        try {
+                            dataSets = converter.apply(source);
+                        } catch (final Exception e) {
+                            e.printStackTrace();
+                            continue;
+                        }
+                        if (dataSets
+                                == null) {
+                            continue;
+                        }
+                        for (int subIndex = 0; subIndex
+                                < dataSets.size(); subIndex++) {
+                            try {
+                                dataSet = dataSets.get(subIndex);
+                                if (check) {
+                                    dataSet = checkDataSet(dataSet, preparedQuery);
+                                }
+                                if (dataSet
+                                        != null) {
+                                    offerRankedDataSet(rankedDataSets, buildRankedDataSet(dataSet, index, subIndex),
+                                                       maxResultCount);
+                                }
+                            } catch (final Exception e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    }
+
+                    return rankedDataSets;
+                }));
             }
+            for (final Future<PriorityQueue<RankedDataSet>> future : futures) {
+                try {
+                    rankedDataSetList.addAll(future.get());
+                } catch (final ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+        } catch (final InterruptedException e) {
+            e.printStackTrace();
+            for (final Future<PriorityQueue<RankedDataSet>> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread()
+                  .interrupt();
+        } finally {
+            MultiThreading.stopExecuter(executor, 5);
+        }
+        rankedDataSetList.sort(FilterAndRank::compareRankedDataSets);
+
+        return rankedDataSetList.stream()
+                                .limit(maxResultCount)
+                                .map(RankedDataSet::getDataSet)
+                                .collect(Collectors.toList());
+    }
 
-            return compareNumericDataSetAttachmentKey(dataSet1, dataSet2, "averageDeviation");
-        });
+    private static void offerRankedDataSet(final PriorityQueue<RankedDataSet> rankedDataSets,
+                                           final RankedDataSet rankedDataSet, final int maxResultCount) {
+        if (rankedDataSets.size()
+                < maxResultCount) {
+            rankedDataSets.add(rankedDataSet);
+        } else if (compareRankedDataSets(rankedDataSet, rankedDataSets.peek())
+                < 0) {
+            rankedDataSets.poll();
+            rankedDataSets.add(rankedDataSet);
+        }
+    }
+
+    public static List<DataSet> rank(final List<DataSet> dataSetList) {
+        final List<RankedDataSet> rankedDataSetList = new ArrayList<>(dataSetList.size());
+        for (int i = 0; i
+                < dataSetList.size(); i++) {
+            rankedDataSetList.add(buildRankedDataSet(dataSetList.get(i), i, 0));
+        }
+        rankedDataSetList.sort(FilterAndRank::compareRankedDataSets);
+        for (int i = 0; i
+                < rankedDataSetList.size(); i++) {
+            dataSetList.set(i, rankedDataSetList.get(i)
+                                                .getDataSet());
+        }
 
         return dataSetList;
     }
 
-    private static int compareNumericDataSetAttachmentKey(final DataSet dataSet1, final DataSet dataSet2,
-                                                          final String attachmentKey) {
-        Double valueDataSet1 = null;
-        Double valueDataSet2 = null;
-        try {
-            valueDataSet1 = Double.parseDouble(String.valueOf(dataSet1.getAttachment()
-                                                                      .get(attachmentKey)));
-        } catch (final NullPointerException | NumberFormatException e) {
-            //                e.printStackTrace();
+    private static RankedDataSet buildRankedDataSet(final DataSet dataSet, final long index, final int subIndex) {
+        return new RankedDataSet(dataSet, getNumericDataSetAttachment(dataSet, "setAssignmentsCount"),
+                                 getNumericDataSetAttachment(dataSet, "averageDeviation"), index, subIndex);
+    }
+
+    /**
+     * Compares two ranked data sets: a higher set assignments count first, then
+     * a lower average deviation, then a lower index and sub index. Missing
+     * values are ranked as in previous versions of {@link #rank(List)}.
+     *
+     * @param rankedDataSet1 first ranked data set
+     * @param rankedDataSet2 second ranked data set
+     *
+     * @return
+     */
+    private static int compareRankedDataSets(final RankedDataSet rankedDataSet1,
+                                             final RankedDataSet rankedDataSet2) {
+        final int setAssignmentsCountComparison = compareNumericValues(rankedDataSet1.getSetAssignmentsCount(),
+                                                                       rankedDataSet2.getSetAssignmentsCount());
+        if (setAssignmentsCountComparison
+                != 0) {
+            return -1
+                    * setAssignmentsCountComparison;
+        }
+        final int averageDeviationComparison = compareNumericValues(rankedDataSet1.getAverageDeviation(),
+                                                                    rankedDataSet2.getAverageDeviation());
+        if (averageDeviationComparison
+                != 0) {
+            return averageDeviationComparison;
+        }
+
+        final int indexComparison = Long.compare(rankedDataSet1.getIndex(), rankedDataSet2.getIndex());
+        if (indexComparison
+                != 0) {
+            return indexComparison;
+        }
+
+        return Integer.compare(rankedDataSet1.getSubIndex(), rankedDataSet2.getSubIndex());
+    }
+
+    private static double getNumericDataSetAttachment(final DataSet dataSet, final String attachmentKey) {
+        if (dataSet.getAttachment()
+                == null) {
+            return Double.NaN;
+        }
+        final Object value = dataSet.getAttachment()
+                                    .get(attachmentKey);
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
         }
         try {
-            valueDataSet2 = Double.parseDouble(String.valueOf(dataSet2.getAttachment()
-                                                                      .get(attachmentKey)));
-        } catch (final NullPointerException | NumberFormatException e) {
+            return Double.parseDouble(String.valueOf(value));
+        } catch (final NumberFormatException e) {
             //                e.printStackTrace();
         }
 
-        if (valueDataSet1
-                != null
-                && valueDataSet2
-                != null) {
-            if (valueDataSet1
-                    < valueDataSet2) {
+        return Double.NaN;
+    }
+
+    private static int compareNumericValues(final double value1, final double value2) {
+        if (!Double.isNaN(value1)
+                && !Double.isNaN(value2)) {
+            if (value1
+                    < value2) {
                 return -1;
-            } else if (valueDataSet1
-                    > valueDataSet2) {
+            } else if (value1
+                    > value2) {
                 return 1;
             }
             return 0;
         }
-        if (valueDataSet1
-                != null) {
+        if (!Double.isNaN(value1)) {
             return -1;
-        } else if (valueDataSet2
-                != null) {
+        } else if (!Double.isNaN(value2)) {
             return 1;
         }
 
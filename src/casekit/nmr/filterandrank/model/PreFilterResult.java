@@ -0,0 +1,41 @@
+package casekit.nmr.filterandrank.model;
+
+import casekit.nmr.model.DataSet;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.List;
+
+/**
+ * Candidate data sets which were not rejected by a pre-filter, together with
+ * the number of all checked candidates.
+ */
+@AllArgsConstructor
+@Getter
+@ToString
+public class PreFilterResult {
+
+    @ToString.Exclude
+    private final List<DataSet> dataSetList;
+    private final int candidateCount;
+
+    @ToString.Include(name = "prunedCount")
+    public int getPrunedCount() {
+        return this.candidateCount
+                - this.dataSetList.size();
+    }
+
+    /**
+     * Returns the fraction of rejected candidates, between 0 and 1.
+     *
+     * @return
+     */
+    public double getPruningRatio() {
+        return this.candidateCount
+                       == 0
+               ? 0
+               : (double) this.getPrunedCount()
+                       / this.candidateCount;
+    }
+}
@@ -0,0 +1,32 @@
+package casekit.nmr.filterandrank.model;
+
+import casekit.nmr.analysis.MultiplicitySectionsBuilder;
+import casekit.nmr.elucidation.model.Detections;
+import casekit.nmr.model.Spectrum;
+import casekit.nmr.similarity.model.MatchingSignals;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.openscience.cdk.fingerprint.BitSetFingerprint;
+
+/**
+ * Query spectrum with its filter settings and everything derived from it
+ * which stays the same for all candidates of a filter run, e.g. the query
+ * signals sorted by shift and the query fingerprint.
+ */
+@AllArgsConstructor
+@Getter
+public class PreparedQuery {
+
+    private final Spectrum querySpectrum;
+    private final MatchingSignals queryMatchingSignals;
+    private final BitSetFingerprint queryBitSetFingerprint;
+    private final double shiftTolerance;
+    private final double maxAverageDeviation;
+    private final boolean checkMultiplicity;
+    private final boolean checkEquivalencesCount;
+    private final boolean allowLowerEquivalencesCount;
+    private final MultiplicitySectionsBuilder multiplicitySectionsBuilder;
+    private final boolean allowIncompleteMatch;
+    private final Detections detections;
+    private final boolean optimalAssignment;
+}
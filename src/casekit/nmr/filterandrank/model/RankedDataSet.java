@@ -0,0 +1,23 @@
+package casekit.nmr.filterandrank.model;
+
+import casekit.nmr.model.DataSet;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Data set with its ranking scores taken once from its attachments. Missing
+ * scores are stored as NaN. The index is the position of the data set, or of
+ * the input element it was built from, in the input and the sub index its
+ * position among the data sets built from the same input element. Both keep
+ * the ranking stable.
+ */
+@AllArgsConstructor
+@Getter
+public class RankedDataSet {
+
+    private final DataSet dataSet;
+    private final double setAssignmentsCount;
+    private final double averageDeviation;
+    private final long index;
+    private final int subIndex;
+}
@@ -17,6 +17,7 @@ import org.openscience.cdk.tools.manipulator.AtomContainerManipulator;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.stream.Stream;
 
 public class ErtlFunctionalGroupsUtilities {
 
@@ -25,57 +26,78 @@ public class ErtlFunctionalGroupsUtilities {
         final List<DataSet> functionalGroupDataSets = new ArrayList<>();
         final ErtlFunctionalGroupsFinder ertlFunctionalGroupsFinder = new ErtlFunctionalGroupsFinder(
                 ErtlFunctionalGroupsFinder.Mode.NO_GENERALIZATION);
-        List<DataSet> subDataSetList;
+        for (final DataSet dataSet : dataSetList) {
+            functionalGroupDataSets.addAll(buildFunctionalGroupDataSets(dataSet, ertlFunctionalGroupsFinder));
+        }
+
+        return functionalGroupDataSets;
+    }
+
+    /**
+     * Same as {@link #buildFunctionalGroupDataSets(List, String[])} but
+     * lazily, e.g. for data sets read one at a time from a database file.
+     *
+     * @param dataSetStream data sets to build the functional group data sets for
+     * @param nuclei        nuclei
+     *
+     * @return
+     */
+    public static Stream<DataSet> buildFunctionalGroupDataSets(final Stream<DataSet> dataSetStream,
+                                                               final String[] nuclei) {
+        final ErtlFunctionalGroupsFinder ertlFunctionalGroupsFinder = new ErtlFunctionalGroupsFinder(
+                ErtlFunctionalGroupsFinder.Mode.NO_GENERALIZATION);
+
+        return dataSetStream.flatMap(
+                dataSet -> buildFunctionalGroupDataSets(dataSet, ertlFunctionalGroupsFinder).stream());
+    }
+
+    private static List<DataSet> buildFunctionalGroupDataSets(final DataSet dataSet,
+                                                              final ErtlFunctionalGroupsFinder ertlFunctionalGroupsFinder) {
         List<IAtomContainer> groups;
         List<ConnectionTree> fragmentTrees;
         ConnectionTree fragmentTree;
-        IAtomContainer structure;
         String atomTypeInSpectrum;
-        Aromaticity[] aromaticities;
-        for (final DataSet dataSet : dataSetList) {
-            structure = dataSet.getStructure()
-                               .toAtomContainer();
-            aromaticities = buildDefaultAromaticities(structure);
+        final IAtomContainer structure = dataSet.getStructure()
+                                                .toAtomContainer();
+        final Aromaticity[] aromaticities = buildDefaultAromaticities(structure);
+        fragmentTrees = new ArrayList<>();
+        for (final Aromaticity aromaticity : aromaticities) {
+            try {
+                Utils.setAromaticityAndKekulize(structure, aromaticity);
+                groups = ertlFunctionalGroupsFinder.find(structure, false);
+            } catch (final IllegalArgumentException | CDKException e) {
+                e.printStackTrace();
+                continue;
+            }
+            restoreOriginalEnvironmentalCarbons(groups, structure);
             fragmentTrees = new ArrayList<>();
-            for (final Aromaticity aromaticity : aromaticities) {
-                try {
-                    Utils.setAromaticityAndKekulize(structure, aromaticity);
-                    groups = ertlFunctionalGroupsFinder.find(structure, false);
-                } catch (final IllegalArgumentException | CDKException e) {
-                    e.printStackTrace();
-                    continue;
-                }
-                restoreOriginalEnvironmentalCarbons(groups, structure);
-                fragmentTrees = new ArrayList<>();
-                for (final IAtomContainer group : groups) {
-                    // each group has to contain at least one atom of specific spectrum
-                    atomTypeInSpectrum = casekit.nmr.utils.Utils.getAtomTypeFromNucleus(dataSet.getSpectrum()
-                                                                                               .getNuclei()[0]);
-                    if (atomTypeInSpectrum.equals("H")) {
-                        if (AtomContainerManipulator.getImplicitHydrogenCount(group)
-                                == 0) {
-                            continue;
-                        }
-                    } else if (casekit.nmr.utils.Utils.getAtomTypeIndicesByElement(group, atomTypeInSpectrum)
-                                                      .isEmpty()) {
+            for (final IAtomContainer group : groups) {
+                // each group has to contain at least one atom of specific spectrum
+                atomTypeInSpectrum = casekit.nmr.utils.Utils.getAtomTypeFromNucleus(dataSet.getSpectrum()
+                                                                                           .getNuclei()[0]);
+                if (atomTypeInSpectrum.equals("H")) {
+                    if (AtomContainerManipulator.getImplicitHydrogenCount(group)
+                            == 0) {
                         continue;
                     }
-                    fragmentTree = Fragmentation.buildFragmentTree(group, 0, null, new HashSet<>(), false);
-                    FragmentationUtilities.adjustNodeKeys(fragmentTree, structure);
-                    FragmentationUtilities.closeRings(fragmentTree, structure);
-
-                    fragmentTrees.add(fragmentTree);
+                } else if (casekit.nmr.utils.Utils.getAtomTypeIndicesByElement(group, atomTypeInSpectrum)
+                                                  .isEmpty()) {
+                    continue;
                 }
-            }
-            FragmentationUtilities.removeDuplicates(fragmentTrees);
-            subDataSetList = Fragmentation.fragmentTreesToSubDataSets(dataSet, fragmentTrees);
-            if (subDataSetList
-                    != null) {
-                functionalGroupDataSets.addAll(subDataSetList);
+                fragmentTree = Fragmentation.buildFragmentTree(group, 0, null, new HashSet<>(), false);
+                FragmentationUtilities.adjustNodeKeys(fragmentTree, structure);
+                FragmentationUtilities.closeRings(fragmentTree, structure);
+
+                fragmentTrees.add(fragmentTree);
             }
         }
+        FragmentationUtilities.removeDuplicates(fragmentTrees);
+        final List<DataSet> subDataSetList = Fragmentation.fragmentTreesToSubDataSets(dataSet, fragmentTrees);
 
-        return functionalGroupDataSets;
+        return subDataSetList
+                       != null
+               ? subDataSetList
+               : new ArrayList<>();
     }
 
     /**
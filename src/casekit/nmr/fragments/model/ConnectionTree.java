@@ -29,12 +29,19 @@ public class ConnectionTree {
     private final ConnectionTreeNode root;
     private final Set<Integer> keySet;
     private int maxSphere;
+    // key -> node index, kept up to date when adding nodes and rebuilt after other changes
+    private Map<Integer, ConnectionTreeNode> nodesByKey;
+    // nodes (incl. ring closure nodes) per sphere in tree order, rebuilt after any change
+    private List<List<ConnectionTreeNode>> nodesInSpheres;
 
     public ConnectionTree(final IAtom rootAtom, final int key) {
         this.root = new ConnectionTreeNode(rootAtom, key, 0, null, null);
         this.keySet = new HashSet<>();
         this.keySet.add(this.root.getKey());
         this.maxSphere = 0;
+        this.nodesByKey = new HashMap<>();
+        this.nodesByKey.put(this.root.getKey(), this.root);
+        this.nodesInSpheres = null;
     }
 
     /**
@@ -119,6 +126,65 @@ public class ConnectionTree {
         }
     }
 
+    /**
+     * Returns a copy of a given connection tree which only contains the nodes
+     * up to a given maximum sphere, incl. the ring closures between them.
+     * The order of child nodes is kept. <br>
+     * Applied on a connection tree built by BFS and before the ranking of child
+     * nodes, the result is the same connection tree as built by BFS with that
+     * maximum sphere.
+     *
+     * @param connectionTree connection tree
+     * @param maxSphere      maximum sphere of truncated connection tree
+     *
+     * @return
+     */
+    public static ConnectionTree buildTruncatedTree(final ConnectionTree connectionTree, final int maxSphere) {
+        final ConnectionTreeNode rootNode = connectionTree.getRootNode();
+        final ConnectionTree truncatedTree = new ConnectionTree(rootNode.getAtom(), rootNode.getKey());
+        final Map<ConnectionTreeNode, ConnectionTreeNode> copiedNodes = new IdentityHashMap<>();
+        // pairs of copied ring closure node and its original ring closure parent
+        final List<ConnectionTreeNode[]> copiedRingClosureNodes = new ArrayList<>();
+        copiedNodes.put(rootNode, truncatedTree.getRootNode());
+        buildTruncatedTree(truncatedTree, rootNode, truncatedTree.getRootNode(), maxSphere, copiedNodes,
+                           copiedRingClosureNodes);
+        // ring closure parents can be set only after all nodes are copied
+        for (final ConnectionTreeNode[] copiedRingClosureNode : copiedRingClosureNodes) {
+            copiedRingClosureNode[0].setRingClosureParent(copiedNodes.get(copiedRingClosureNode[1]));
+        }
+
+        return truncatedTree;
+    }
+
+    private static void buildTruncatedTree(final ConnectionTree truncatedTree, final ConnectionTreeNode node,
+                                           final ConnectionTreeNode copiedNode, final int maxSphere,
+                                           final Map<ConnectionTreeNode, ConnectionTreeNode> copiedNodes,
+                                           final List<ConnectionTreeNode[]> copiedRingClosureNodes) {
+        ConnectionTreeNode copiedChildNode;
+        for (final ConnectionTreeNode childNode : node.getChildNodes()) {
+            if (childNode.isRingClosureNode()) {
+                if (childNode.getRingClosureParent()
+                             .getSphere()
+                        > maxSphere) {
+                    continue;
+                }
+                copiedChildNode = new ConnectionTreeNode(null, childNode.getSphere(), copiedNode,
+                                                         childNode.getBondToParent());
+                copiedRingClosureNodes.add(new ConnectionTreeNode[]{copiedChildNode, childNode.getRingClosureParent()});
+                truncatedTree.addNode(copiedChildNode, copiedNode);
+            } else if (childNode.getSphere()
+                    <= maxSphere) {
+                copiedChildNode = new ConnectionTreeNode(childNode.getAtom(), childNode.getKey(),
+                                                         childNode.getSphere(), copiedNode,
+                                                         childNode.getBondToParent());
+                copiedNodes.put(childNode, copiedChildNode);
+                truncatedTree.addNode(copiedChildNode, copiedNode);
+                buildTruncatedTree(truncatedTree, childNode, copiedChildNode, maxSphere, copiedNodes,
+                                   copiedRingClosureNodes);
+            }
+        }
+    }
+
     public static boolean addSubtree(final ConnectionTree connectionTree, final int parentNodeKey,
                                      final ConnectionTree subtree, final IBond bondToLink) {
         if (!connectionTree.containsKey(parentNodeKey)) {
@@ -146,6 +212,7 @@ public class ConnectionTree {
                     .removeChildNode(node);
             }
         }
+        subtree.resetNodeIndices();
 
         final ConnectionTreeNode parentNode = connectionTree.getNode(parentNodeKey);
         for (final ConnectionTreeNode subtreeNode : subtree.getNodes(true)) {
@@ -177,11 +244,14 @@ public class ConnectionTree {
                 connectionTree.maxSphere = subtreeNode.getSphere();
             }
         }
+        connectionTree.resetNodeIndices();
+        subtree.resetNodeIndices();
 
         return true;
     }
 
     public void initKeySet() {
+        this.resetNodeIndices();
         this.keySet.clear();
         this.keySet.addAll(this.getNodes(false)
                                .stream()
@@ -222,12 +292,54 @@ public class ConnectionTree {
         return true;
     }
 
+    /**
+     * Adds a new node to a given parent node of this tree, without searching
+     * the parent node by its key.
+     *
+     * @param newNodeAtomData atom of new node
+     * @param newNodeKey      key of new node
+     * @param parentNode      parent node, has to be part of this tree
+     * @param bondToParent    bond between new node and parent node
+     *
+     * @return the new node or null if the key already exists in this tree
+     */
+    public ConnectionTreeNode addNode(final IAtom newNodeAtomData, final int newNodeKey,
+                                      final ConnectionTreeNode parentNode, final IBond bondToParent) {
+        if (this.containsKey(newNodeKey)) {
+            return null;
+        }
+        final ConnectionTreeNode newNode = new ConnectionTreeNode(newNodeAtomData, newNodeKey, parentNode.getSphere()
+                + 1, parentNode, bondToParent);
+        this.addNode(newNode, parentNode);
+
+        return newNode;
+    }
+
+    /**
+     * Adds a ring closure node to a given parent node of this tree, without
+     * searching the parent nodes by their keys.
+     *
+     * @param parentNode            parent node, has to be part of this tree
+     * @param ringClosureParentNode ring closure partner, has to be part of this tree
+     * @param bondToParent          bond between both nodes
+     */
+    public void addRingClosureNode(final ConnectionTreeNode parentNode, final ConnectionTreeNode ringClosureParentNode,
+                                   final IBond bondToParent) {
+        this.addNode(new ConnectionTreeNode(ringClosureParentNode, parentNode.getSphere()
+                + 1, parentNode, bondToParent), parentNode);
+    }
+
     private void addNode(final ConnectionTreeNode newNode, final ConnectionTreeNode parentNode) {
         parentNode.addChildNode(newNode, newNode.getBondToParent());
 
         if (!newNode.isRingClosureNode()) {
             this.keySet.add(newNode.getKey());
+            if (this.nodesByKey
+                    != null) {
+                this.nodesByKey.putIfAbsent(newNode.getKey(), newNode);
+            }
         }
+        this.nodesInSpheres = null;
         if (newNode.getSphere()
                 > this.maxSphere) {
             this.maxSphere = newNode.getSphere();
@@ -284,10 +396,41 @@ public class ConnectionTree {
         if (!this.containsKey(key)) {
             return null;
         }
+        if (this.nodesByKey
+                == null) {
+            this.nodesByKey = new HashMap<>();
+            this.collectNodesByKey(this.root);
+        }
+        final ConnectionTreeNode node = this.nodesByKey.get(key);
+        if (node
+                != null) {
+            return node;
+        }
 
+        // key was added without node, see addKey
         return this.findNode(key, this.root);
     }
 
+    private void collectNodesByKey(final ConnectionTreeNode currentNode) {
+        if (currentNode.isRingClosureNode()) {
+            return;
+        }
+        this.nodesByKey.putIfAbsent(currentNode.getKey(), currentNode);
+        for (final ConnectionTreeNode childNode : currentNode.getChildNodes()) {
+            this.collectNodesByKey(childNode);
+        }
+    }
+
+    /**
+     * Resets the node lookups of this tree. This has to be done after changing
+     * the tree directly via its nodes, e.g. after changing the order of child
+     * nodes when ranking them.
+     */
+    public void resetNodeIndices() {
+        this.nodesByKey = null;
+        this.nodesInSpheres = null;
+    }
+
     private ConnectionTreeNode findNode(final int key, final ConnectionTreeNode currentNode) {
         if (currentNode.isRingClosureNode()) {
             return null;
@@ -328,34 +471,58 @@ public class ConnectionTree {
     }
 
     public List<ConnectionTreeNode> getNodesInSphere(final int sphere, final boolean withRingClosureNodes) {
-        final List<ConnectionTreeNode> nodesInSphere = this.findNodesInSphere(sphere, this.root, new ArrayList<>());
+        if (this.nodesInSpheres
+                == null) {
+            this.nodesInSpheres = new ArrayList<>();
+            this.collectNodesInSpheres(this.root, new HashSet<>());
+        }
+        if (sphere
+                < 0
+                || sphere
+                >= this.nodesInSpheres.size()) {
+            return new ArrayList<>();
+        }
         if (withRingClosureNodes) {
-            return nodesInSphere;
+            return new ArrayList<>(this.nodesInSpheres.get(sphere));
         }
-        // remove ring closure nodes
-        final List<ConnectionTreeNode> nodesInSphereToRemove = new ArrayList<>();
-        for (final ConnectionTreeNode nodeInSphere : nodesInSphere) {
-            if (nodeInSphere.isRingClosureNode()) {
-                nodesInSphereToRemove.add(nodeInSphere);
+        // without ring closure nodes
+        final List<ConnectionTreeNode> nodesInSphere = new ArrayList<>();
+        for (final ConnectionTreeNode nodeInSphere : this.nodesInSpheres.get(sphere)) {
+            if (!nodeInSphere.isRingClosureNode()) {
+                nodesInSphere.add(nodeInSphere);
             }
         }
-        nodesInSphere.removeAll(nodesInSphereToRemove);
 
         return nodesInSphere;
     }
 
-    private List<ConnectionTreeNode> findNodesInSphere(final int sphere, final ConnectionTreeNode currentNode,
-                                                       final List<ConnectionTreeNode> indicesInSphere) {
-        if (currentNode.getSphere()
-                == sphere) {
-            indicesInSphere.add(currentNode);
-            return indicesInSphere;
+    /**
+     * Collects the nodes of all spheres in one traversal. A node is not
+     * collected if one of its ancestors is in the same sphere, as it is done
+     * when searching the nodes of a single sphere from the root.
+     *
+     * @param currentNode   current node
+     * @param spheresInPath spheres of the ancestors of the current node
+     */
+    private void collectNodesInSpheres(final ConnectionTreeNode currentNode, final Set<Integer> spheresInPath) {
+        final int sphere = currentNode.getSphere();
+        final boolean isFirstInPath = spheresInPath.add(sphere);
+        if (isFirstInPath
+                && sphere
+                >= 0) {
+            while (this.nodesInSpheres.size()
+                    <= sphere) {
+                this.nodesInSpheres.add(new ArrayList<>());
+            }
+            this.nodesInSpheres.get(sphere)
+                               .add(currentNode);
         }
         for (final ConnectionTreeNode childNode : currentNode.getChildNodes()) {
-            this.findNodesInSphere(sphere, childNode, indicesInSphere);
+            this.collectNodesInSpheres(childNode, spheresInPath);
+        }
+        if (isFirstInPath) {
+            spheresInPath.remove(sphere);
         }
-
-        return indicesInSphere;
     }
 
     public IBond getBond(final int nodeKey1, final int nodeKey2) {
@@ -430,6 +597,7 @@ public class ConnectionTree {
                 parent.removeChildNode(node);
             }
             this.keySet.remove(node.getKey());
+            this.resetNodeIndices();
         }
     }
 
@@ -461,6 +629,7 @@ public class ConnectionTree {
                                               .indexOf(childNode2);
         Collections.swap(parentNode.getChildNodes(), indexChildNode1, indexChildNode2);
         Collections.swap(parentNode.getBondsToChildren(), indexChildNode1, indexChildNode2);
+        this.resetNodeIndices();
 
 
         return (parentNode.getChildNodes()
@@ -33,72 +33,67 @@ import java.util.*;
 public class HOSECodeBuilder {
 
     /**
-     * Creates a partial sphere string content from the children of a given parent node.
+     * Appends a partial sphere string content from the children of a given parent node.
      *
      * @param nodeInPrevSphere          parent node to create a partial sphere string content from
      * @param useBremserElementNotation whether to use Bremser notation
-     *
-     * @return
+     * @param HOSECode                  HOSE code string to append to
      *
      * @throws CDKException
      */
-    private static List<String> buildPositionsInSphere(final ConnectionTreeNode nodeInPrevSphere,
-                                                       final boolean useBremserElementNotation) throws CDKException {
+    private static void buildPositionsInSphere(final ConnectionTreeNode nodeInPrevSphere,
+                                               final boolean useBremserElementNotation,
+                                               final StringBuilder HOSECode) throws CDKException {
         final List<ConnectionTreeNode> nodesInSphere = nodeInPrevSphere.getChildNodes();
-        final List<String> positionsInSphere = new ArrayList<>();
         ConnectionTreeNode nodeInSphere;
         IBond bond;
-        String position;
+        String bondSymbol;
         for (int j = 0; j
                 < nodesInSphere.size(); j++) {
             nodeInSphere = nodesInSphere.get(j);
             bond = nodeInPrevSphere.getBondsToChildren()
                                    .get(j);
-            position = "";
-            if (HOSECodeUtilities.getSymbolForBond(bond)
+            bondSymbol = HOSECodeUtilities.getSymbolForBond(bond);
+            if (bondSymbol
                     == null) {
                 throw new CDKException(Thread.currentThread()
                                              .getStackTrace()[1].getMethodName()
                                                + ": no bond information");
             }
-            position += HOSECodeUtilities.getSymbolForBond(bond);
+            HOSECode.append(bondSymbol);
             if (nodeInSphere.isRingClosureNode()) {
-                position += "&";
+                HOSECode.append("&");
             } else {
                 if (useBremserElementNotation) {
-                    position += HOSECodeUtilities.toHOSECodeSymbol(nodeInSphere.getAtom()
-                                                                               .getSymbol());
+                    HOSECode.append(HOSECodeUtilities.toHOSECodeSymbol(nodeInSphere.getAtom()
+                                                                                   .getSymbol()));
                 } else {
-                    position += nodeInSphere.getAtom()
-                                            .getSymbol();
+                    HOSECode.append(nodeInSphere.getAtom()
+                                                .getSymbol());
                 }
                 //                if(nodeInSphere.getAtom().getImplicitHydrogenCount() != null){
                 //                    position += "[" + nodeInSphere.getAtom().getImplicitHydrogenCount() + "]";
                 //                }
-                position += buildFormalChargeCode(nodeInSphere.getAtom());
+                HOSECode.append(buildFormalChargeCode(nodeInSphere.getAtom()));
             }
-            positionsInSphere.add(position);
         }
-
-        return positionsInSphere;
     }
 
     /**
-     * Builds the content of a sphere of the HOSE code which is to generate.
+     * Appends the content of a sphere of the HOSE code which is to generate.
      *
      * @param connectionTree            connection tree to use
      * @param sphere                    sphere to selected from connection tree
      * @param delimiter                 sphere's delimiter
      * @param useBremserElementNotation whether to use Bremser notation
-     *
-     * @return
+     * @param HOSECode                  HOSE code string to append to
      *
      * @throws CDKException
      */
-    private static String buildSphereString(final ConnectionTree connectionTree, final int sphere,
-                                            final String delimiter,
-                                            final boolean useBremserElementNotation) throws CDKException {
-        StringBuilder sphereString = new StringBuilder();
+    private static void buildSphereString(final ConnectionTree connectionTree, final int sphere,
+                                          final String delimiter, final boolean useBremserElementNotation,
+                                          final StringBuilder HOSECode) throws CDKException {
+        final int sphereStringStart = HOSECode.length();
         final List<ConnectionTreeNode> nodesInPrevSphere = connectionTree.getNodesInSphere(sphere
                                                                                                    - 1, true);
         ConnectionTreeNode nodeInPrevSphere;
@@ -111,28 +106,27 @@ public class HOSECodeBuilder {
                 if ((i
                         == nodesInPrevSphere.size()
                         - 1)
-                        && sphereString.toString()
-                                       .endsWith(",")) {
-                    sphereString = new StringBuilder(sphereString.substring(0, sphereString.length()
-                            - 1));
+                        && (HOSECode.length()
+                        > sphereStringStart)
+                        && (HOSECode.charAt(HOSECode.length()
+                                                    - 1)
+                        == ',')) {
+                    HOSECode.setLength(HOSECode.length()
+                                               - 1);
                 }
                 continue;
             }
             // for all child nodes in the requested sphere
             if (nodeInPrevSphere.hasChildren()) {
-                for (final String position : buildPositionsInSphere(nodeInPrevSphere, useBremserElementNotation)) {
-                    sphereString.append(position);
-                }
+                buildPositionsInSphere(nodeInPrevSphere, useBremserElementNotation, HOSECode);
             }
             // add delimiter
             if (i
                     < nodesInPrevSphere.size()
                     - 1) {
-                sphereString.append(delimiter);
+                HOSECode.append(delimiter);
             }
         }
-
-        return sphereString.toString();
     }
 
     private static String buildFormalChargeCode(final IAtom atom) {
@@ -170,18 +164,36 @@ public class HOSECodeBuilder {
      */
     private static String buildHOSECodeString(final ConnectionTree connectionTree,
                                               final boolean useBremserElementNotation) throws CDKException {
+        return buildHOSECodeString(connectionTree, useBremserElementNotation, new StringBuilder());
+    }
+
+    /**
+     * Actual function to build a HOSE code.
+     *
+     * @param connectionTree            connection tree to use
+     * @param useBremserElementNotation whether to use Bremser notation
+     * @param HOSECode                  string builder to reuse, will be cleared
+     *
+     * @return
+     *
+     * @throws CDKException
+     */
+    private static String buildHOSECodeString(final ConnectionTree connectionTree,
+                                              final boolean useBremserElementNotation,
+                                              final StringBuilder HOSECode) throws CDKException {
         final IAtom rootAtom = connectionTree.getRootNode()
                                              .getAtom();
         final int maxSphere = connectionTree.getMaxSphere(true);
         // zeroth sphere
-        final StringBuilder HOSECode = new StringBuilder(rootAtom.getSymbol()
-                                                                 + "-"
-                                                                 + (rootAtom.getBondCount()
-                + (rootAtom.getImplicitHydrogenCount()
-                           == null
-                   ? 0
-                   : rootAtom.getImplicitHydrogenCount()))
-                                                                 + buildFormalChargeCode(rootAtom));
+        HOSECode.setLength(0);
+        HOSECode.append(rootAtom.getSymbol())
+                .append("-")
+                .append(rootAtom.getBondCount()
+                                + (rootAtom.getImplicitHydrogenCount()
+                                           == null
+                                   ? 0
+                                   : rootAtom.getImplicitHydrogenCount()))
+                .append(buildFormalChargeCode(rootAtom));
         HOSECode.append(";");
         String delimiter;
         // go through each sphere of the connection tree
@@ -194,7 +206,7 @@ public class HOSECodeBuilder {
                 delimiter = ",";
             }
             // create sphere string and add it to HOSE code string
-            HOSECode.append(buildSphereString(connectionTree, s, delimiter, useBremserElementNotation));
+            buildSphereString(connectionTree, s, delimiter, useBremserElementNotation, HOSECode);
             if (s
                     == 1) {
                 HOSECode.append("(");
@@ -226,6 +238,175 @@ public class HOSECodeBuilder {
                                              useBremserElementNotation);
     }
 
+    /**
+     * Builds the HOSE code of a connection tree truncated at a given sphere,
+     * see {@link ConnectionTree#buildTruncatedTree(ConnectionTree, int)}. The
+     * given connection tree stays unchanged and has to be built without
+     * ranking of child nodes, see
+     * {@link #buildConnectionTree(IAtomContainer, int, Integer, Set, boolean)}. <br>
+     * The result is the same as of
+     * {@link #buildHOSECode(IAtomContainer, int, Integer, boolean)} with that
+     * sphere, but the BFS has to be done only once for all spheres.
+     *
+     * @param connectionTree            not ranked connection tree
+     * @param maxSphere                 maximum sphere of HOSE code
+     * @param useBremserElementNotation whether to use Bremser notation
+     *
+     * @return
+     *
+     * @throws CDKException
+     */
+    public static String buildTruncatedHOSECode(final ConnectionTree connectionTree, final int maxSphere,
+                                                final boolean useBremserElementNotation) throws CDKException {
+        return buildTruncatedHOSECode(connectionTree, maxSphere, useBremserElementNotation, new StringBuilder());
+    }
+
+    private static String buildTruncatedHOSECode(final ConnectionTree connectionTree, final int maxSphere,
+                                                 final boolean useBremserElementNotation,
+                                                 final StringBuilder HOSECode) throws CDKException {
+        final ConnectionTree truncatedTree = ConnectionTree.buildTruncatedTree(connectionTree, maxSphere);
+        HOSECodeUtilities.rankChildNodes(truncatedTree);
+
+        return buildHOSECodeString(truncatedTree, useBremserElementNotation, HOSECode);
+    }
+
+    /**
+     * Builds the HOSE codes of an atom for all spheres from zero up to a maximum
+     * sphere by using only one BFS.
+     *
+     * @param ac                        atom container
+     * @param rootAtomIndex             atom to build the HOSE codes for
+     * @param maxSphere                 maximum sphere; if this is set to null,
+     *                                  then the maximum sphere of the whole
+     *                                  structure is used
+     * @param useBremserElementNotation whether to use Bremser notation
+     *
+     * @return HOSE codes where the array index is the sphere
+     *
+     * @throws CDKException
+     */
+    public static String[] buildHOSECodes(final IAtomContainer ac, final int rootAtomIndex, final Integer maxSphere,
+                                          final boolean useBremserElementNotation) throws CDKException {
+        return buildHOSECodes(HOSECodeBuilder.buildConnectionTree(ac, rootAtomIndex, maxSphere, new HashSet<>(), false),
+                              maxSphere, useBremserElementNotation, new StringBuilder());
+    }
+
+    /**
+     * Builds the HOSE codes of all atoms of an element for all spheres from
+     * zero up to a maximum sphere in one pass over a molecule. The atom
+     * neighbourhoods are computed only once and one BFS is done per atom.
+     *
+     * @param ac                        atom container
+     * @param element                   element of atoms to build the HOSE
+     *                                  codes for; if this is set to null, then
+     *                                  all atoms are used
+     * @param maxSphere                 maximum sphere; if this is set to null,
+     *                                  then the maximum sphere of the whole
+     *                                  structure is used for each atom
+     * @param useBremserElementNotation whether to use Bremser notation
+     *
+     * @return HOSE codes per atom index where the second array index is the
+     * sphere; null for atoms of other elements
+     *
+     * @throws CDKException
+     */
+    public static String[][] buildHOSECodes(final IAtomContainer ac, final String element, final Integer maxSphere,
+                                            final boolean useBremserElementNotation) throws CDKException {
+        final ConnectionTree[] connectionTrees = HOSECodeBuilder.buildConnectionTrees(ac, element, maxSphere, false);
+        final String[][] HOSECodes = new String[connectionTrees.length][];
+        final StringBuilder HOSECode = new StringBuilder();
+        for (int i = 0; i
+                < connectionTrees.length; i++) {
+            if (connectionTrees[i]
+                    != null) {
+                HOSECodes[i] = buildHOSECodes(connectionTrees[i], maxSphere, useBremserElementNotation, HOSECode);
+            }
+        }
+
+        return HOSECodes;
+    }
+
+    private static String[] buildHOSECodes(final ConnectionTree connectionTree, final Integer maxSphere,
+                                           final boolean useBremserElementNotation,
+                                           final StringBuilder HOSECode) throws CDKException {
+        final int maxSphereTemp = maxSphere
+                                          == null
+                                  ? connectionTree.getMaxSphere(true)
+                                  : maxSphere;
+        final String[] HOSECodes = new String[maxSphereTemp
+                + 1];
+        for (int s = 0; s
+                <= maxSphereTemp; s++) {
+            HOSECodes[s] = buildTruncatedHOSECode(connectionTree, s, useBremserElementNotation, HOSECode);
+        }
+
+        return HOSECodes;
+    }
+
+    /**
+     * Builds the connection trees of all atoms of an element in one pass over
+     * a molecule, see {@link #buildConnectionTree(IAtomContainer, int, Integer, Set, boolean)}.
+     * The atom neighbourhoods are computed only once.
+     *
+     * @param ac             atom container
+     * @param element        element of atoms to build the connection trees for;
+     *                       if this is set to null, then all atoms are used
+     * @param maxSphere      if this is set to null, then the connection trees of
+     *                       whole structure will be created
+     * @param rankChildNodes whether to rank the child nodes by HOSE code priority
+     *
+     * @return connection trees per atom index; null for atoms of other elements
+     */
+    public static ConnectionTree[] buildConnectionTrees(final IAtomContainer ac, final String element,
+                                                        final Integer maxSphere, final boolean rankChildNodes) {
+        final IBond[][] connectedBonds = new IBond[ac.getAtomCount()][];
+        final int[][] connectedAtomIndices = buildConnectedAtomIndices(ac, connectedBonds);
+        final ConnectionTree[] connectionTrees = new ConnectionTree[ac.getAtomCount()];
+        for (int i = 0; i
+                < ac.getAtomCount(); i++) {
+            if (element
+                    == null
+                    || ac.getAtom(i)
+                         .getSymbol()
+                         .equals(element)) {
+                connectionTrees[i] = buildConnectionTree(ac, i, maxSphere, new HashSet<>(), rankChildNodes,
+                                                         connectedAtomIndices, connectedBonds);
+            }
+        }
+
+        return connectionTrees;
+    }
+
+    /**
+     * Returns the indices of connected atoms for each atom, in the order of
+     * {@link IAtomContainer#getConnectedAtomsList(IAtom)}, and stores the
+     * corresponding bonds.
+     *
+     * @param ac             atom container
+     * @param connectedBonds array to store the bonds to the connected atoms in
+     *
+     * @return
+     */
+    private static int[][] buildConnectedAtomIndices(final IAtomContainer ac, final IBond[][] connectedBonds) {
+        final int[][] connectedAtomIndices = new int[ac.getAtomCount()][];
+        IAtom atom;
+        List<IAtom> connectedAtoms;
+        for (int i = 0; i
+                < ac.getAtomCount(); i++) {
+            atom = ac.getAtom(i);
+            connectedAtoms = ac.getConnectedAtomsList(atom);
+            connectedAtomIndices[i] = new int[connectedAtoms.size()];
+            connectedBonds[i] = new IBond[connectedAtoms.size()];
+            for (int j = 0; j
+                    < connectedAtoms.size(); j++) {
+                connectedAtomIndices[i][j] = ac.indexOf(connectedAtoms.get(j));
+                connectedBonds[i][j] = ac.getBond(atom, connectedAtoms.get(j));
+            }
+        }
+
+        return connectedAtomIndices;
+    }
+
     /**
      * Builds a connection tree of an atom container with specific start atom
      * and maximum number of spheres.
@@ -268,13 +449,49 @@ public class HOSECodeBuilder {
      */
     public static ConnectionTree buildConnectionTree(final IAtomContainer ac, final int rootAtomIndex,
                                                      final Integer maxSphere, final Set<Integer> visited) {
-        // create queue for BFS and add root atom index
-        final Queue<Integer> queue = new LinkedList<>();
-        queue.add(rootAtomIndex);
+        return HOSECodeBuilder.buildConnectionTree(ac, rootAtomIndex, maxSphere, visited, true);
+    }
+
+    /**
+     * Builds a connection tree of an atom container with specific start atom
+     * and maximum number of spheres, see
+     * {@link #buildConnectionTree(IAtomContainer, int, Integer, Set)}.
+     *
+     * @param ac              atom container
+     * @param rootAtomIndex   starting atom
+     * @param maxSphere       if this is set to null, then the connection tree of whole
+     *                        structure will be created
+     * @param visited         certain atom indices can be given here to ignore atoms
+     *                        in BFS; they are then seen as already visited and not included in
+     *                        the connection tree
+     * @param rankChildNodes  whether to rank the child nodes by HOSE code priority;
+     *                        the child nodes stay in BFS order otherwise
+     *
+     * @return
+     *
+     * @see ConnectionTree
+     */
+    public static ConnectionTree buildConnectionTree(final IAtomContainer ac, final int rootAtomIndex,
+                                                     final Integer maxSphere, final Set<Integer> visited,
+                                                     final boolean rankChildNodes) {
+        final IBond[][] connectedBonds = new IBond[ac.getAtomCount()][];
+        final int[][] connectedAtomIndices = buildConnectedAtomIndices(ac, connectedBonds);
+
+        return buildConnectionTree(ac, rootAtomIndex, maxSphere, visited, rankChildNodes, connectedAtomIndices,
+                                   connectedBonds);
+    }
+
+    private static ConnectionTree buildConnectionTree(final IAtomContainer ac, final int rootAtomIndex,
+                                                      final Integer maxSphere, final Set<Integer> visited,
+                                                      final boolean rankChildNodes,
+                                                      final int[][] connectedAtomIndices,
+                                                      final IBond[][] connectedBonds) {
         final ConnectionTree connectionTree = new ConnectionTree(ac.getAtom(rootAtomIndex), rootAtomIndex);
-        BFS(ac, connectionTree, queue, new HashSet<>(visited), maxSphere);
+        BFS(ac, connectionTree, rootAtomIndex, visited, maxSphere, connectedAtomIndices, connectedBonds);
 
-        HOSECodeUtilities.rankChildNodes(connectionTree);
+        if (rankChildNodes) {
+            HOSECodeUtilities.rankChildNodes(connectionTree);
+        }
 
         return connectionTree;
     }
@@ -484,81 +701,145 @@ public class HOSECodeBuilder {
      * Function for extending a given connection tree only containing
      * its root node (0th sphere) by means of Breadth-First-Search (BFS).
      * Until a certain maximum sphere, each reachable next neighbor atom
-     * is stored in a parent-child-relationship.
+     * is stored in a parent-child-relationship. <br>
+     * The BFS is done iteratively by using an array based queue and atom
+     * index based lookups of nodes, instead of searching them in the tree.
      *
      * @param ac             atom container to go through
      * @param connectionTree connection tree to expand, incl. the root node
-     * @param queue          queue to use containing the atom index of the root node
+     * @param rootAtomIndex  atom index of the root node
      * @param visited        optional: atom indices which are already "visited" and
      *                       should be ignored
      * @param maxSphere      maximum number of spheres for connection tree extension
+     * @param connectedAtomIndices indices of connected atoms per atom
+     * @param connectedBonds       bonds to connected atoms per atom
      */
-    private static void BFS(final IAtomContainer ac, final ConnectionTree connectionTree, final Queue<Integer> queue,
-                            final Set<Integer> visited, final Integer maxSphere) {
-        // all nodes visited?
-        if (queue.isEmpty()) {
-            return;
+    private static void BFS(final IAtomContainer ac, final ConnectionTree connectionTree, final int rootAtomIndex,
+                            final Set<Integer> visited, final Integer maxSphere, final int[][] connectedAtomIndices,
+                            final IBond[][] connectedBonds) {
+        final int atomCount = ac.getAtomCount();
+        // atom index -> node in connection tree
+        final ConnectionTreeNode[] nodes = new ConnectionTreeNode[atomCount];
+        final boolean[] isVisited = new boolean[atomCount];
+        final boolean[] isInQueue = new boolean[atomCount];
+        // atom index -> order of addition of nodes in last sphere, -1 for all other atoms
+        final int[] lastSphereNodeOrder = new int[atomCount];
+        Arrays.fill(lastSphereNodeOrder, -1);
+        int lastSphereNodeCount = 0;
+        for (final int visitedAtomIndex : visited) {
+            if (visitedAtomIndex
+                    >= 0
+                    && visitedAtomIndex
+                    < atomCount) {
+                isVisited[visitedAtomIndex] = true;
+            }
         }
-        final int atomIndex = queue.remove();
-        final IAtom atom = ac.getAtom(atomIndex);
-        final ConnectionTreeNode node = connectionTree.getNode(atomIndex);
-        final int sphere = node.getSphere();
-        // check whether the current sphere is to high, if maxSphere parameter is set
+        // each atom is added to the queue at most once
+        final int[] queue = new int[atomCount];
+        int queueHead = 0;
+        int queueTail = 0;
+        queue[queueTail++] = rootAtomIndex;
+        isInQueue[rootAtomIndex] = true;
+        nodes[rootAtomIndex] = connectionTree.getRootNode();
         if ((maxSphere
                 != null)
-                && (sphere
-                > maxSphere)) {
-            return;
+                && (maxSphere
+                == 0)) {
+            lastSphereNodeOrder[rootAtomIndex] = lastSphereNodeCount++;
         }
-        // mark atom as visited
-        visited.add(atomIndex);
-
+        // positions in the neighbour list of connected atoms in last sphere
+        final int[] connectedLastSpherePositions = new int[atomCount];
+        int connectedLastSphereAtomCount, atomIndex, connectedAtomIndex, sphere;
         IBond bond;
-        ConnectionTreeNode connectedAtomNode;
-        if ((maxSphere
-                != null)
-                && (sphere
-                == maxSphere)) {
-            // set connections (parent nodes) in last sphere nodes which have to be connected -> ring closures
-            // only parent nodes will be set to detect those ring closures again
-            for (final ConnectionTreeNode nodeInLastSphere : connectionTree.getNodesInSphere(maxSphere, false)) {
-                if ((ac.getBond(atom, nodeInLastSphere.getAtom())
-                        != null)
-                        && !ConnectionTree.hasRingClosureParent(node, nodeInLastSphere)
-                        && !ConnectionTree.hasRingClosureParent(nodeInLastSphere, node)) {
-                    bond = ac.getBond(node.getAtom(), nodeInLastSphere.getAtom());
-                    connectionTree.addRingClosureNode(node.getKey(), nodeInLastSphere.getKey(), bond);
-                    connectionTree.addRingClosureNode(nodeInLastSphere.getKey(), node.getKey(), bond);
-                }
+        ConnectionTreeNode node, connectedAtomNode;
+        // all nodes visited?
+        while (queueHead
+                < queueTail) {
+            atomIndex = queue[queueHead++];
+            isInQueue[atomIndex] = false;
+            node = nodes[atomIndex];
+            sphere = node.getSphere();
+            // check whether the current sphere is to high, if maxSphere parameter is set
+            if ((maxSphere
+                    != null)
+                    && (sphere
+                    > maxSphere)) {
+                break;
             }
-        } else {
-            // add nodes and bonds in lower spheres
-            // go to all child nodes
-            int connectedAtomIndex;
-            for (final IAtom connectedAtom : ac.getConnectedAtomsList(atom)) {
-                connectedAtomIndex = ac.indexOf(connectedAtom);
-                bond = ac.getBond(atom, connectedAtom);
-                // add children to queue if not already visited
-                if (!visited.contains(connectedAtomIndex)) {
-                    // and not already waiting in queue
-                    if (!queue.contains(connectedAtomIndex)) {
-                        queue.add(connectedAtomIndex);
-                        connectionTree.addNode(connectedAtom, connectedAtomIndex, node.getKey(), bond);
-                    } else {
-                        // node already exists in tree; add a further parent to connected atom (for ring closures)
-                        connectedAtomNode = connectionTree.getNode(connectedAtomIndex);
-                        if (!ConnectionTree.hasRingClosureParent(node, connectedAtomNode)
-                                && !ConnectionTree.hasRingClosureParent(connectedAtomNode, node)) {
-                            connectionTree.addRingClosureNode(connectedAtomIndex, node.getKey(), bond);
-                            connectionTree.addRingClosureNode(node.getKey(), connectedAtomIndex, bond);
-                        }
+            // mark atom as visited
+            isVisited[atomIndex] = true;
 
+            if ((maxSphere
+                    != null)
+                    && (sphere
+                    == maxSphere)) {
+                // set connections (parent nodes) in last sphere nodes which have to be connected -> ring closures
+                // only parent nodes will be set to detect those ring closures again
+                // the connected last sphere nodes are handled in the order in which they were added to the tree
+                connectedLastSphereAtomCount = 0;
+                for (int j = 0; j
+                        < connectedAtomIndices[atomIndex].length; j++) {
+                    connectedAtomIndex = connectedAtomIndices[atomIndex][j];
+                    if (lastSphereNodeOrder[connectedAtomIndex]
+                            >= 0) {
+                        int k = connectedLastSphereAtomCount++;
+                        while (k
+                                > 0
+                                && lastSphereNodeOrder[connectedAtomIndices[atomIndex][connectedLastSpherePositions[k
+                                - 1]]]
+                                > lastSphereNodeOrder[connectedAtomIndex]) {
+                            connectedLastSpherePositions[k] = connectedLastSpherePositions[k
+                                    - 1];
+                            k--;
+                        }
+                        connectedLastSpherePositions[k] = j;
+                    }
+                }
+                for (int k = 0; k
+                        < connectedLastSphereAtomCount; k++) {
+                    connectedAtomNode = nodes[connectedAtomIndices[atomIndex][connectedLastSpherePositions[k]]];
+                    if (!ConnectionTree.hasRingClosureParent(node, connectedAtomNode)
+                            && !ConnectionTree.hasRingClosureParent(connectedAtomNode, node)) {
+                        bond = connectedBonds[atomIndex][connectedLastSpherePositions[k]];
+                        connectionTree.addRingClosureNode(node, connectedAtomNode, bond);
+                        connectionTree.addRingClosureNode(connectedAtomNode, node, bond);
+                    }
+                }
+            } else {
+                // add nodes and bonds in lower spheres
+                // go to all child nodes
+                for (int j = 0; j
+                        < connectedAtomIndices[atomIndex].length; j++) {
+                    connectedAtomIndex = connectedAtomIndices[atomIndex][j];
+                    bond = connectedBonds[atomIndex][j];
+                    // add children to queue if not already visited
+                    if (!isVisited[connectedAtomIndex]) {
+                        // and not already waiting in queue
+                        if (!isInQueue[connectedAtomIndex]) {
+                            queue[queueTail++] = connectedAtomIndex;
+                            isInQueue[connectedAtomIndex] = true;
+                            nodes[connectedAtomIndex] = connectionTree.addNode(ac.getAtom(connectedAtomIndex),
+                                                                               connectedAtomIndex, node, bond);
+                            if ((maxSphere
+                                    != null)
+                                    && (sphere
+                                    + 1
+                                    == maxSphere)) {
+                                lastSphereNodeOrder[connectedAtomIndex] = lastSphereNodeCount++;
+                            }
+                        } else {
+                            // node already exists in tree; add a further parent to connected atom (for ring closures)
+                            connectedAtomNode = nodes[connectedAtomIndex];
+                            if (!ConnectionTree.hasRingClosureParent(node, connectedAtomNode)
+                                    && !ConnectionTree.hasRingClosureParent(connectedAtomNode, node)) {
+                                connectionTree.addRingClosureNode(connectedAtomNode, node, bond);
+                                connectionTree.addRingClosureNode(node, connectedAtomNode, bond);
+                            }
+                        }
                     }
                 }
             }
         }
-        // further extension of connectivity tree
-        BFS(ac, connectionTree, queue, visited, maxSphere);
     }
 
     /**
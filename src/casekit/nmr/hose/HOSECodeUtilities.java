@@ -18,6 +18,7 @@ import org.openscience.cdk.interfaces.IBond;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -95,44 +96,89 @@ public class HOSECodeUtilities {
     /**
      * Returns an ArrayList of ranked child node indices for a tree node.
      *
-     * @param node node to rank the children
+     * @param node              node to rank the children
+     * @param childNodesWeights summed weights of child subtrees per node
      *
      * @return
      *
      * @see #getNodeWeight(ConnectionTreeNode, ConnectionTreeNode)
      */
-    private static List<Integer> getRankedChildNodesIndices(final ConnectionTreeNode node) {
+    private static List<Integer> getRankedChildNodesIndices(final ConnectionTreeNode node,
+                                                            final Map<ConnectionTreeNode, Integer> childNodesWeights) {
         final List<ConnectionTreeNode> childNodes = node.getChildNodes();
         final List<Integer> rankedChildNodesIndices = new ArrayList<>();
         for (int i = 0; i
                 < childNodes.size(); i++) {
             rankedChildNodesIndices.add(i);
         }
+        if (childNodes.size()
+                < 2) {
+            return rankedChildNodesIndices;
+        }
+        // compute each weight only once instead of in each comparison
+        final Integer[] nodeWeights = new Integer[childNodes.size()];
+        for (int i = 0; i
+                < childNodes.size(); i++) {
+            nodeWeights[i] = getNodeWeight(childNodes.get(i), node);
+        }
         rankedChildNodesIndices.sort((childNodeIndex1, childNodeIndex2) -> {
             final int nodeWeightsComp = -1
-                    * Integer.compare(getNodeWeight(childNodes.get(childNodeIndex1), node),
-                                      getNodeWeight(childNodes.get(childNodeIndex2), node));
+                    * Integer.compare(nodeWeights[childNodeIndex1], nodeWeights[childNodeIndex2]);
             if (nodeWeightsComp
                     != 0) {
                 return nodeWeightsComp;
             }
             return -1
-                    * Integer.compare(calculateSubtreeWeight(childNodes.get(childNodeIndex1)),
-                                      calculateSubtreeWeight(childNodes.get(childNodeIndex2)));
+                    * Integer.compare(calculateSubtreeWeight(childNodes.get(childNodeIndex1), childNodesWeights),
+                                      calculateSubtreeWeight(childNodes.get(childNodeIndex2), childNodesWeights));
         });
 
         return rankedChildNodesIndices;
     }
 
+    /**
+     * Returns the same as {@link #calculateSubtreeWeight(ConnectionTreeNode)},
+     * but stores the summed weights of child subtrees of each visited node for
+     * reuse.
+     *
+     * @param node              node to get the subtree weight from
+     * @param childNodesWeights summed weights of child subtrees per node
+     *
+     * @return
+     */
+    private static int calculateSubtreeWeight(final ConnectionTreeNode node,
+                                              final Map<ConnectionTreeNode, Integer> childNodesWeights) {
+        return getNodeWeight(node, null)
+                + getChildNodesWeight(node, childNodesWeights);
+    }
+
+    private static int getChildNodesWeight(final ConnectionTreeNode node,
+                                           final Map<ConnectionTreeNode, Integer> childNodesWeights) {
+        Integer weight = childNodesWeights.get(node);
+        if (weight
+                == null) {
+            weight = 0;
+            for (final ConnectionTreeNode childNode : node.getChildNodes()) {
+                weight += getNodeWeight(childNode, node)
+                        + getChildNodesWeight(childNode, childNodesWeights);
+            }
+            childNodesWeights.put(node, weight);
+        }
+
+        return weight;
+    }
+
     /**
      * Sorts the child nodes of a node by HOSE code priority and weight.
      *
-     * @param node node with child nodes to rank
+     * @param node              node with child nodes to rank
+     * @param childNodesWeights summed weights of child subtrees per node
      *
      * @see #getNodeWeight(ConnectionTreeNode, ConnectionTreeNode)
      */
-    private static void rankChildNodes(final ConnectionTreeNode node) {
-        final List<Integer> rankedChildNodesIndices = getRankedChildNodesIndices(node);
+    private static void rankChildNodes(final ConnectionTreeNode node,
+                                       final Map<ConnectionTreeNode, Integer> childNodesWeights) {
+        final List<Integer> rankedChildNodesIndices = getRankedChildNodesIndices(node, childNodesWeights);
         final List<ConnectionTreeNode> rankedChildNodes = new ArrayList<>();
         final List<IBond> rankedChildNodeBonds = new ArrayList<>();
         for (int i = 0; i
@@ -159,9 +205,11 @@ public class HOSECodeUtilities {
      * @param connectionTree connection tree where to rank the child nodes of
      *                       each node.
      *
-     * @see #rankChildNodes(ConnectionTreeNode)
+     * @see #rankChildNodes(ConnectionTreeNode, Map)
      */
     public static void rankChildNodes(final ConnectionTree connectionTree) {
+        // the subtree weights do not depend on the order of child nodes and can be reused
+        final Map<ConnectionTreeNode, Integer> childNodesWeights = new IdentityHashMap<>();
         List<ConnectionTreeNode> nodesInSphere;
         for (int sphere = 0; sphere
                 < connectionTree.getMaxSphere(true); sphere++) {
@@ -172,10 +220,12 @@ public class HOSECodeUtilities {
                 // findHits all child nodes of that node
                 if (nodesInSphere.get(i)
                                  .hasChildren()) {
-                    rankChildNodes(nodesInSphere.get(i));
+                    rankChildNodes(nodesInSphere.get(i), childNodesWeights);
                 }
             }
         }
+        // order of nodes in spheres has changed
+        connectionTree.resetNodeIndices();
     }
 
     /**
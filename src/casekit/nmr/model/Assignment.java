@@ -23,27 +23,73 @@
  */
 package casekit.nmr.model;
 
-import lombok.AllArgsConstructor;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.io.IOException;
+import java.util.*;
 
 /**
+ * Appending via {@link #addAssignment(int, int[])} and
+ * {@link #addAssignmentEquivalence(int, int, int)} uses growable buffers with
+ * doubling capacity, so building an assignment takes linear time. The
+ * buffers are trimmed to exact-length arrays when the arrays are read, e.g.
+ * by {@link #getAssignments(int)} or by serialisation. <br>
+ * Reading methods can be used from several threads at once, as long as the
+ * assignment is not modified concurrently.
+ *
  * @author Michael Wenk [https://github.com/michaelwenk]
  */
 @NoArgsConstructor
-@AllArgsConstructor
 @Getter
 @Setter
+@JsonAdapter(Assignment.TrimmingTypeAdapterFactory.class)
 public class Assignment {
 
+    private final static int MIN_CAPACITY = 4;
+
     private String[] nuclei;
-    private int[][][] assignments;
+    // exact-length arrays, outdated while the buffer is in use
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private volatile int[][][] assignments;
+    // growable storage for appends, null if there are no pending appends
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient volatile Buffer buffer;
+    // dim -> assignment -> indices containing it in ascending order, built on first use and null if outdated
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient volatile List<Map<Integer, List<Integer>>> reverseIndex;
+
+    public Assignment(final String[] nuclei, final int[][][] assignments) {
+        this.nuclei = nuclei;
+        this.assignments = assignments;
+    }
+
+    public void setNuclei(final String[] nuclei) {
+        this.nuclei = nuclei;
+        this.reverseIndex = null;
+    }
 
+    public int[][][] getAssignments() {
+        return this.getTrimmedAssignments();
+    }
+
+    public void setAssignments(final int[][][] assignments) {
+        this.assignments = assignments;
+        this.buffer = null;
+        this.reverseIndex = null;
+    }
 
     public void initAssignments(final int length) {
         final int[][][] temp = new int[this.getNDim()][length][0];
@@ -54,7 +100,7 @@ public class Assignment {
                 temp[i][j] = new int[]{};
             }
         }
-        this.assignments = temp;
+        this.setAssignments(temp);
     }
 
     public int getNDim() {
@@ -86,7 +132,14 @@ public class Assignment {
                 || !this.checkIndex(dim, index)) {
             return false;
         }
-        this.assignments[dim][index] = assignment;
+        final Buffer buffer = this.buffer;
+        if (buffer
+                == null) {
+            this.assignments[dim][index] = assignment;
+        } else {
+            buffer.set(dim, index, assignment);
+        }
+        this.reverseIndex = null;
 
         return true;
     }
@@ -111,7 +164,7 @@ public class Assignment {
             return null;
         }
 
-        return this.assignments[dim][index];
+        return this.getTrimmedAssignments()[dim][index];
     }
 
     public int getAssignment(final int dim, final int index, final int equivalenceIndex) {
@@ -119,39 +172,113 @@ public class Assignment {
                 || !this.checkIndex(dim, index)) {
             return -1;
         }
+        final Buffer buffer = this.buffer;
+        if (buffer
+                == null) {
+            return this.assignments[dim][index][equivalenceIndex];
+        }
+        if (equivalenceIndex
+                >= buffer.counts[dim][index]) {
+            throw new ArrayIndexOutOfBoundsException(equivalenceIndex);
+        }
 
-        return this.assignments[dim][index][equivalenceIndex];
+        return buffer.values[dim][index][equivalenceIndex];
     }
 
     public void addAssignmentEquivalence(final int dim, final int index, final int assignment) {
-        final int[] temp = this.getAssignment(dim, index);
-        final int[] equivalenceIndices = new int[temp.length
-                + 1];
-        for (int j = 0; j
-                < temp.length; j++) {
-            equivalenceIndices[j] = temp[j];
+        if (!this.containsDim(dim)
+                || !this.checkIndex(dim, index)) {
+            return;
+        }
+        this.getBuffer()
+            .addEquivalence(dim, index, assignment);
+        final List<Map<Integer, List<Integer>>> reverseIndex = this.reverseIndex;
+        if (reverseIndex
+                != null) {
+            addToReverseIndex(reverseIndex, dim, index, assignment);
         }
-        equivalenceIndices[equivalenceIndices.length
-                - 1] = assignment;
-
-        this.setAssignment(dim, index, equivalenceIndices);
     }
 
+    /**
+     * Returns the indices which contain a given assignment, in ascending
+     * order. <br>
+     * The lookup uses a reverse index which is built on first use and kept up
+     * to date by the methods of this class. Modifying the returned arrays of
+     * {@link #getAssignment(int, int)} or {@link #getAssignments(int)}
+     * directly is not tracked.
+     *
+     * @param dim        dimension
+     * @param assignment assignment to search for
+     *
+     * @return
+     */
     public List<Integer> getIndices(final int dim, final int assignment) {
         if (!this.containsDim(dim)) {
             return null;
         }
-        final List<Integer> indices = new ArrayList<>();
-        for (int index = 0; index
-                < this.assignments[dim].length; index++) {
-            if (Arrays.stream(this.getAssignment(dim, index))
-                      .anyMatch(equiv -> equiv
-                              == assignment)) {
-                indices.add(index);
+        final List<Integer> indices = this.getReverseIndex()
+                                          .get(dim)
+                                          .get(assignment);
+
+        return indices
+                       == null
+               ? new ArrayList<>()
+               : new ArrayList<>(indices);
+    }
+
+    private List<Map<Integer, List<Integer>>> getReverseIndex() {
+        List<Map<Integer, List<Integer>>> reverseIndex = this.reverseIndex;
+        if (reverseIndex
+                == null) {
+            synchronized (this) {
+                reverseIndex = this.reverseIndex;
+                if (reverseIndex
+                        == null) {
+                    // completely built before it is published
+                    final int[][][] values = this.getTrimmedAssignments();
+                    reverseIndex = new ArrayList<>();
+                    for (int dim = 0; dim
+                            < this.getNDim(); dim++) {
+                        reverseIndex.add(new HashMap<>());
+                        for (int index = 0; index
+                                < values[dim].length; index++) {
+                            if (values[dim][index]
+                                    == null) {
+                                continue;
+                            }
+                            for (final int assignment : values[dim][index]) {
+                                addToReverseIndex(reverseIndex, dim, index, assignment);
+                            }
+                        }
+                    }
+                    this.reverseIndex = reverseIndex;
+                }
             }
         }
 
-        return indices;
+        return reverseIndex;
+    }
+
+    private static void addToReverseIndex(final List<Map<Integer, List<Integer>>> reverseIndex, final int dim,
+                                          final int index, final int assignment) {
+        final List<Integer> indices = reverseIndex.get(dim)
+                                                  .computeIfAbsent(assignment, key -> new ArrayList<>());
+        // keep ascending order without duplicates, appending is the common case
+        int position = indices.size();
+        while (position
+                > 0
+                && indices.get(position
+                                       - 1)
+                > index) {
+            position--;
+        }
+        if (position
+                == 0
+                || indices.get(position
+                                       - 1)
+                != index) {
+            indices.add(position, index);
+        }
     }
 
     public int[][] getAssignments(final int dim) {
@@ -159,23 +286,36 @@ public class Assignment {
             return null;
         }
 
-        return this.assignments[dim];
+        return this.getTrimmedAssignments()[dim];
     }
 
     public int getSize() {
         if (this.getNDim()
                 > 0) {
-            return this.assignments[0].length;
+            return this.getSize(0);
         }
         return 0;
     }
 
+    private int getSize(final int dim) {
+        final Buffer buffer = this.buffer;
+
+        return buffer
+                       == null
+               ? this.assignments[dim].length
+               : buffer.sizes[dim];
+    }
+
     public int getSetAssignmentsCount(final int dim) {
         int setAssignmentsCounter = 0;
         if (this.containsDim(dim)) {
+            final Buffer buffer = this.buffer;
             for (int j = 0; j
-                    < this.assignments[dim].length; j++) {
-                if (this.assignments[dim][j].length
+                    < this.getSize(dim); j++) {
+                if ((buffer
+                        == null
+                     ? this.assignments[dim][j].length
+                     : buffer.counts[dim][j])
                         > 0) {
                     setAssignmentsCounter++;
                 }
@@ -187,9 +327,13 @@ public class Assignment {
     public int getSetAssignmentsCountWithEquivalences(final int dim) {
         int setAssignmentsCounter = 0;
         if (this.containsDim(dim)) {
+            final Buffer buffer = this.buffer;
             for (int j = 0; j
-                    < this.assignments[dim].length; j++) {
-                setAssignmentsCounter += this.assignments[dim][j].length;
+                    < this.getSize(dim); j++) {
+                setAssignmentsCounter += buffer
+                                                 == null
+                                         ? this.assignments[dim][j].length
+                                         : buffer.counts[dim][j];
             }
         }
         return setAssignmentsCounter;
@@ -199,23 +343,17 @@ public class Assignment {
         if (!this.containsDim(dim)) {
             return false;
         }
-        final int[][][] newAssignments = new int[this.getNDim()][][];
-        for (int d = 0; d
-                < this.getNDim(); d++) {
-            if (d
-                    == dim) {
-                newAssignments[d] = new int[this.assignments[d].length
-                        + 1][];
-                for (int i = 0; i
-                        < this.assignments[d].length; i++) {
-                    newAssignments[d][i] = this.assignments[d][i];
-                }
-            } else {
-                newAssignments[d] = this.assignments[d];
+        final int index = this.getBuffer()
+                              .add(dim, assignment);
+        final List<Map<Integer, List<Integer>>> reverseIndex = this.reverseIndex;
+        if (reverseIndex
+                != null
+                && assignment
+                != null) {
+            for (final int equivalence : assignment) {
+                addToReverseIndex(reverseIndex, dim, index, equivalence);
             }
         }
-        newAssignments[dim][this.assignments[dim].length] = assignment;
-        this.assignments = newAssignments;
 
         return true;
     }
@@ -224,23 +362,58 @@ public class Assignment {
         return (index
                 >= 0)
                 && (index
-                < this.assignments[dim].length);
+                < this.getSize(dim));
+    }
+
+    private Buffer getBuffer() {
+        Buffer buffer = this.buffer;
+        if (buffer
+                == null) {
+            buffer = new Buffer(this.assignments);
+            this.buffer = buffer;
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Returns the exact-length assignment arrays and moves pending appends
+     * from the buffer into them first, if there are any.
+     *
+     * @return
+     */
+    private int[][][] getTrimmedAssignments() {
+        if (this.buffer
+                == null) {
+            return this.assignments;
+        }
+        synchronized (this) {
+            final Buffer buffer = this.buffer;
+            if (buffer
+                    != null) {
+                this.assignments = buffer.trim();
+                this.buffer = null;
+            }
+
+            return this.assignments;
+        }
     }
 
     public Assignment buildClone() {
         final Assignment clone = new Assignment();
         clone.setNuclei(this.getNuclei()
                             .clone());
+        final int[][][] assignments = this.getTrimmedAssignments();
         final int[][][] values = new int[this.getNDim()][][];
         for (int dim = 0; dim
                 < this.getNDim(); dim++) {
             values[dim] = new int[this.getSize()][];
             for (int i = 0; i
-                    < this.assignments[dim].length; i++) {
-                values[dim][i] = new int[this.assignments[dim][i].length];
+                    < assignments[dim].length; i++) {
+                values[dim][i] = new int[assignments[dim][i].length];
                 for (int equiv = 0; equiv
-                        < this.assignments[dim][i].length; equiv++) {
-                    values[dim][i][equiv] = this.assignments[dim][i][equiv];
+                        < assignments[dim][i].length; equiv++) {
+                    values[dim][i][equiv] = assignments[dim][i][equiv];
                 }
             }
         }
@@ -255,7 +428,131 @@ public class Assignment {
                 + "nuclei="
                 + Arrays.toString(this.nuclei)
                 + ", assignments="
-                + Arrays.deepToString(this.assignments)
+                + Arrays.deepToString(this.getTrimmedAssignments())
                 + '}';
     }
+
+    /**
+     * Growable copy of the assignment arrays: the arrays per dimension and
+     * per index have spare capacity, their used lengths are stored
+     * separately. Arrays taken over from the exact-length assignments have no
+     * spare capacity and are copied before the first append, so arrays
+     * returned by getters before are never changed.
+     */
+    private static final class Buffer {
+
+        private final int[][][] values;
+        private final int[] sizes;
+        private final int[][] counts;
+
+        private Buffer(final int[][][] assignments) {
+            this.values = new int[assignments.length][][];
+            this.sizes = new int[assignments.length];
+            this.counts = new int[assignments.length][];
+            for (int dim = 0; dim
+                    < assignments.length; dim++) {
+                this.values[dim] = assignments[dim].clone();
+                this.sizes[dim] = assignments[dim].length;
+                this.counts[dim] = new int[assignments[dim].length];
+                for (int index = 0; index
+                        < assignments[dim].length; index++) {
+                    this.counts[dim][index] = assignments[dim][index]
+                                                      == null
+                                              ? 0
+                                              : assignments[dim][index].length;
+                }
+            }
+        }
+
+        private static int grow(final int length) {
+            return Math.max(MIN_CAPACITY, length
+                    * 2);
+        }
+
+        private void set(final int dim, final int index, final int[] assignment) {
+            this.values[dim][index] = assignment;
+            this.counts[dim][index] = assignment
+                                              == null
+                                      ? 0
+                                      : assignment.length;
+        }
+
+        private int add(final int dim, final int[] assignment) {
+            final int index = this.sizes[dim];
+            if (index
+                    == this.values[dim].length) {
+                this.values[dim] = Arrays.copyOf(this.values[dim], grow(index));
+                this.counts[dim] = Arrays.copyOf(this.counts[dim], this.values[dim].length);
+            }
+            this.set(dim, index, assignment);
+            this.sizes[dim]++;
+
+            return index;
+        }
+
+        private void addEquivalence(final int dim, final int index, final int assignment) {
+            final int count = this.counts[dim][index];
+            final int[] equivalences = this.values[dim][index];
+            if (equivalences
+                    == null
+                    || count
+                    == equivalences.length) {
+                this.values[dim][index] = equivalences
+                                                  == null
+                                          ? new int[MIN_CAPACITY]
+                                          : Arrays.copyOf(equivalences, grow(count));
+            }
+            this.values[dim][index][count] = assignment;
+            this.counts[dim][index]++;
+        }
+
+        private int[][][] trim() {
+            final int[][][] assignments = new int[this.values.length][][];
+            int[] equivalences;
+            for (int dim = 0; dim
+                    < this.values.length; dim++) {
+                assignments[dim] = new int[this.sizes[dim]][];
+                for (int index = 0; index
+                        < this.sizes[dim]; index++) {
+                    equivalences = this.values[dim][index];
+                    assignments[dim][index] = equivalences
+                                                      == null
+                                                      || equivalences.length
+                                                      == this.counts[dim][index]
+                                              ? equivalences
+                                              : Arrays.copyOf(equivalences, this.counts[dim][index]);
+                }
+            }
+
+            return assignments;
+        }
+    }
+
+    /**
+     * Trims the buffer before Gson reads the assignment arrays field.
+     */
+    static final class TrimmingTypeAdapterFactory
+            implements TypeAdapterFactory {
+
+        @Override
+        public <T> TypeAdapter<T> create(final Gson gson, final TypeToken<T> type) {
+            final TypeAdapter<T> delegate = gson.getDelegateAdapter(this, type);
+
+            return new TypeAdapter<T>() {
+                @Override
+                public void write(final JsonWriter out, final T value) throws IOException {
+                    if (value
+                            instanceof Assignment) {
+                        ((Assignment) value).getTrimmedAssignments();
+                    }
+                    delegate.write(out, value);
+                }
+
+                @Override
+                public T read(final JsonReader in) throws IOException {
+                    return delegate.read(in);
+                }
+            };
+        }
+    }
 }
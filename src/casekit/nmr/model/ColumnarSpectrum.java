@@ -0,0 +1,327 @@
+package casekit.nmr.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only, columnar view of a spectrum: one primitive array per signal
+ * property instead of one object per signal, for comparisons without boxing.
+ * <br>
+ * Missing shifts and intensities are stored as NaN and missing phases as
+ * {@link #NO_PHASE}. Multiplicities are stored along with byte codes for
+ * fast comparisons, see {@link #getMultiplicityCode(int)}. Coupling constants
+ * are not stored, as in
+ * {@link SpectrumCompact}. <br>
+ * The arrays returned by the getters are the internal ones and must not be
+ * modified.
+ */
+public class ColumnarSpectrum {
+
+    public final static int NO_PHASE = Integer.MIN_VALUE;
+    public final static byte MULTIPLICITY_CODE_NULL = 0;
+    public final static byte MULTIPLICITY_CODE_OTHER = -1;
+    // index is the multiplicity code
+    private final static String[] MULTIPLICITIES = new String[]{null, "s", "d", "t", "q", "m"};
+
+    private final String[] nuclei;
+    private final Map<String, String> meta;
+    private final int signalCount;
+    private final double[][] shifts; // dim -> signal index -> shift
+    private final String[] multiplicities;
+    private final byte[] multiplicityCodes;
+    private final String[] kinds;
+    private final double[] intensities;
+    private final int[] equivalencesCounts;
+    private final int[] phases;
+    private final String[] ids;
+
+    public ColumnarSpectrum(final Spectrum spectrum) {
+        this(spectrum.getNuclei(), spectrum.getMeta(), spectrum.getSignals()
+                                                              .size());
+        Signal signal;
+        for (int i = 0; i
+                < this.signalCount; i++) {
+            signal = spectrum.getSignals()
+                             .get(i);
+            for (int dim = 0; dim
+                    < this.nuclei.length; dim++) {
+                this.shifts[dim][i] = toPrimitive(signal.getShift(dim));
+            }
+            this.setMultiplicity(i, signal.getMultiplicity());
+            this.kinds[i] = signal.getKind();
+            this.intensities[i] = toPrimitive(signal.getIntensity());
+            this.equivalencesCounts[i] = signal.getEquivalencesCount();
+            this.phases[i] = signal.getPhase()
+                                     == null
+                             ? NO_PHASE
+                             : signal.getPhase();
+            this.ids[i] = signal.getId();
+        }
+    }
+
+    /**
+     * Fills the columns directly from the compact signals, without creating
+     * {@link Signal} objects, see {@link SignalCompact} for the array layout.
+     *
+     * @param spectrumCompact spectrum
+     */
+    public ColumnarSpectrum(final SpectrumCompact spectrumCompact) {
+        this(spectrumCompact.getNuclei(), spectrumCompact.getMeta(), spectrumCompact.getSignals().length);
+        SignalCompact signalCompact;
+        String[] strings;
+        Double[] doubles;
+        Integer[] integers;
+        int signalDimensions;
+        for (int i = 0; i
+                < this.signalCount; i++) {
+            signalCompact = spectrumCompact.getSignals()[i];
+            strings = signalCompact.getStrings();
+            doubles = signalCompact.getDoubles();
+            integers = signalCompact.getIntegers();
+            signalDimensions = signalCompact.dimensions();
+            for (int dim = 0; dim
+                    < this.nuclei.length; dim++) {
+                this.shifts[dim][i] = dim
+                                              < signalDimensions
+                                      ? toPrimitive(doubles[dim])
+                                      : Double.NaN;
+            }
+            this.setMultiplicity(i, strings[signalDimensions]);
+            this.kinds[i] = strings[signalDimensions
+                    + 1];
+            this.intensities[i] = toPrimitive(doubles[signalDimensions]);
+            this.equivalencesCounts[i] = integers[1];
+            this.phases[i] = integers[2]
+                                     == null
+                             ? NO_PHASE
+                             : integers[2];
+            // signal ID is missing in older compact signals, see SignalCompact.toSignal
+            this.ids[i] = strings.length
+                                  - signalDimensions
+                                  >= 3
+                          ? strings[signalDimensions
+                    + 2]
+                          : null;
+        }
+    }
+
+    private ColumnarSpectrum(final String[] nuclei, final Map<String, String> meta, final int signalCount) {
+        this.nuclei = nuclei;
+        this.meta = meta;
+        this.signalCount = signalCount;
+        this.shifts = new double[nuclei.length][this.signalCount];
+        this.multiplicities = new String[this.signalCount];
+        this.multiplicityCodes = new byte[this.signalCount];
+        this.kinds = new String[this.signalCount];
+        this.intensities = new double[this.signalCount];
+        this.equivalencesCounts = new int[this.signalCount];
+        this.phases = new int[this.signalCount];
+        this.ids = new String[this.signalCount];
+    }
+
+    private static double toPrimitive(final Double value) {
+        return value
+                       == null
+               ? Double.NaN
+               : value;
+    }
+
+    private void setMultiplicity(final int signalIndex, final String multiplicity) {
+        this.multiplicities[signalIndex] = multiplicity;
+        this.multiplicityCodes[signalIndex] = getMultiplicityCode(multiplicity);
+    }
+
+    /**
+     * Returns the code of a multiplicity: {@link #MULTIPLICITY_CODE_NULL} for
+     * null, a positive code for the common multiplicities "s", "d", "t", "q"
+     * and "m", and {@link #MULTIPLICITY_CODE_OTHER} for all others. Codes are
+     * case-sensitive, so equal positive codes mean equal multiplicities.
+     *
+     * @param multiplicity multiplicity
+     *
+     * @return
+     */
+    public static byte getMultiplicityCode(final String multiplicity) {
+        if (multiplicity
+                == null) {
+            return MULTIPLICITY_CODE_NULL;
+        }
+        for (byte code = 1; code
+                < MULTIPLICITIES.length; code++) {
+            if (MULTIPLICITIES[code].equals(multiplicity)) {
+                return code;
+            }
+        }
+
+        return MULTIPLICITY_CODE_OTHER;
+    }
+
+    public String[] getNuclei() {
+        return this.nuclei;
+    }
+
+    public Map<String, String> getMeta() {
+        return this.meta;
+    }
+
+    public int getNDim() {
+        return this.nuclei.length;
+    }
+
+    public boolean containsDim(final int dim) {
+        return dim
+                >= 0
+                && dim
+                < this.getNDim();
+    }
+
+    public int getSignalCount() {
+        return this.signalCount;
+    }
+
+    public double getShift(final int signalIndex, final int dim) {
+        return this.shifts[dim][signalIndex];
+    }
+
+    public double[] getShifts(final int dim) {
+        return this.shifts[dim];
+    }
+
+    public byte getMultiplicityCode(final int signalIndex) {
+        return this.multiplicityCodes[signalIndex];
+    }
+
+    public byte[] getMultiplicityCodes() {
+        return this.multiplicityCodes;
+    }
+
+    public String getMultiplicity(final int signalIndex) {
+        return this.multiplicities[signalIndex];
+    }
+
+    public String[] getMultiplicities() {
+        return this.multiplicities;
+    }
+
+    /**
+     * Compares the multiplicities of two signals in the same way as spectra
+     * matching does, i.e. case-insensitive and null only equals null.
+     *
+     * @param signalIndex      signal index in this spectrum
+     * @param columnarSpectrum other spectrum
+     * @param signalIndexOther signal index in other spectrum
+     *
+     * @return
+     */
+    public boolean equalsMultiplicityIgnoreCase(final int signalIndex, final ColumnarSpectrum columnarSpectrum,
+                                                final int signalIndexOther) {
+        return equalsMultiplicityIgnoreCase(this.multiplicityCodes[signalIndex], this.multiplicities[signalIndex],
+                                            columnarSpectrum.multiplicityCodes[signalIndexOther],
+                                            columnarSpectrum.multiplicities[signalIndexOther]);
+    }
+
+    /**
+     * Compares two multiplicities case-insensitive, where null only equals
+     * null. The codes are compared first and the multiplicity strings only if
+     * one of the codes is {@link #MULTIPLICITY_CODE_OTHER}.
+     *
+     * @param code1         code of first multiplicity, see {@link #getMultiplicityCode(String)}
+     * @param multiplicity1 first multiplicity
+     * @param code2         code of second multiplicity
+     * @param multiplicity2 second multiplicity
+     *
+     * @return
+     */
+    public static boolean equalsMultiplicityIgnoreCase(final byte code1, final String multiplicity1,
+                                                       final byte code2, final String multiplicity2) {
+        if (code1
+                != MULTIPLICITY_CODE_OTHER
+                && code2
+                != MULTIPLICITY_CODE_OTHER) {
+            return code1
+                    == code2;
+        }
+
+        return multiplicity1
+                != null
+                && multiplicity1.equalsIgnoreCase(multiplicity2);
+    }
+
+    public String getKind(final int signalIndex) {
+        return this.kinds[signalIndex];
+    }
+
+    public double getIntensity(final int signalIndex) {
+        return this.intensities[signalIndex];
+    }
+
+    public int getEquivalencesCount(final int signalIndex) {
+        return this.equivalencesCounts[signalIndex];
+    }
+
+    public int[] getEquivalencesCounts() {
+        return this.equivalencesCounts;
+    }
+
+    public int getPhase(final int signalIndex) {
+        return this.phases[signalIndex];
+    }
+
+    public String getId(final int signalIndex) {
+        return this.ids[signalIndex];
+    }
+
+    public Signal getSignal(final int signalIndex) {
+        final Double[] signalShifts = new Double[this.getNDim()];
+        for (int dim = 0; dim
+                < this.getNDim(); dim++) {
+            signalShifts[dim] = Double.isNaN(this.shifts[dim][signalIndex])
+                                ? null
+                                : this.shifts[dim][signalIndex];
+        }
+
+        return new Signal(this.nuclei.clone(), signalShifts, this.getMultiplicity(signalIndex),
+                          this.kinds[signalIndex], Double.isNaN(this.intensities[signalIndex])
+                                                   ? null
+                                                   : this.intensities[signalIndex],
+                          this.equivalencesCounts[signalIndex], this.phases[signalIndex]
+                                  == NO_PHASE
+                                                                ? null
+                                                                : this.phases[signalIndex], null,
+                          this.ids[signalIndex]);
+    }
+
+    public Spectrum toSpectrum() {
+        final List<Signal> signals = new ArrayList<>(this.signalCount);
+        for (int i = 0; i
+                < this.signalCount; i++) {
+            signals.add(this.getSignal(i));
+        }
+
+        return new Spectrum(this.nuclei, this.meta, signals, this.signalCount);
+    }
+
+    public SpectrumCompact toSpectrumCompact() {
+        final SignalCompact[] signalCompacts = new SignalCompact[this.signalCount];
+        for (int i = 0; i
+                < this.signalCount; i++) {
+            signalCompacts[i] = new SignalCompact(this.getSignal(i));
+        }
+
+        return new SpectrumCompact(this.nuclei, this.meta, signalCompacts);
+    }
+
+    @Override
+    public String toString() {
+        return "ColumnarSpectrum{"
+                + "nuclei="
+                + Arrays.toString(this.nuclei)
+                + ", meta="
+                + this.meta
+                + ", signalCount="
+                + this.signalCount
+                + '}';
+    }
+}
@@ -28,7 +28,8 @@
  */
 package casekit.nmr.model;
 
-import lombok.AllArgsConstructor;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
@@ -40,7 +41,6 @@ import java.util.stream.Collectors;
  * @author Michael Wenk [https://github.com/michaelwenk]
  */
 @NoArgsConstructor
-@AllArgsConstructor
 @Getter
 @Setter
 public class Spectrum {
@@ -49,6 +49,85 @@ public class Spectrum {
     private Map<String, String> meta;
     private List<Signal> signals;
     private int signalCount;
+    // optional index for equivalence search, see setShiftIndexEnabled
+    // not part of the serialised spectrum, neither in Gson (transient) nor in Jackson
+    @JsonIgnore
+    @Setter(AccessLevel.NONE)
+    private transient boolean shiftIndexEnabled;
+    // dim -> shift -> signal indices, null if it has to be (re)built
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient List<TreeMap<Double, List<Integer>>> shiftIndex;
+
+    public Spectrum(final String[] nuclei, final Map<String, String> meta, final List<Signal> signals,
+                    final int signalCount) {
+        this.nuclei = nuclei;
+        this.meta = meta;
+        this.signals = signals;
+        this.signalCount = signalCount;
+    }
+
+    public void setNuclei(final String[] nuclei) {
+        this.nuclei = nuclei;
+        this.shiftIndex = null;
+    }
+
+    public void setSignals(final List<Signal> signals) {
+        this.signals = signals;
+        this.shiftIndex = null;
+    }
+
+    public void setSignalCount(final int signalCount) {
+        this.signalCount = signalCount;
+        this.shiftIndex = null;
+    }
+
+    /**
+     * Enables or disables a sorted shift index per dimension which makes the
+     * equivalence search in {@link #addSignal(Signal, double[], boolean)} and
+     * {@link #pickByClosestShift(double, int, double)} logarithmic instead of
+     * linear in the number of signals, with the same results. <br>
+     * The index is kept up to date on adding, setting and removing signals
+     * via this spectrum, but not if the shifts of already added signals or
+     * the signal list itself are modified from outside.
+     *
+     * @param shiftIndexEnabled whether to use the shift index
+     */
+    public void setShiftIndexEnabled(final boolean shiftIndexEnabled) {
+        this.shiftIndexEnabled = shiftIndexEnabled;
+        this.shiftIndex = null;
+    }
+
+    private List<TreeMap<Double, List<Integer>>> getShiftIndex() {
+        if (this.shiftIndex
+                == null) {
+            this.shiftIndex = new ArrayList<>();
+            for (int dim = 0; dim
+                    < this.getNDim(); dim++) {
+                this.shiftIndex.add(new TreeMap<>());
+            }
+            for (int s = 0; s
+                    < this.getSignalCount(); s++) {
+                this.addToShiftIndex(s);
+            }
+        }
+
+        return this.shiftIndex;
+    }
+
+    private void addToShiftIndex(final int signalIndex) {
+        Double shift;
+        for (int dim = 0; dim
+                < this.shiftIndex.size(); dim++) {
+            shift = this.getShift(signalIndex, dim);
+            if (shift
+                    != null) {
+                this.shiftIndex.get(dim)
+                               .computeIfAbsent(shift, key -> new ArrayList<>())
+                               .add(signalIndex);
+            }
+        }
+    }
 
     public void addMetaInfo(final String key, final String value) {
         if (this.meta
@@ -101,6 +180,11 @@ public class Spectrum {
         // add signal at the end of signal list
         this.signals.add(signal);
         this.signalCount++;
+        if (this.shiftIndex
+                != null) {
+            this.addToShiftIndex(this.signalCount
+                                         - 1);
+        }
 
         return true;
     }
@@ -134,18 +218,44 @@ public class Spectrum {
      */
     public List<Integer> checkForEquivalences(final Signal signal, final double[] pickPrecisions,
                                               final boolean checkMultiplicity) {
-        if (signal.getShift(0)
+        final Double[] shifts = new Double[this.getNDim()];
+        for (int dim = 0; dim
+                < this.getNDim(); dim++) {
+            shifts[dim] = signal.getShift(dim);
+        }
+
+        return this.checkForEquivalences(shifts, signal.getMultiplicity(), pickPrecisions, checkMultiplicity);
+    }
+
+    /**
+     * Checks for equivalent signals in all dimensions, given the shifts and
+     * multiplicity of a signal.
+     *
+     * @param shifts            shifts per dimension of this spectrum
+     * @param multiplicity      multiplicity
+     * @param pickPrecisions    picking precision per dimension
+     * @param checkMultiplicity whether multiplicity has to be checked too
+     *
+     * @return
+     *
+     * @see #checkForEquivalences(Signal, double[], boolean)
+     */
+    public List<Integer> checkForEquivalences(final Double[] shifts, final String multiplicity,
+                                              final double[] pickPrecisions, final boolean checkMultiplicity) {
+        if (shifts[0]
                 == null) {
             return null;
         }
         // check for equivalent signals in all dimensions
-        final List<Integer> closestSignalIndexList = this.pickByClosestShift(signal.getShift(0), 0, pickPrecisions[0]);
+        final List<Integer> closestSignalIndexList = this.pickByClosestShift(shifts[0], 0, pickPrecisions[0]);
         for (int dim = 1; dim
                 < this.getNDim(); dim++) {
-            closestSignalIndexList.retainAll(this.pickByClosestShift(signal.getShift(dim), dim, pickPrecisions[dim]));
+            closestSignalIndexList.retainAll(this.pickByClosestShift(shifts[dim], dim, pickPrecisions[dim]));
         }
         if (checkMultiplicity) {
-            closestSignalIndexList.retainAll(this.pickByMultiplicity(signal.getMultiplicity()));
+            // same as retaining the result of pickByMultiplicity, but without a scan of all signals
+            closestSignalIndexList.removeIf(signalIndex -> !Objects.equals(this.getMultiplicity(signalIndex),
+                                                                           multiplicity));
         }
 
         return closestSignalIndexList;
@@ -198,6 +308,8 @@ public class Spectrum {
         if (this.signals.remove(signalIndex)
                 != null) {
             this.signalCount--;
+            // all following signal indices are shifted
+            this.shiftIndex = null;
 
             return true;
         }
@@ -244,6 +356,7 @@ public class Spectrum {
         }
 
         this.signals.set(signalIndex, signal);
+        this.shiftIndex = null;
 
         return true;
     }
@@ -360,6 +473,9 @@ public class Spectrum {
         if (!this.containsDim(dim)) {
             return matchIndices;
         }
+        if (this.shiftIndexEnabled) {
+            return this.pickByClosestShiftFromIndex(shift, dim, pickPrecision);
+        }
         double minDiff = pickPrecision;
         // detect the minimal difference between a signal shift to the given query shift
         for (int s = 0; s
@@ -383,6 +499,57 @@ public class Spectrum {
         return matchIndices;
     }
 
+    private List<Integer> pickByClosestShiftFromIndex(final double shift, final int dim,
+                                                      final double pickPrecision) {
+        final TreeMap<Double, List<Integer>> shiftIndexDim = this.getShiftIndex()
+                                                                 .get(dim);
+        // the closest shifts are the neighbours of the query shift in sorted order
+        double minDiff = pickPrecision;
+        final Double lowerShift = shiftIndexDim.floorKey(shift);
+        final Double higherShift = shiftIndexDim.higherKey(shift);
+        if (lowerShift
+                != null
+                && Math.abs(lowerShift
+                                    - shift)
+                < minDiff) {
+            minDiff = Math.abs(lowerShift
+                                       - shift);
+        }
+        if (higherShift
+                != null
+                && Math.abs(higherShift
+                                    - shift)
+                < minDiff) {
+            minDiff = Math.abs(higherShift
+                                       - shift);
+        }
+        // collect all signals at that difference, going outwards from the query shift
+        final List<Integer> matchIndices = new ArrayList<>();
+        this.collectByShiftDifference(shiftIndexDim.headMap(shift, true)
+                                                   .descendingMap(), shift, minDiff, matchIndices);
+        this.collectByShiftDifference(shiftIndexDim.tailMap(shift, false), shift, minDiff, matchIndices);
+        Collections.sort(matchIndices);
+
+        return matchIndices;
+    }
+
+    private void collectByShiftDifference(final Map<Double, List<Integer>> shiftIndexDim, final double shift,
+                                          final double diff, final List<Integer> matchIndices) {
+        double currentDiff;
+        for (final Map.Entry<Double, List<Integer>> entry : shiftIndexDim.entrySet()) {
+            currentDiff = Math.abs(entry.getKey()
+                                   - shift);
+            if (currentDiff
+                    > diff) {
+                break;
+            }
+            if (currentDiff
+                    == diff) {
+                matchIndices.addAll(entry.getValue());
+            }
+        }
+    }
+
     /**
      * Returns a list of signal indices within the interval defined by
      * pickPrecision. That list is sorted by the distances to the query shift.
@@ -420,6 +587,7 @@ public class Spectrum {
         clone.setNuclei(this.getNuclei()
                             .clone());
         clone.setSignals(new ArrayList<>());
+        clone.setShiftIndexEnabled(this.isShiftIndexEnabled());
         for (int i = 0; i
                 < this.getSignalCount(); i++) {
             clone.addSignal(this.getSignal(i)
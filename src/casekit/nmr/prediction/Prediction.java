@@ -24,13 +24,17 @@
 package casekit.nmr.prediction;
 
 
+import casekit.nmr.analysis.HOSECodeShiftStatisticsIndex;
 import casekit.nmr.analysis.MultiplicitySectionsBuilder;
 import casekit.nmr.elucidation.model.Detections;
 import casekit.nmr.filterandrank.FilterAndRank;
+import casekit.nmr.filterandrank.model.PreparedQuery;
 import casekit.nmr.fragments.model.ConnectionTree;
 import casekit.nmr.fragments.model.ConnectionTreeNode;
 import casekit.nmr.hose.HOSECodeBuilder;
+import casekit.nmr.hose.HOSECodeUtilities;
 import casekit.nmr.model.*;
+import casekit.nmr.prediction.model.PredictionResult;
 import casekit.nmr.utils.Statistics;
 import casekit.nmr.utils.Utils;
 import casekit.threading.MultiThreading;
@@ -44,20 +48,20 @@ import org.openscience.cdk.tools.manipulator.AtomContainerManipulator;
 import org.openscience.nmrshiftdb.util.AtomUtils;
 import org.openscience.nmrshiftdb.util.ExtendedHOSECodeGenerator;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 /**
  * @author Michael Wenk [https://github.com/michaelwenk]
  */
 public class Prediction {
 
-    private final static ExtendedHOSECodeGenerator extendedHOSECodeGenerator = new ExtendedHOSECodeGenerator();
+    // the generator keeps state while building a HOSE code, so each thread needs its own instance
+    private final static ThreadLocal<ExtendedHOSECodeGenerator> extendedHOSECodeGenerator = ThreadLocal.withInitial(
+            ExtendedHOSECodeGenerator::new);
 
     /**
      * Diastereotopic distinctions are not provided yet.
@@ -71,72 +75,130 @@ public class Prediction {
      */
     public static DataSet predict1D(final Map<String, Map<String, Double[]>> hoseCodeShiftStatistics,
                                     final IAtomContainer structure, final String nucleus, final String solvent) {
+        return predict1D(hoseCodeShiftStatistics, null, structure, nucleus, solvent);
+    }
+
+    /**
+     * Diastereotopic distinctions are not provided yet. <br>
+     * Same as {@link #predict1D(Map, IAtomContainer, String, String)}, but the
+     * given index is used to skip all spheres for which the HOSE code shift
+     * statistics contain no HOSE code with the same root sphere, number of
+     * spheres and solvent. Thus, the index should be created once and reused
+     * for many predictions.
+     *
+     * @param hoseCodeShiftStatisticsIndex index of HOSE code shift statistics
+     * @param structure
+     * @param nucleus
+     * @param solvent
+     *
+     * @return
+     */
+    public static DataSet predict1D(final HOSECodeShiftStatisticsIndex hoseCodeShiftStatisticsIndex,
+                                    final IAtomContainer structure, final String nucleus, final String solvent) {
+        return predict1D(hoseCodeShiftStatisticsIndex.getHOSECodeShiftStatistics(), hoseCodeShiftStatisticsIndex,
+                         structure, nucleus, solvent);
+    }
+
+    private static DataSet predict1D(final Map<String, Map<String, Double[]>> hoseCodeShiftStatistics,
+                                     final HOSECodeShiftStatisticsIndex hoseCodeShiftStatisticsIndex,
+                                     final IAtomContainer structure, final String nucleus, final String solvent) {
+        try {
+            return buildPrediction1D(hoseCodeShiftStatistics, hoseCodeShiftStatisticsIndex, structure, nucleus,
+                                     solvent);
+        } catch (final CDKException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static DataSet buildPrediction1D(final Map<String, Map<String, Double[]>> hoseCodeShiftStatistics,
+                                             final HOSECodeShiftStatisticsIndex hoseCodeShiftStatisticsIndex,
+                                             final IAtomContainer structure, final String nucleus,
+                                             final String solvent) throws CDKException {
         final int minMatchingSphere = 1;
         final Spectrum spectrum = new Spectrum();
         spectrum.setNuclei(new String[]{nucleus});
         spectrum.addMetaInfo("solvent", solvent);
         spectrum.setSignals(new ArrayList<>());
+        spectrum.setShiftIndexEnabled(true);
         final Assignment assignment = new Assignment();
         assignment.setNuclei(spectrum.getNuclei());
         assignment.initAssignments(0);
 
         final CDKHydrogenAdder hydrogenAdder = CDKHydrogenAdder.getInstance(SilentChemObjectBuilder.getInstance());
-        String hoseCode, atomTypeSpectrum;
+        String hoseCode, atomTypeSpectrum, rootSphere;
         Signal signal;
         Double shift;
         Integer addedSignalIndex;
-        ConnectionTree connectionTree;
-
-        try {
-            AtomContainerManipulator.percieveAtomTypesAndConfigureAtoms(structure);
-            Utils.convertExplicitToImplicitHydrogens(structure);
-            hydrogenAdder.addImplicitHydrogens(structure);
-            Utils.convertImplicitToExplicitHydrogens(structure);
-            Utils.setAromaticityAndKekulize(structure);
-
-            for (int i = 0; i
-                    < structure.getAtomCount(); i++) {
-                atomTypeSpectrum = Utils.getAtomTypeFromNucleus(nucleus);
-                if (structure.getAtom(i)
-                             .getSymbol()
-                             .equals(atomTypeSpectrum)) {
-                    connectionTree = HOSECodeBuilder.buildConnectionTree(structure, i, null);
-                    shift = null;
-                    for (int s = connectionTree.getMaxSphere(true); s
-                            >= minMatchingSphere; s--) {
-                        hoseCode = HOSECodeBuilder.buildHOSECode(structure, i, s, false);
-                        if (hoseCodeShiftStatistics.containsKey(hoseCode)
-                                && hoseCodeShiftStatistics.get(hoseCode)
-                                                          .containsKey(solvent)) {
-                            shift = hoseCodeShiftStatistics.get(hoseCode)
-                                                           .get(solvent)[3]; // take median value
-                            break;
-                        }
+        ConnectionTree connectionTree, truncatedConnectionTree;
+        int maxSphere;
+
+        AtomContainerManipulator.percieveAtomTypesAndConfigureAtoms(structure);
+        Utils.convertExplicitToImplicitHydrogens(structure);
+        hydrogenAdder.addImplicitHydrogens(structure);
+        Utils.convertImplicitToExplicitHydrogens(structure);
+        Utils.setAromaticityAndKekulize(structure);
+
+        atomTypeSpectrum = Utils.getAtomTypeFromNucleus(nucleus);
+        // BFS only once per atom, the connection trees of lower spheres are truncated copies
+        final ConnectionTree[] connectionTrees = HOSECodeBuilder.buildConnectionTrees(structure, atomTypeSpectrum,
+                                                                                      null, false);
+        for (int i = 0; i
+                < structure.getAtomCount(); i++) {
+            if (structure.getAtom(i)
+                         .getSymbol()
+                         .equals(atomTypeSpectrum)) {
+                connectionTree = connectionTrees[i];
+                maxSphere = connectionTree.getMaxSphere(true);
+                rootSphere = null;
+                if (hoseCodeShiftStatisticsIndex
+                        != null) {
+                    rootSphere = HOSECodeShiftStatisticsIndex.getRootSphere(
+                            HOSECodeBuilder.buildTruncatedHOSECode(connectionTree, 0, false));
+                    maxSphere = Math.min(maxSphere,
+                                         hoseCodeShiftStatisticsIndex.getMaxSphereCount(rootSphere, solvent));
+                }
+                shift = null;
+                for (int s = maxSphere; s
+                        >= minMatchingSphere; s--) {
+                    truncatedConnectionTree = ConnectionTree.buildTruncatedTree(connectionTree, s);
+                    if (hoseCodeShiftStatisticsIndex
+                            != null
+                            && !hoseCodeShiftStatisticsIndex.containsSphereCount(rootSphere,
+                                                                                 truncatedConnectionTree.getMaxSphere(
+                                                                                         true), solvent)) {
+                        continue;
                     }
-                    signal = new Signal();
-                    signal.setNuclei(spectrum.getNuclei());
-                    signal.setEquivalencesCount(1);
-                    if (atomTypeSpectrum.equals("C")) {
-                        signal.setMultiplicity(Utils.getMultiplicityFromProtonsCount(
-                                AtomContainerManipulator.countHydrogens(structure, structure.getAtom(i))));
+                    HOSECodeUtilities.rankChildNodes(truncatedConnectionTree);
+                    hoseCode = HOSECodeBuilder.buildHOSECode(truncatedConnectionTree, false);
+                    if (hoseCodeShiftStatistics.containsKey(hoseCode)
+                            && hoseCodeShiftStatistics.get(hoseCode)
+                                                      .containsKey(solvent)) {
+                        shift = hoseCodeShiftStatistics.get(hoseCode)
+                                                       .get(solvent)[3]; // take median value
+                        break;
                     }
+                }
+                signal = new Signal();
+                signal.setNuclei(spectrum.getNuclei());
+                signal.setEquivalencesCount(1);
+                if (atomTypeSpectrum.equals("C")) {
+                    signal.setMultiplicity(Utils.getMultiplicityFromProtonsCount(
+                            AtomContainerManipulator.countHydrogens(structure, structure.getAtom(i))));
+                }
 
-                    signal.setKind("signal");
-                    signal.setShifts(new Double[]{shift});
-                    addedSignalIndex = spectrum.addSignal(signal);
-                    if (addedSignalIndex
-                            == null
-                            || addedSignalIndex
-                            >= assignment.getSetAssignmentsCount(0)) {
-                        assignment.addAssignment(0, new int[]{i});
-                    } else {
-                        assignment.addAssignmentEquivalence(0, addedSignalIndex, i);
-                    }
+                signal.setKind("signal");
+                signal.setShifts(new Double[]{shift});
+                addedSignalIndex = spectrum.addSignal(signal);
+                if (addedSignalIndex
+                        == null
+                        || addedSignalIndex
+                        >= assignment.getSetAssignmentsCount(0)) {
+                    assignment.addAssignment(0, new int[]{i});
+                } else {
+                    assignment.addAssignmentEquivalence(0, addedSignalIndex, i);
                 }
             }
-        } catch (final CDKException e) {
-            e.printStackTrace();
-            return null;
         }
 
         return new DataSet(structure, spectrum, assignment, new HashMap<>(), new HashMap<>());
@@ -170,6 +232,345 @@ public class Prediction {
                                     maxPathLength);
     }
 
+    private static DataSet buildPrediction2D(final Map<String, Map<String, Double[]>> hoseCodeShiftStatistics,
+                                             final IAtomContainer structure, final String[] nuclei,
+                                             final String solvent, final int minPathLength,
+                                             final int maxPathLength) throws CDKException {
+        final DataSet predictionDim1 = buildPrediction1D(hoseCodeShiftStatistics, null, structure, nuclei[0],
+                                                         solvent);
+        final DataSet predictionDim2 = buildPrediction1D(hoseCodeShiftStatistics, null, structure, nuclei[1],
+                                                         solvent);
+        return Prediction.predict2D(structure, predictionDim1.getSpectrum()
+                                                             .toSpectrum(), predictionDim2.getSpectrum()
+                                                                                          .toSpectrum(),
+                                    predictionDim1.getAssignment(), predictionDim2.getAssignment(), minPathLength,
+                                    maxPathLength);
+    }
+
+    /**
+     * Predicts the 1D spectra of a list of structures in parallel, see
+     * {@link #predict1D(Map, IAtomContainer, String, String)}. <br>
+     * The structures are modified during prediction, so the same structure
+     * instance must not occur multiple times in the list.
+     *
+     * @param hoseCodeShiftStatistics HOSE code shift statistics
+     * @param structureList           structures to predict the spectra for
+     * @param nucleus                 nucleus
+     * @param solvent                 solvent
+     * @param nThreads                number of threads to use
+     *
+     * @return prediction results in the same order as the given structures
+     */
+    public static List<PredictionResult> predict1D(final Map<String, Map<String, Double[]>> hoseCodeShiftStatistics,
+                                                   final List<IAtomContainer> structureList, final String nucleus,
+                                                   final String solvent, final int nThreads) {
+        final ExecutorService executor = MultiThreading.initExecuter(nThreads);
+        try {
+            return predict1D(hoseCodeShiftStatistics, structureList, nucleus, solvent, executor);
+        } finally {
+            MultiThreading.stopExecuter(executor, 5);
+        }
+    }
+
+    /**
+     * Predicts the 1D spectra of a list of structures by using a given
+     * executor, see {@link #predict1D(Map, List, String, String, int)}. The
+     * executor is not shut down afterwards.
+     *
+     * @param hoseCodeShiftStatistics HOSE code shift statistics
+     * @param structureList           structures to predict the spectra for
+     * @param nucleus                 nucleus
+     * @param solvent                 solvent
+     * @param executor                executor to run the predictions on
+     *
+     * @return prediction results in the same order as the given structures
+     */
+    public static List<PredictionResult> predict1D(final Map<String, Map<String, Double[]>> hoseCodeShiftStatistics,
+                                                   final List<IAtomContainer> structureList, final String nucleus,
+                                                   final String solvent, final ExecutorService executor) {
+        return predictInParallel(structureList,
+                                 structure -> buildPrediction1D(hoseCodeShiftStatistics, null, structure, nucleus,
+                                                                solvent), executor);
+    }
+
+    /**
+     * Predicts the 1D spectra of a list of structures by using a given
+     * executor and an index of the HOSE code shift statistics, see
+     * {@link #predict1D(HOSECodeShiftStatisticsIndex, IAtomContainer, String, String)}
+     * and {@link #predict1D(Map, List, String, String, int)}. The executor is
+     * not shut down afterwards.
+     *
+     * @param hoseCodeShiftStatisticsIndex index of HOSE code shift statistics
+     * @param structureList                structures to predict the spectra for
+     * @param nucleus                      nucleus
+     * @param solvent                      solvent
+     * @param executor                     executor to run the predictions on
+     *
+     * @return prediction results in the same order as the given structures
+     */
+    public static List<PredictionResult> predict1D(final HOSECodeShiftStatisticsIndex hoseCodeShiftStatisticsIndex,
+                                                   final List<IAtomContainer> structureList, final String nucleus,
+                                                   final String solvent, final ExecutorService executor) {
+        return predictInParallel(structureList, structure -> buildPrediction1D(
+                hoseCodeShiftStatisticsIndex.getHOSECodeShiftStatistics(), hoseCodeShiftStatisticsIndex, structure,
+                nucleus, solvent), executor);
+    }
+
+    /**
+     * Predicts the 2D spectra of a list of structures in parallel, see
+     * {@link #predict2D(Map, IAtomContainer, String[], String, int, int)}. <br>
+     * The structures are modified during prediction, so the same structure
+     * instance must not occur multiple times in the list.
+     *
+     * @param hoseCodeShiftStatistics HOSE code shift statistics
+     * @param structureList           structures to predict the spectra for
+     * @param nuclei                  nuclei for 2D spectrum to predict
+     * @param solvent                 solvent
+     * @param minPathLength           minimal path length
+     * @param maxPathLength           maximal path length
+     * @param nThreads                number of threads to use
+     *
+     * @return prediction results in the same order as the given structures
+     */
+    public static List<PredictionResult> predict2D(final Map<String, Map<String, Double[]>> hoseCodeShiftStatistics,
+                                                   final List<IAtomContainer> structureList, final String[] nuclei,
+                                                   final String solvent, final int minPathLength,
+                                                   final int maxPathLength, final int nThreads) {
+        final ExecutorService executor = MultiThreading.initExecuter(nThreads);
+        try {
+            return predict2D(hoseCodeShiftStatistics, structureList, nuclei, solvent, minPathLength, maxPathLength,
+                             executor);
+        } finally {
+            MultiThreading.stopExecuter(executor, 5);
+        }
+    }
+
+    /**
+     * Predicts the 2D spectra of a list of structures by using a given
+     * executor, see {@link #predict2D(Map, List, String[], String, int, int, int)}.
+     * The executor is not shut down afterwards.
+     *
+     * @param hoseCodeShiftStatistics HOSE code shift statistics
+     * @param structureList           structures to predict the spectra for
+     * @param nuclei                  nuclei for 2D spectrum to predict
+     * @param solvent                 solvent
+     * @param minPathLength           minimal path length
+     * @param maxPathLength           maximal path length
+     * @param executor                executor to run the predictions on
+     *
+     * @return prediction results in the same order as the given structures
+     */
+    public static List<PredictionResult> predict2D(final Map<String, Map<String, Double[]>> hoseCodeShiftStatistics,
+                                                   final List<IAtomContainer> structureList, final String[] nuclei,
+                                                   final String solvent, final int minPathLength,
+                                                   final int maxPathLength, final ExecutorService executor) {
+        return predictInParallel(structureList,
+                                 structure -> buildPrediction2D(hoseCodeShiftStatistics, structure, nuclei, solvent,
+                                                                minPathLength, maxPathLength), executor);
+    }
+
+    /**
+     * Runs a prediction for each structure on the given executor. A failure
+     * for one structure is stored in its result and does not affect the
+     * others.
+     *
+     * @param structureList       structures to predict the spectra for
+     * @param structurePrediction prediction to run per structure
+     * @param executor            executor to run the predictions on
+     *
+     * @return prediction results in the same order as the given structures
+     */
+    private static List<PredictionResult> predictInParallel(final List<IAtomContainer> structureList,
+                                                            final StructurePrediction structurePrediction,
+                                                            final ExecutorService executor) {
+        final List<Future<PredictionResult>> futures = new ArrayList<>(structureList.size());
+        for (final IAtomContainer structure : structureList) {
+            futures.add(executor.submit(() -> predict(structurePrediction, structure)));
+        }
+        final List<PredictionResult> predictionResults = new ArrayList<>(futures.size());
+        for (int i = 0; i
+                < futures.size(); i++) {
+            try {
+                predictionResults.add(futures.get(i)
+                                             .get());
+            } catch (final ExecutionException e) {
+                predictionResults.add(new PredictionResult(null, e));
+            } catch (final InterruptedException e) {
+                Thread.currentThread()
+                      .interrupt();
+                // cancel all remaining predictions
+                for (int j = i; j
+                        < futures.size(); j++) {
+                    futures.get(j)
+                           .cancel(true);
+                    predictionResults.add(new PredictionResult(null, e));
+                }
+                break;
+            }
+        }
+
+        return predictionResults;
+    }
+
+    /**
+     * Predicts the 1D spectra of structures from an iterator in parallel, see
+     * {@link #predict1D(Map, List, String, String, int)}. The structures are
+     * read lazily and the results are returned in input order as lazy stream,
+     * so large structure sources never need to be held in memory, see
+     * {@link MultiThreading#processOrdered(Iterator, Function, int)}.
+     *
+     * @param hoseCodeShiftStatistics HOSE code shift statistics
+     * @param structures              structures to predict the spectra for
+     * @param nucleus                 nucleus
+     * @param solvent                 solvent
+     * @param nThreads                number of threads to use
+     *
+     * @return prediction results in the same order as the given structures
+     */
+    public static Stream<PredictionResult> predict1D(final Map<String, Map<String, Double[]>> hoseCodeShiftStatistics,
+                                                     final Iterator<IAtomContainer> structures, final String nucleus,
+                                                     final String solvent, final int nThreads) {
+        return predictOrdered(structures,
+                              structure -> buildPrediction1D(hoseCodeShiftStatistics, null, structure, nucleus,
+                                                             solvent), nThreads);
+    }
+
+    /**
+     * Predicts the 1D spectra of structures from a stream in parallel, see
+     * {@link #predict1D(Map, Iterator, String, String, int)}. Closing the
+     * returned stream also closes the given one.
+     *
+     * @param hoseCodeShiftStatistics HOSE code shift statistics
+     * @param structureStream         structures to predict the spectra for
+     * @param nucleus                 nucleus
+     * @param solvent                 solvent
+     * @param nThreads                number of threads to use
+     *
+     * @return prediction results in the same order as the given structures
+     */
+    public static Stream<PredictionResult> predict1D(final Map<String, Map<String, Double[]>> hoseCodeShiftStatistics,
+                                                     final Stream<IAtomContainer> structureStream,
+                                                     final String nucleus, final String solvent, final int nThreads) {
+        return predict1D(hoseCodeShiftStatistics, structureStream.iterator(), nucleus, solvent, nThreads).onClose(
+                structureStream::close);
+    }
+
+    /**
+     * Predicts the 1D spectra of structures from an iterator in parallel by
+     * using an index of the HOSE code shift statistics, see
+     * {@link #predict1D(HOSECodeShiftStatisticsIndex, List, String, String, ExecutorService)}
+     * and {@link #predict1D(Map, Iterator, String, String, int)}.
+     *
+     * @param hoseCodeShiftStatisticsIndex index of HOSE code shift statistics
+     * @param structures                   structures to predict the spectra for
+     * @param nucleus                      nucleus
+     * @param solvent                      solvent
+     * @param nThreads                     number of threads to use
+     *
+     * @return prediction results in the same order as the given structures
+     */
+    public static Stream<PredictionResult> predict1D(final HOSECodeShiftStatisticsIndex hoseCodeShiftStatisticsIndex,
+                                                     final Iterator<IAtomContainer> structures, final String nucleus,
+                                                     final String solvent, final int nThreads) {
+        return predictOrdered(structures, structure -> buildPrediction1D(
+                hoseCodeShiftStatisticsIndex.getHOSECodeShiftStatistics(), hoseCodeShiftStatisticsIndex, structure,
+                nucleus, solvent), nThreads);
+    }
+
+    /**
+     * Predicts the 1D spectra of structures from a stream in parallel by
+     * using an index of the HOSE code shift statistics, see
+     * {@link #predict1D(HOSECodeShiftStatisticsIndex, Iterator, String, String, int)}.
+     * Closing the returned stream also closes the given one.
+     *
+     * @param hoseCodeShiftStatisticsIndex index of HOSE code shift statistics
+     * @param structureStream              structures to predict the spectra for
+     * @param nucleus                      nucleus
+     * @param solvent                      solvent
+     * @param nThreads                     number of threads to use
+     *
+     * @return prediction results in the same order as the given structures
+     */
+    public static Stream<PredictionResult> predict1D(final HOSECodeShiftStatisticsIndex hoseCodeShiftStatisticsIndex,
+                                                     final Stream<IAtomContainer> structureStream,
+                                                     final String nucleus, final String solvent, final int nThreads) {
+        return predict1D(hoseCodeShiftStatisticsIndex, structureStream.iterator(), nucleus, solvent,
+                         nThreads).onClose(structureStream::close);
+    }
+
+    /**
+     * Predicts the 2D spectra of structures from an iterator in parallel, see
+     * {@link #predict2D(Map, List, String[], String, int, int, int)} and
+     * {@link #predict1D(Map, Iterator, String, String, int)}.
+     *
+     * @param hoseCodeShiftStatistics HOSE code shift statistics
+     * @param structures              structures to predict the spectra for
+     * @param nuclei                  nuclei for 2D spectrum to predict
+     * @param solvent                 solvent
+     * @param minPathLength           minimal path length
+     * @param maxPathLength           maximal path length
+     * @param nThreads                number of threads to use
+     *
+     * @return prediction results in the same order as the given structures
+     */
+    public static Stream<PredictionResult> predict2D(final Map<String, Map<String, Double[]>> hoseCodeShiftStatistics,
+                                                     final Iterator<IAtomContainer> structures, final String[] nuclei,
+                                                     final String solvent, final int minPathLength,
+                                                     final int maxPathLength, final int nThreads) {
+        return predictOrdered(structures,
+                              structure -> buildPrediction2D(hoseCodeShiftStatistics, structure, nuclei, solvent,
+                                                             minPathLength, maxPathLength), nThreads);
+    }
+
+    /**
+     * Predicts the 2D spectra of structures from a stream in parallel, see
+     * {@link #predict2D(Map, Iterator, String[], String, int, int, int)}.
+     * Closing the returned stream also closes the given one.
+     *
+     * @param hoseCodeShiftStatistics HOSE code shift statistics
+     * @param structureStream         structures to predict the spectra for
+     * @param nuclei                  nuclei for 2D spectrum to predict
+     * @param solvent                 solvent
+     * @param minPathLength           minimal path length
+     * @param maxPathLength           maximal path length
+     * @param nThreads                number of threads to use
+     *
+     * @return prediction results in the same order as the given structures
+     */
+    public static Stream<PredictionResult> predict2D(final Map<String, Map<String, Double[]>> hoseCodeShiftStatistics,
+                                                     final Stream<IAtomContainer> structureStream,
+                                                     final String[] nuclei, final String solvent,
+                                                     final int minPathLength, final int maxPathLength,
+                                                     final int nThreads) {
+        return predict2D(hoseCodeShiftStatistics, structureStream.iterator(), nuclei, solvent, minPathLength,
+                         maxPathLength, nThreads).onClose(structureStream::close);
+    }
+
+    private static Stream<PredictionResult> predictOrdered(final Iterator<IAtomContainer> structures,
+                                                           final StructurePrediction structurePrediction,
+                                                           final int nThreads) {
+        return MultiThreading.processOrdered(structures, structure -> predict(structurePrediction, structure),
+                                             nThreads);
+    }
+
+    /**
+     * Runs a prediction for a single structure and stores a failure in the
+     * result instead of throwing it.
+     *
+     * @param structurePrediction prediction to run
+     * @param structure           structure to predict the spectrum for
+     *
+     * @return
+     */
+    private static PredictionResult predict(final StructurePrediction structurePrediction,
+                                            final IAtomContainer structure) {
+        try {
+            return new PredictionResult(structurePrediction.predict(structure), null);
+        } catch (final Exception e) {
+            return new PredictionResult(null, e);
+        }
+    }
+
     /**
      * Predicts a 2D spectrum from two 1D spectra. <br>
      * Each 1D spectra needs to contain the same solvent information. <br>
@@ -338,17 +739,20 @@ public class Prediction {
         multiplicitySectionsBuilder.setMaxLimit(multiplicitySectionsSettings.get(querySpectrum.getNuclei()[0])[1]);
         multiplicitySectionsBuilder.setStepSize(multiplicitySectionsSettings.get(querySpectrum.getNuclei()[0])[2]);
 
+        final PreparedQuery preparedQuery = FilterAndRank.prepareQuery(querySpectrum, shiftTolerance,
+                                                                       maximumAverageDeviation, checkMultiplicity,
+                                                                       checkEquivalencesCount,
+                                                                       allowLowerEquivalencesCount,
+                                                                       multiplicitySectionsBuilder, true, detections,
+                                                                       false);
+
         List<DataSet> dataSetList = new ArrayList<>();
         try {
             final ConcurrentLinkedQueue<DataSet> dataSetConcurrentLinkedQueue = new ConcurrentLinkedQueue<>();
             final List<Callable<DataSet>> callables = new ArrayList<>();
             for (final IAtomContainer structure : structureList) {
-                callables.add(
-                        () -> predict1DByStereoHOSECodeAndFilter(structure, querySpectrum, maxSphere, shiftTolerance,
-                                                                 maximumAverageDeviation, checkMultiplicity,
-                                                                 checkEquivalencesCount, allowLowerEquivalencesCount,
-                                                                 detections, hoseCodeShiftStatistics,
-                                                                 multiplicitySectionsBuilder));
+                callables.add(() -> predict1DByStereoHOSECodeAndFilter(structure, preparedQuery, maxSphere,
+                                                                       hoseCodeShiftStatistics));
             }
             final Consumer<DataSet> consumer = (dataSet) -> {
                 if (dataSet
@@ -366,22 +770,14 @@ public class Prediction {
     }
 
     private static DataSet predict1DByStereoHOSECodeAndFilter(final IAtomContainer structure,
-                                                              final Spectrum querySpectrum, final int maxSphere,
-                                                              final double shiftTolerance,
-                                                              final double maxAverageDeviation,
-                                                              final boolean checkMultiplicity,
-                                                              final boolean checkEquivalencesCount,
-                                                              final boolean allowLowerEquivalencesCount,
-                                                              final Detections detections,
-                                                              final Map<String, Map<String, Double[]>> hoseCodeShiftStatistics,
-                                                              final MultiplicitySectionsBuilder multiplicitySectionsBuilder) {
-        final String nucleus = querySpectrum.getNuclei()[0];
+                                                              final PreparedQuery preparedQuery, final int maxSphere,
+                                                              final Map<String, Map<String, Double[]>> hoseCodeShiftStatistics) {
+        final String nucleus = preparedQuery.getQuerySpectrum()
+                                            .getNuclei()[0];
         final DataSet dataSet = predict1DByStereoHOSECode(structure, nucleus, maxSphere, hoseCodeShiftStatistics);
         if (dataSet
                 != null) {
-            return FilterAndRank.checkDataSet(dataSet, querySpectrum, shiftTolerance, maxAverageDeviation,
-                                              checkMultiplicity, checkEquivalencesCount, allowLowerEquivalencesCount,
-                                              multiplicitySectionsBuilder, true, detections);
+            return FilterAndRank.checkDataSet(dataSet, preparedQuery);
         }
 
         return null;
@@ -412,6 +808,7 @@ public class Prediction {
             final Spectrum predictedSpectrum = new Spectrum();
             predictedSpectrum.setNuclei(new String[]{nucleus});
             predictedSpectrum.setSignals(new ArrayList<>());
+            predictedSpectrum.setShiftIndexEnabled(true);
 
             final Map<Integer, List<Integer>> assignmentMap = new HashMap<>();
             final Map<Integer, Double[]> predictionMeta = new HashMap<>();
@@ -430,7 +827,8 @@ public class Prediction {
                 while (sphere
                         >= 1) {
                     try {
-                        hoseCode = extendedHOSECodeGenerator.getHOSECode(structure, structure.getAtom(i), sphere);
+                        hoseCode = extendedHOSECodeGenerator.get()
+                                                     .getHOSECode(structure, structure.getAtom(i), sphere);
                         hoseCodeObjectValues = hoseCodeShiftStatistics.get(hoseCode);
                         if (hoseCodeObjectValues
                                 != null) {
@@ -501,4 +899,9 @@ public class Prediction {
 
         return null;
     }
+
+    private interface StructurePrediction {
+
+        DataSet predict(IAtomContainer structure) throws CDKException;
+    }
 }
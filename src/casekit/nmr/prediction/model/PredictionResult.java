@@ -0,0 +1,26 @@
+package casekit.nmr.prediction.model;
+
+import casekit.nmr.model.DataSet;
+import lombok.*;
+
+/**
+ * Result of a prediction for a single structure of a batch: either the
+ * predicted data set or the exception which occurred for that structure.
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+@ToString
+public class PredictionResult {
+
+    private DataSet dataSet;
+    private Exception exception;
+
+    public boolean isSuccessful() {
+        return this.exception
+                == null
+                && this.dataSet
+                != null;
+    }
+}
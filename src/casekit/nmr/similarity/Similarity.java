@@ -15,18 +15,18 @@ package casekit.nmr.similarity;
 import casekit.nmr.analysis.MultiplicitySectionsBuilder;
 import casekit.nmr.elucidation.model.Detections;
 import casekit.nmr.model.Assignment;
+import casekit.nmr.model.ColumnarSpectrum;
 import casekit.nmr.model.Signal;
 import casekit.nmr.model.Spectrum;
-import casekit.nmr.similarity.model.Distance;
+import casekit.nmr.similarity.model.Distances;
+import casekit.nmr.similarity.model.MatchingSignals;
 import casekit.nmr.utils.Statistics;
 import org.openscience.cdk.fingerprint.BitSetFingerprint;
 import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.similarity.Tanimoto;
 
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 public class Similarity {
 
@@ -46,6 +46,13 @@ public class Similarity {
                 && spectrum2.containsDim(dim2);
     }
 
+    private static boolean checkDimensions(final ColumnarSpectrum columnarSpectrum1,
+                                           final ColumnarSpectrum columnarSpectrum2, final int dim1,
+                                           final int dim2) {
+        return columnarSpectrum1.containsDim(dim1)
+                && columnarSpectrum2.containsDim(dim2);
+    }
+
     /**
      * Calculates the continuous Tanimoto coefficient between two spectra in given dimensions.
      *
@@ -67,6 +74,18 @@ public class Similarity {
                                             getBitSetFingerprint(spectrum2, dim2, multiplicitySectionsBuilder));
     }
 
+    public static Double calculateTanimotoCoefficient(final ColumnarSpectrum columnarSpectrum1,
+                                                      final ColumnarSpectrum columnarSpectrum2, final int dim1,
+                                                      final int dim2,
+                                                      final MultiplicitySectionsBuilder multiplicitySectionsBuilder) {
+        if (!Similarity.checkDimensions(columnarSpectrum1, columnarSpectrum2, dim1, dim2)) {
+            return null;
+        }
+
+        return calculateTanimotoCoefficient(getBitSetFingerprint(columnarSpectrum1, dim1, multiplicitySectionsBuilder),
+                                            getBitSetFingerprint(columnarSpectrum2, dim2, multiplicitySectionsBuilder));
+    }
+
     public static Double calculateTanimotoCoefficient(final BitSetFingerprint bitSetFingerprint1,
                                                       final BitSetFingerprint bitSetFingerprint2) {
         if (bitSetFingerprint1
@@ -98,6 +117,58 @@ public class Similarity {
         return bitSetFingerprint;
     }
 
+    public static BitSetFingerprint getBitSetFingerprint(final ColumnarSpectrum columnarSpectrum, final int dim,
+                                                         final MultiplicitySectionsBuilder multiplicitySectionsBuilder) {
+        final BitSetFingerprint bitSetFingerprint = new BitSetFingerprint(multiplicitySectionsBuilder.getSteps());
+        final Map<String, List<Integer>> multiplicitySections = multiplicitySectionsBuilder.buildMultiplicitySections(
+                columnarSpectrum, dim);
+        for (final Map.Entry<String, List<Integer>> entry : multiplicitySections.entrySet()) {
+            for (final int section : entry.getValue()) {
+                bitSetFingerprint.set(section, true);
+            }
+        }
+
+        return bitSetFingerprint;
+    }
+
+    /**
+     * Builds the same fingerprint as
+     * {@link #getBitSetFingerprint(Spectrum, int, MultiplicitySectionsBuilder)}
+     * from already extracted signals.
+     *
+     * @param matchingSignals             signals
+     * @param multiplicitySectionsBuilder multiplicity sections builder
+     *
+     * @return
+     */
+    public static BitSetFingerprint getBitSetFingerprint(final MatchingSignals matchingSignals,
+                                                         final MultiplicitySectionsBuilder multiplicitySectionsBuilder) {
+        final BitSetFingerprint bitSetFingerprint = new BitSetFingerprint(multiplicitySectionsBuilder.getSteps());
+        Integer shiftSection;
+        for (int i = 0; i
+                < matchingSignals.getSignalCount(); i++) {
+            shiftSection = multiplicitySectionsBuilder.calculateShiftSection(
+                    Double.isNaN(matchingSignals.getShifts()[i])
+                    ? null
+                    : matchingSignals.getShifts()[i]);
+            if (shiftSection
+                    == null) {
+                System.err.println("MultiplicitySectionsBuilder: chemical shift is missing for signal index "
+                                           + i);
+                continue;
+            }
+            if (multiplicitySectionsBuilder.checkMultiplicity(matchingSignals.getMultiplicities()[i])
+                    == null) {
+                System.err.println("MultiplicitySectionsBuilder: signal multiplicity is not in list: "
+                                           + matchingSignals.getMultiplicities()[i]);
+                continue;
+            }
+            bitSetFingerprint.set(shiftSection, true);
+        }
+
+        return bitSetFingerprint;
+    }
+
     /**
      * Returns deviations between two already matched spectra.
      *
@@ -129,6 +200,68 @@ public class Similarity {
         return deviations;
     }
 
+    /**
+     * Returns deviations between the signals of two already matched spectra,
+     * NaN for signals without match.
+     *
+     * @param matchingSignals1 signals of first spectrum
+     * @param matchingSignals2 signals of second spectrum
+     * @param assignments      assignments from previous matching
+     *
+     * @return
+     *
+     * @see #getDeviations(Spectrum, Spectrum, int, int, Assignment)
+     */
+    public static double[] getDeviations(final MatchingSignals matchingSignals1,
+                                         final MatchingSignals matchingSignals2, final Assignment assignments) {
+        final double[] deviations = new double[matchingSignals1.getSignalCount()];
+        for (int i = 0; i
+                < matchingSignals1.getSignalCount(); i++) {
+            if (assignments.getAssignment(0, i).length
+                    == 0) {
+                deviations[i] = Double.NaN;
+            } else {
+                deviations[i] = Math.abs(matchingSignals1.getShifts()[i]
+                                                 - matchingSignals2.getShifts()[assignments.getAssignment(0, i)[0]]);
+            }
+        }
+
+        return deviations;
+    }
+
+    /**
+     * Returns deviations between two already matched columnar spectra, NaN for
+     * signals without match.
+     *
+     * @param columnarSpectrum1 first spectrum
+     * @param columnarSpectrum2 second spectrum
+     * @param dim1              dimension in first spectrum to take the shifts from
+     * @param dim2              dimension in second spectrum to take the shifts from
+     * @param assignments       assignments from previous matching
+     *
+     * @return
+     *
+     * @see #getDeviations(Spectrum, Spectrum, int, int, Assignment)
+     */
+    public static double[] getDeviations(final ColumnarSpectrum columnarSpectrum1,
+                                         final ColumnarSpectrum columnarSpectrum2, final int dim1, final int dim2,
+                                         final Assignment assignments) {
+        final double[] deviations = new double[columnarSpectrum1.getSignalCount()];
+        for (int i = 0; i
+                < columnarSpectrum1.getSignalCount(); i++) {
+            if (assignments.getAssignment(0, i).length
+                    == 0) {
+                deviations[i] = Double.NaN;
+            } else {
+                deviations[i] = Math.abs(columnarSpectrum1.getShift(i, dim1)
+                                                 - columnarSpectrum2.getShift(assignments.getAssignment(0, i)[0],
+                                                                              dim2));
+            }
+        }
+
+        return deviations;
+    }
+
     /**
      * Returns deviations between matched shifts of two spectra.
      * The matching procedure is already included here.
@@ -277,7 +410,7 @@ public class Similarity {
                                           final boolean checkEquivalencesCount,
                                           final boolean allowLowerEquivalencesCount) {
         return matchSpectra(spectrum1, spectrum2, dim1, dim2, shiftTolerance, checkMultiplicity, checkEquivalencesCount,
-                            allowLowerEquivalencesCount, null, null, null);
+                            allowLowerEquivalencesCount, null, null, null, false);
     }
 
 
@@ -350,40 +483,135 @@ public class Similarity {
                                           final boolean checkEquivalencesCount,
                                           final boolean allowLowerEquivalencesCount, final IAtomContainer structure,
                                           final Assignment assignment, final Detections detections) {
+        return matchSpectra(spectrum1, spectrum2, dim1, dim2, shiftTolerance, checkMultiplicity, checkEquivalencesCount,
+                            allowLowerEquivalencesCount, structure, assignment, detections, false);
+    }
+
+    /**
+     * Returns the closest shift matches between two spectra in selected dimensions
+     * as an Assignment object with one set dimension only. <br>
+     * By default, the signals are assigned greedily by smallest shift distance.
+     * The optimal assignment maximises the number of matched signals first and
+     * minimises the sum of shift distances second. <br>
+     *
+     * @param spectrum1                   first spectrum (possible subspectrum)
+     * @param spectrum2                   second spectrum
+     * @param dim1                        dimension in first spectrum to take the shifts from
+     * @param dim2                        dimension in second spectrum to take the shifts from
+     * @param shiftTolerance              Tolerance value [ppm] used during spectra shift
+     *                                    comparison
+     * @param checkMultiplicity           indicates whether to compare the multiplicity of matched signals
+     * @param checkEquivalencesCount      indicates whether to compare the equivalences counts of matched signals
+     * @param allowLowerEquivalencesCount indicates to allow a lower equivalences counts spectrum 2
+     * @param structure                   structure belonging to second spectrum
+     * @param assignment                  assignments between structure and second spectrum
+     * @param detections                  detections object which contains structural constraints
+     * @param optimalAssignment           whether to use the optimal instead of the greedy assignment
+     *
+     * @return Assignments with signal indices of spectrum and matched indices
+     * in query spectrum; null if one of the spectra does not
+     * contain the selected dimension
+     */
+    public static Assignment matchSpectra(final Spectrum spectrum1, final Spectrum spectrum2, final int dim1,
+                                          final int dim2, final double shiftTolerance, final boolean checkMultiplicity,
+                                          final boolean checkEquivalencesCount,
+                                          final boolean allowLowerEquivalencesCount, final IAtomContainer structure,
+                                          final Assignment assignment, final Detections detections,
+                                          final boolean optimalAssignment) {
         if (!Similarity.checkDimensions(spectrum1, spectrum2, dim1, dim2)) {
             return null;
         }
-        final List<Distance> distanceList = detections
-                                                    != null
-                                                    && structure
-                != null
-                                                    && assignment
-                != null
-                                            ? Utilities.buildDistanceList(spectrum1, spectrum2, dim1, dim2,
-                                                                          shiftTolerance, checkMultiplicity,
-                                                                          checkEquivalencesCount,
-                                                                          allowLowerEquivalencesCount, structure,
-                                                                          assignment, detections)
-                                            : Utilities.buildDistanceList(spectrum1, spectrum2, dim1, dim2,
-                                                                          shiftTolerance, checkMultiplicity,
-                                                                          checkEquivalencesCount,
-                                                                          allowLowerEquivalencesCount);
+        return matchSpectra(Utilities.buildMatchingSignals(spectrum1, dim1),
+                            Utilities.buildMatchingSignals(spectrum2, dim2), shiftTolerance, checkMultiplicity,
+                            checkEquivalencesCount, allowLowerEquivalencesCount, structure, assignment, detections,
+                            optimalAssignment);
+    }
+
+    /**
+     * Returns the closest shift matches between two columnar spectra in
+     * selected dimensions as an Assignment object with one set dimension only.
+     *
+     * @param columnarSpectrum1           first spectrum (possible subspectrum)
+     * @param columnarSpectrum2           second spectrum
+     * @param dim1                        dimension in first spectrum to take the shifts from
+     * @param dim2                        dimension in second spectrum to take the shifts from
+     * @param shiftTolerance              Tolerance value [ppm] used during spectra shift
+     *                                    comparison
+     * @param checkMultiplicity           indicates whether to compare the multiplicity of matched signals
+     * @param checkEquivalencesCount      indicates whether to compare the equivalences counts of matched signals
+     * @param allowLowerEquivalencesCount indicates to allow a lower equivalences counts spectrum 2
+     * @param optimalAssignment           whether to use the optimal instead of the greedy assignment
+     *
+     * @return Assignments with signal indices of spectrum and matched indices
+     * in query spectrum; null if one of the spectra does not
+     * contain the selected dimension
+     *
+     * @see #matchSpectra(Spectrum, Spectrum, int, int, double, boolean, boolean, boolean, IAtomContainer, Assignment, Detections, boolean)
+     */
+    public static Assignment matchSpectra(final ColumnarSpectrum columnarSpectrum1,
+                                          final ColumnarSpectrum columnarSpectrum2, final int dim1, final int dim2,
+                                          final double shiftTolerance, final boolean checkMultiplicity,
+                                          final boolean checkEquivalencesCount,
+                                          final boolean allowLowerEquivalencesCount,
+                                          final boolean optimalAssignment) {
+        if (!Similarity.checkDimensions(columnarSpectrum1, columnarSpectrum2, dim1, dim2)) {
+            return null;
+        }
+
+        return matchSpectra(Utilities.buildMatchingSignals(columnarSpectrum1, dim1),
+                            Utilities.buildMatchingSignals(columnarSpectrum2, dim2), shiftTolerance, checkMultiplicity,
+                            checkEquivalencesCount, allowLowerEquivalencesCount, null, null, null,
+                            optimalAssignment);
+    }
+
+    /**
+     * Returns the closest shift matches between the signals of two spectra as an
+     * Assignment object with one set dimension only.
+     *
+     * @param matchingSignals1            signals of first spectrum (possible subspectrum)
+     * @param matchingSignals2            signals of second spectrum
+     * @param shiftTolerance              Tolerance value [ppm] used during spectra shift
+     *                                    comparison
+     * @param checkMultiplicity           indicates whether to compare the multiplicity of matched signals
+     * @param checkEquivalencesCount      indicates whether to compare the equivalences counts of matched signals
+     * @param allowLowerEquivalencesCount indicates to allow a lower equivalences counts spectrum 2
+     * @param structure                   structure belonging to first spectrum
+     * @param assignment                  assignments between structure and first spectrum
+     * @param detections                  detections object which contains structural constraints
+     * @param optimalAssignment           whether to use the optimal instead of the greedy assignment
+     *
+     * @return
+     *
+     * @see #matchSpectra(Spectrum, Spectrum, int, int, double, boolean, boolean, boolean, IAtomContainer, Assignment, Detections, boolean)
+     */
+    public static Assignment matchSpectra(final MatchingSignals matchingSignals1,
+                                          final MatchingSignals matchingSignals2, final double shiftTolerance,
+                                          final boolean checkMultiplicity, final boolean checkEquivalencesCount,
+                                          final boolean allowLowerEquivalencesCount, final IAtomContainer structure,
+                                          final Assignment assignment, final Detections detections,
+                                          final boolean optimalAssignment) {
+        final Distances distances = Utilities.buildDistances(matchingSignals1, matchingSignals2, shiftTolerance,
+                                                             checkMultiplicity, checkEquivalencesCount,
+                                                             allowLowerEquivalencesCount, structure, assignment,
+                                                             detections);
+        final int[] matching = optimalAssignment
+                               ? Utilities.buildOptimalMatching(distances, matchingSignals1.getSignalCount(),
+                                                                matchingSignals2.getSignalCount())
+                               : Utilities.buildGreedyMatching(distances, matchingSignals1.getSignalCount(),
+                                                               matchingSignals2.getSignalCount());
 
         final Assignment matchAssignment = new Assignment();
-        matchAssignment.setNuclei(spectrum1.getNuclei());
-        matchAssignment.initAssignments(spectrum1.getSignalCount());
-        final Set<Integer> assignedSpectrum1 = new HashSet<>();
-        final Set<Integer> assignedSpectrum2 = new HashSet<>();
-        for (final Distance distance : distanceList) {
-            if (!assignedSpectrum1.contains(distance.getSignalIndexSpectrum1())
-                    && !assignedSpectrum2.contains(distance.getSignalIndexSpectrum2())) {
-                for (int equiv = 0; equiv
-                        < spectrum2.getEquivalencesCount(distance.getSignalIndexSpectrum2()); equiv++) {
-                    matchAssignment.addAssignmentEquivalence(0, distance.getSignalIndexSpectrum1(),
-                                                             distance.getSignalIndexSpectrum2());
-                }
-                assignedSpectrum1.add(distance.getSignalIndexSpectrum1());
-                assignedSpectrum2.add(distance.getSignalIndexSpectrum2());
+        matchAssignment.setNuclei(matchingSignals1.getNuclei());
+        matchAssignment.initAssignments(matchingSignals1.getSignalCount());
+        for (int signalIndexSpectrum1 = 0; signalIndexSpectrum1
+                < matching.length; signalIndexSpectrum1++) {
+            if (matching[signalIndexSpectrum1]
+                    == -1) {
+                continue;
+            }
+            for (int equiv = 0; equiv
+                    < matchingSignals2.getEquivalencesCounts()[matching[signalIndexSpectrum1]]; equiv++) {
+                matchAssignment.addAssignmentEquivalence(0, signalIndexSpectrum1, matching[signalIndexSpectrum1]);
             }
         }
 
@@ -0,0 +1,244 @@
+package casekit.nmr.similarity;
+
+import casekit.nmr.analysis.MultiplicitySectionsBuilder;
+import casekit.nmr.model.DataSet;
+import casekit.nmr.model.Spectrum;
+import casekit.nmr.similarity.model.FingerprintHit;
+import casekit.threading.MultiThreading;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * Spectral fingerprints of a data set collection, see
+ * {@link Similarity#getBitSetFingerprint(Spectrum, int, MultiplicitySectionsBuilder)},
+ * packed into one contiguous long array for library-scale Tanimoto searches.
+ * <br>
+ * Each fingerprint occupies the same number of 64-bit words and its
+ * cardinality is stored separately. Because the Tanimoto coefficient of two
+ * fingerprints with cardinalities a and b is at most min(a, b) / max(a, b),
+ * fingerprints which can not reach the current result threshold are skipped
+ * without comparing their bits. <br>
+ * The store is a snapshot of the data sets at creation time.
+ */
+public class SpectralFingerprintStore {
+
+    private final List<DataSet> dataSetList;
+    private final MultiplicitySectionsBuilder multiplicitySectionsBuilder;
+    private final int wordsPerFingerprint;
+    private final long[] words;
+    private final int[] cardinalities;
+
+    public SpectralFingerprintStore(final List<DataSet> dataSetList,
+                                    final MultiplicitySectionsBuilder multiplicitySectionsBuilder) {
+        this.dataSetList = new ArrayList<>(dataSetList);
+        this.multiplicitySectionsBuilder = multiplicitySectionsBuilder;
+        final long[][] fingerprints = new long[this.dataSetList.size()][];
+        int wordCount = (multiplicitySectionsBuilder.getSteps()
+                + Long.SIZE
+                - 1)
+                / Long.SIZE;
+        for (int k = 0; k
+                < fingerprints.length; k++) {
+            fingerprints[k] = Similarity.getBitSetFingerprint(
+                                                Utilities.buildMatchingSignals(this.dataSetList.get(k)
+                                                                                               .getSpectrum(), 0),
+                                                multiplicitySectionsBuilder)
+                                        .asBitSet()
+                                        .toLongArray();
+            // sections outside of the limits can exceed the number of steps
+            wordCount = Math.max(wordCount, fingerprints[k].length);
+        }
+        this.wordsPerFingerprint = wordCount;
+        this.words = new long[fingerprints.length
+                * this.wordsPerFingerprint];
+        this.cardinalities = new int[fingerprints.length];
+        for (int k = 0; k
+                < fingerprints.length; k++) {
+            System.arraycopy(fingerprints[k], 0, this.words, k
+                    * this.wordsPerFingerprint, fingerprints[k].length);
+            for (final long word : fingerprints[k]) {
+                this.cardinalities[k] += Long.bitCount(word);
+            }
+        }
+    }
+
+    public List<DataSet> getDataSetList() {
+        return this.dataSetList;
+    }
+
+    public int size() {
+        return this.dataSetList.size();
+    }
+
+    /**
+     * Returns the data sets with the highest Tanimoto coefficients to the
+     * fingerprint of a query spectrum, see
+     * {@link #search(long[], int, double, int)}.
+     *
+     * @param querySpectrum  query spectrum, first dimension is used
+     * @param maxResultCount maximum number of hits to return
+     * @param minTanimoto    minimum Tanimoto coefficient of a hit
+     * @param nThreads       number of threads to use
+     *
+     * @return
+     */
+    public List<FingerprintHit> search(final Spectrum querySpectrum, final int maxResultCount,
+                                       final double minTanimoto, final int nThreads) {
+        return this.search(Similarity.getBitSetFingerprint(querySpectrum, 0, this.multiplicitySectionsBuilder)
+                                     .asBitSet()
+                                     .toLongArray(), maxResultCount, minTanimoto, nThreads);
+    }
+
+    /**
+     * Returns the data sets with the highest Tanimoto coefficients to a query
+     * fingerprint, in descending order of the coefficient and ascending order
+     * of the index for equal coefficients. The store is split into one chunk
+     * per thread. <br>
+     * The Tanimoto coefficient of two empty fingerprints is 0.
+     *
+     * @param queryWords     query fingerprint as long words, see {@link java.util.BitSet#toLongArray()}
+     * @param maxResultCount maximum number of hits to return
+     * @param minTanimoto    minimum Tanimoto coefficient of a hit
+     * @param nThreads       number of threads to use
+     *
+     * @return
+     */
+    public List<FingerprintHit> search(final long[] queryWords, final int maxResultCount, final double minTanimoto,
+                                       final int nThreads) {
+        final List<FingerprintHit> fingerprintHits = new ArrayList<>();
+        if (maxResultCount
+                <= 0
+                || this.dataSetList.isEmpty()) {
+            return fingerprintHits;
+        }
+        int queryCardinality = 0;
+        for (final long word : queryWords) {
+            queryCardinality += Long.bitCount(word);
+        }
+        final int finalQueryCardinality = queryCardinality;
+        final int chunkCount = Math.max(1, Math.min(nThreads, this.dataSetList.size()));
+        final int chunkSize = (this.dataSetList.size()
+                + chunkCount
+                - 1)
+                / chunkCount;
+        final List<Future<PriorityQueue<FingerprintHit>>> futures = new ArrayList<>();
+        final ExecutorService executor = MultiThreading.initExecuter(chunkCount);
+        try {
+            for (int chunk = 0; chunk
+                    < chunkCount; chunk++) {
+                final int from = chunk
+                        * chunkSize;
+                final int to = Math.min(from
+                                                + chunkSize, this.dataSetList.size());
+                futures.add(executor.submit(
+                        () -> this.search(queryWords, finalQueryCardinality, from, to, maxResultCount,
+                                          minTanimoto)));
+            }
+            for (final Future<PriorityQueue<FingerprintHit>> future : futures) {
+                try {
+                    fingerprintHits.addAll(future.get());
+                } catch (final ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+        } catch (final InterruptedException e) {
+            e.printStackTrace();
+            for (final Future<PriorityQueue<FingerprintHit>> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread()
+                  .interrupt();
+        } finally {
+            MultiThreading.stopExecuter(executor, 5);
+        }
+        fingerprintHits.sort(SpectralFingerprintStore::compareFingerprintHits);
+
+        return fingerprintHits.stream()
+                              .limit(maxResultCount)
+                              .collect(Collectors.toList());
+    }
+
+    private PriorityQueue<FingerprintHit> search(final long[] queryWords, final int queryCardinality, final int from,
+                                                 final int to, final int maxResultCount,
+                                                 final double minTanimoto) {
+        // worst hit on top
+        final PriorityQueue<FingerprintHit> fingerprintHits = new PriorityQueue<>(
+                (fingerprintHit1, fingerprintHit2) -> compareFingerprintHits(fingerprintHit2, fingerprintHit1));
+        final int commonWordCount = Math.min(queryWords.length, this.wordsPerFingerprint);
+        double threshold = minTanimoto;
+        int commonBitCount, offset;
+        double tanimotoCoefficient;
+        for (int k = from; k
+                < to; k++) {
+            // upper bound by cardinalities only
+            if (Math.min(queryCardinality, this.cardinalities[k])
+                    < threshold
+                    * Math.max(queryCardinality, this.cardinalities[k])) {
+                continue;
+            }
+            commonBitCount = 0;
+            offset = k
+                    * this.wordsPerFingerprint;
+            for (int w = 0; w
+                    < commonWordCount; w++) {
+                commonBitCount += Long.bitCount(queryWords[w]
+                                                        & this.words[offset
+                        + w]);
+            }
+            tanimotoCoefficient = calculateTanimotoCoefficient(queryCardinality, this.cardinalities[k],
+                                                               commonBitCount);
+            if (tanimotoCoefficient
+                    < minTanimoto) {
+                continue;
+            }
+            if (fingerprintHits.size()
+                    < maxResultCount) {
+                fingerprintHits.add(new FingerprintHit(this.dataSetList.get(k), k, tanimotoCoefficient));
+            } else if (tanimotoCoefficient
+                    > fingerprintHits.peek()
+                                     .getTanimotoCoefficient()) {
+                // a later index with an equal coefficient is ranked lower, so only strictly better ones replace
+                fingerprintHits.poll();
+                fingerprintHits.add(new FingerprintHit(this.dataSetList.get(k), k, tanimotoCoefficient));
+            }
+            if (fingerprintHits.size()
+                    == maxResultCount) {
+                threshold = Math.max(minTanimoto, fingerprintHits.peek()
+                                                                 .getTanimotoCoefficient());
+            }
+        }
+
+        return fingerprintHits;
+    }
+
+    private static double calculateTanimotoCoefficient(final int cardinality1, final int cardinality2,
+                                                       final int commonBitCount) {
+        final int unionBitCount = cardinality1
+                + cardinality2
+                - commonBitCount;
+
+        return unionBitCount
+                       == 0
+               ? 0
+               : (double) commonBitCount
+                       / unionBitCount;
+    }
+
+    private static int compareFingerprintHits(final FingerprintHit fingerprintHit1,
+                                              final FingerprintHit fingerprintHit2) {
+        final int tanimotoCoefficientComparison = Double.compare(fingerprintHit2.getTanimotoCoefficient(),
+                                                                 fingerprintHit1.getTanimotoCoefficient());
+        if (tanimotoCoefficientComparison
+                != 0) {
+            return tanimotoCoefficientComparison;
+        }
+
+        return Integer.compare(fingerprintHit1.getIndex(), fingerprintHit2.getIndex());
+    }
+}
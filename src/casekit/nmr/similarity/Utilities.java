@@ -3,9 +3,14 @@ package casekit.nmr.similarity;
 import casekit.nmr.elucidation.Constants;
 import casekit.nmr.elucidation.model.Detections;
 import casekit.nmr.model.Assignment;
+import casekit.nmr.model.ColumnarSpectrum;
 import casekit.nmr.model.Signal;
+import casekit.nmr.model.SignalCompact;
 import casekit.nmr.model.Spectrum;
+import casekit.nmr.model.SpectrumCompact;
 import casekit.nmr.similarity.model.Distance;
+import casekit.nmr.similarity.model.Distances;
+import casekit.nmr.similarity.model.MatchingSignals;
 import org.openscience.cdk.interfaces.IAtom;
 import org.openscience.cdk.interfaces.IAtomContainer;
 
@@ -25,67 +30,711 @@ public class Utilities {
      * @param allowLowerEquivalencesCount whether to allow lower equivalences
      *
      * @return
+     *
+     * @see #buildDistances(Spectrum, Spectrum, int, int, double, boolean, boolean, boolean, IAtomContainer, Assignment, Detections)
      */
     public static List<Distance> buildDistanceList(final Spectrum spectrum1, final Spectrum spectrum2, final int dim1,
                                                    final int dim2, final double shiftTolerance,
                                                    final boolean checkMultiplicity,
                                                    final boolean checkEquivalencesCount,
                                                    final boolean allowLowerEquivalencesCount) {
-        final List<Distance> distanceList = new ArrayList<>();
-        Double distanceValue;
-        for (int i = 0; i
-                < spectrum1.getSignalCount(); i++) {
-            for (int j = 0; j
-                    < spectrum2.getSignalCount(); j++) {
-                distanceValue = getDistanceValue(spectrum1.getSignal(i), spectrum2.getSignal(j), dim1, dim2,
-                                                 checkMultiplicity, checkEquivalencesCount, allowLowerEquivalencesCount,
-                                                 shiftTolerance);
+        return toDistanceList(
+                buildDistances(spectrum1, spectrum2, dim1, dim2, shiftTolerance, checkMultiplicity,
+                               checkEquivalencesCount, allowLowerEquivalencesCount, null, null, null));
+    }
+
+    private static List<Distance> toDistanceList(final Distances distances) {
+        final List<Distance> distanceList = new ArrayList<>(distances.size());
+        for (int k = 0; k
+                < distances.size(); k++) {
+            distanceList.add(new Distance(distances.getSignalIndexSpectrum1(k), distances.getSignalIndexSpectrum2(k),
+                                          distances.getValue(k)));
+        }
+
+        return distanceList;
+    }
+
+    /**
+     * Builds the sorted distances between all signal pairs of two spectra which
+     * are within the shift tolerance and pass the signal (and optionally
+     * structural) constraints. <br>
+     * Both spectra are sorted by shift once and only the signals of the second
+     * spectrum within the tolerance window of a signal of the first spectrum are
+     * compared. Signals without a shift in the selected dimension are skipped.
+     * The distances are sorted ascending by value, with ties ordered by the
+     * signal indices in first and then second spectrum.
+     *
+     * @param spectrum1                   first spectrum (possible subspectrum)
+     * @param spectrum2                   second spectrum
+     * @param dim1                        dim in first spectrum
+     * @param dim2                        dim in second spectrum
+     * @param shiftTolerance              shift tolerance
+     * @param checkMultiplicity           whether to check multiplicity
+     * @param checkEquivalencesCount      whether to check equivalences
+     * @param allowLowerEquivalencesCount whether to allow lower equivalences
+     * @param structure                   structure belonging to first spectrum, can be null
+     * @param assignment                  assignments between structure and first spectrum, can be null
+     * @param detections                  detections to use as structural filter within given structure,
+     *                                    structural constraints are only checked if structure, assignment
+     *                                    and detections are given
+     *
+     * @return
+     */
+    public static Distances buildDistances(final Spectrum spectrum1, final Spectrum spectrum2, final int dim1,
+                                           final int dim2, final double shiftTolerance,
+                                           final boolean checkMultiplicity, final boolean checkEquivalencesCount,
+                                           final boolean allowLowerEquivalencesCount, final IAtomContainer structure,
+                                           final Assignment assignment, final Detections detections) {
+        return buildDistances(buildMatchingSignals(spectrum1, dim1), buildMatchingSignals(spectrum2, dim2),
+                              shiftTolerance, checkMultiplicity, checkEquivalencesCount, allowLowerEquivalencesCount,
+                              structure, assignment, detections);
+    }
+
+    /**
+     * @param matchingSignals1            signals of first spectrum (possible subspectrum)
+     * @param matchingSignals2            signals of second spectrum
+     * @param shiftTolerance              shift tolerance
+     * @param checkMultiplicity           whether to check multiplicity
+     * @param checkEquivalencesCount      whether to check equivalences
+     * @param allowLowerEquivalencesCount whether to allow lower equivalences
+     * @param structure                   structure belonging to first spectrum, can be null
+     * @param assignment                  assignments between structure and first spectrum, can be null
+     * @param detections                  detections to use as structural filter within given structure, can be null
+     *
+     * @return
+     *
+     * @see #buildDistances(Spectrum, Spectrum, int, int, double, boolean, boolean, boolean, IAtomContainer, Assignment, Detections)
+     */
+    public static Distances buildDistances(final MatchingSignals matchingSignals1,
+                                           final MatchingSignals matchingSignals2, final double shiftTolerance,
+                                           final boolean checkMultiplicity, final boolean checkEquivalencesCount,
+                                           final boolean allowLowerEquivalencesCount, final IAtomContainer structure,
+                                           final Assignment assignment, final Detections detections) {
+        final boolean checkStructuralConstraints = structure
+                != null
+                && assignment
+                != null
+                && detections
+                != null;
+        final double[] shifts1 = matchingSignals1.getShifts();
+        final double[] shifts2 = matchingSignals2.getShifts();
+        final int[] sortedIndices1 = matchingSignals1.getSortedSignalIndices();
+        final int[] sortedIndices2 = matchingSignals2.getSortedSignalIndices();
+        final Distances distances = new Distances(Math.max(shifts1.length, shifts2.length));
+        int i, j;
+        double distanceValue;
+        int windowStart = 0;
+        for (int k1 = 0; k1
+                < sortedIndices1.length; k1++) {
+            i = sortedIndices1[k1];
+            // shifts in first spectrum are ascending, so the window start never moves back
+            while (windowStart
+                    < sortedIndices2.length
+                    && shifts1[i]
+                    - shifts2[sortedIndices2[windowStart]]
+                    > shiftTolerance) {
+                windowStart++;
+            }
+            for (int k2 = windowStart; k2
+                    < sortedIndices2.length; k2++) {
+                j = sortedIndices2[k2];
+                if (shifts2[j]
+                        - shifts1[i]
+                        > shiftTolerance) {
+                    break;
+                }
+                if (!checkSignalProperties(matchingSignals1, i, matchingSignals2, j, checkMultiplicity,
+                                           checkEquivalencesCount, allowLowerEquivalencesCount)) {
+                    continue;
+                }
+                distanceValue = Math.abs(shifts1[i]
+                                                 - shifts2[j]);
                 if (distanceValue
-                        != null) {
-                    distanceList.add(new Distance(i, j, distanceValue));
+                        > shiftTolerance) {
+                    continue;
                 }
+                if (checkStructuralConstraints
+                        && !checkStructuralConstraints(i, j, structure, assignment, detections)) {
+                    continue;
+                }
+                distances.add(i, j, distanceValue);
             }
         }
-        distanceList.sort(Comparator.comparingDouble(Distance::getValue));
+        distances.sort();
 
-        return distanceList;
+        return distances;
+    }
+
+    public static MatchingSignals buildMatchingSignals(final Spectrum spectrum, final int dim) {
+        final double[] shifts = new double[spectrum.getSignalCount()];
+        final String[] multiplicities = new String[shifts.length];
+        final int[] equivalencesCounts = new int[shifts.length];
+        Signal signal;
+        Double shift;
+        for (int i = 0; i
+                < shifts.length; i++) {
+            signal = spectrum.getSignal(i);
+            shift = signal.getShift(dim);
+            shifts[i] = shift
+                                == null
+                        ? Double.NaN
+                        : shift;
+            multiplicities[i] = signal.getMultiplicity();
+            equivalencesCounts[i] = signal.getEquivalencesCount();
+        }
+
+        return new MatchingSignals(spectrum.getNuclei(), dim, shifts, multiplicities,
+                                   buildMultiplicityCodes(multiplicities), equivalencesCounts, sortByShift(shifts));
+    }
+
+    /**
+     * Builds the matching signals from a columnar spectrum. The shift,
+     * multiplicity and equivalences count arrays of the columnar spectrum are
+     * used as they are.
+     *
+     * @param columnarSpectrum spectrum
+     * @param dim              dim
+     *
+     * @return
+     */
+    public static MatchingSignals buildMatchingSignals(final ColumnarSpectrum columnarSpectrum, final int dim) {
+        final double[] shifts = columnarSpectrum.getShifts(dim);
+
+        return new MatchingSignals(columnarSpectrum.getNuclei(), dim, shifts, columnarSpectrum.getMultiplicities(),
+                                   columnarSpectrum.getMultiplicityCodes(), columnarSpectrum.getEquivalencesCounts(),
+                                   sortByShift(shifts));
+    }
+
+    /**
+     * Builds the matching signals directly from the compact signals, without
+     * creating a full {@link Spectrum} object.
+     *
+     * @param spectrumCompact spectrum
+     * @param dim             dim
+     *
+     * @return
+     */
+    public static MatchingSignals buildMatchingSignals(final SpectrumCompact spectrumCompact, final int dim) {
+        final SignalCompact[] signalCompacts = spectrumCompact.getSignals();
+        final double[] shifts = new double[signalCompacts.length];
+        final String[] multiplicities = new String[shifts.length];
+        final int[] equivalencesCounts = new int[shifts.length];
+        SignalCompact signalCompact;
+        Double shift;
+        for (int i = 0; i
+                < shifts.length; i++) {
+            signalCompact = signalCompacts[i];
+            shift = dim
+                            >= 0
+                            && dim
+                            < signalCompact.dimensions()
+                    ? signalCompact.getDoubles()[dim]
+                    : null;
+            shifts[i] = shift
+                                == null
+                        ? Double.NaN
+                        : shift;
+            multiplicities[i] = signalCompact.getStrings()[signalCompact.dimensions()];
+            equivalencesCounts[i] = signalCompact.getIntegers()[1];
+        }
+
+        return new MatchingSignals(spectrumCompact.getNuclei(), dim, shifts, multiplicities,
+                                   buildMultiplicityCodes(multiplicities), equivalencesCounts, sortByShift(shifts));
+    }
+
+    private static byte[] buildMultiplicityCodes(final String[] multiplicities) {
+        final byte[] multiplicityCodes = new byte[multiplicities.length];
+        for (int i = 0; i
+                < multiplicities.length; i++) {
+            multiplicityCodes[i] = ColumnarSpectrum.getMultiplicityCode(multiplicities[i]);
+        }
+
+        return multiplicityCodes;
+    }
+
+    /**
+     * Returns the indices of all non-NaN shifts, sorted ascending by shift.
+     *
+     * @param shifts shifts
+     *
+     * @return
+     */
+    private static int[] sortByShift(final double[] shifts) {
+        int count = 0;
+        for (final double shift : shifts) {
+            if (!Double.isNaN(shift)) {
+                count++;
+            }
+        }
+        int[] source = new int[count];
+        int position = 0;
+        for (int i = 0; i
+                < shifts.length; i++) {
+            if (!Double.isNaN(shifts[i])) {
+                source[position++] = i;
+            }
+        }
+        int[] target = new int[count];
+        int[] temp;
+        int left, right, leftEnd, rightEnd;
+        // stable bottom-up merge sort
+        for (int width = 1; width
+                < count; width *= 2) {
+            for (int start = 0; start
+                    < count; start += 2
+                    * width) {
+                left = start;
+                leftEnd = Math.min(start
+                                           + width, count);
+                right = leftEnd;
+                rightEnd = Math.min(start
+                                            + 2
+                                            * width, count);
+                position = start;
+                while (left
+                        < leftEnd
+                        && right
+                        < rightEnd) {
+                    target[position++] = shifts[source[right]]
+                                                 < shifts[source[left]]
+                                         ? source[right++]
+                                         : source[left++];
+                }
+                while (left
+                        < leftEnd) {
+                    target[position++] = source[left++];
+                }
+                while (right
+                        < rightEnd) {
+                    target[position++] = source[right++];
+                }
+            }
+            temp = source;
+            source = target;
+            target = temp;
+        }
+
+        return source;
+    }
+
+    /**
+     * Assigns signals greedily by smallest distance: a distance is used if both
+     * of its signals are not assigned yet.
+     *
+     * @param distances    sorted distances, see {@link #buildDistances(Spectrum, Spectrum, int, int, double, boolean, boolean, boolean, IAtomContainer, Assignment, Detections)}
+     * @param signalCount1 number of signals in first spectrum
+     * @param signalCount2 number of signals in second spectrum
+     *
+     * @return matched signal index in second spectrum for each signal in first
+     * spectrum, -1 if not matched
+     */
+    public static int[] buildGreedyMatching(final Distances distances, final int signalCount1,
+                                            final int signalCount2) {
+        final int[] matching = new int[signalCount1];
+        Arrays.fill(matching, -1);
+        final boolean[] assignedSpectrum2 = new boolean[signalCount2];
+        int signalIndexSpectrum1, signalIndexSpectrum2;
+        for (int k = 0; k
+                < distances.size(); k++) {
+            signalIndexSpectrum1 = distances.getSignalIndexSpectrum1(k);
+            signalIndexSpectrum2 = distances.getSignalIndexSpectrum2(k);
+            if (matching[signalIndexSpectrum1]
+                    == -1
+                    && !assignedSpectrum2[signalIndexSpectrum2]) {
+                matching[signalIndexSpectrum1] = signalIndexSpectrum2;
+                assignedSpectrum2[signalIndexSpectrum2] = true;
+            }
+        }
+
+        return matching;
+    }
+
+    /**
+     * Assigns signals optimally: the number of matched signals is maximised
+     * first and the sum of distances of all matched signals is minimised
+     * second (min-cost maximum bipartite matching). <br>
+     * Only the given distances are used as edges, and each connected component
+     * of this sparse graph is solved separately by successive shortest paths
+     * with node potentials.
+     *
+     * @param distances    sorted distances, see {@link #buildDistances(Spectrum, Spectrum, int, int, double, boolean, boolean, boolean, IAtomContainer, Assignment, Detections)}
+     * @param signalCount1 number of signals in first spectrum
+     * @param signalCount2 number of signals in second spectrum
+     *
+     * @return matched signal index in second spectrum for each signal in first
+     * spectrum, -1 if not matched
+     */
+    public static int[] buildOptimalMatching(final Distances distances, final int signalCount1,
+                                             final int signalCount2) {
+        final int[] matching = new int[signalCount1];
+        Arrays.fill(matching, -1);
+        // connected components via union-find, right nodes are offset by signalCount1
+        final int[] componentParents = new int[signalCount1
+                + signalCount2];
+        for (int v = 0; v
+                < componentParents.length; v++) {
+            componentParents[v] = v;
+        }
+        int root1, root2;
+        for (int k = 0; k
+                < distances.size(); k++) {
+            root1 = findComponentRoot(componentParents, distances.getSignalIndexSpectrum1(k));
+            root2 = findComponentRoot(componentParents, signalCount1
+                    + distances.getSignalIndexSpectrum2(k));
+            if (root1
+                    != root2) {
+                componentParents[root2] = root1;
+            }
+        }
+        // group the distance positions by component, keeping their sorted order
+        final int[] componentOffsets = new int[componentParents.length
+                + 1];
+        for (int k = 0; k
+                < distances.size(); k++) {
+            componentOffsets[findComponentRoot(componentParents, distances.getSignalIndexSpectrum1(k))
+                    + 1]++;
+        }
+        for (int v = 0; v
+                < componentParents.length; v++) {
+            componentOffsets[v
+                    + 1] += componentOffsets[v];
+        }
+        final int[] componentPositions = new int[distances.size()];
+        final int[] fillPositions = Arrays.copyOf(componentOffsets, componentParents.length);
+        for (int k = 0; k
+                < distances.size(); k++) {
+            componentPositions[fillPositions[findComponentRoot(componentParents,
+                                                               distances.getSignalIndexSpectrum1(k))]++] = k;
+        }
+        final int[] localIndices1 = new int[signalCount1];
+        final int[] localIndices2 = new int[signalCount2];
+        Arrays.fill(localIndices1, -1);
+        Arrays.fill(localIndices2, -1);
+        int position;
+        for (int v = 0; v
+                < componentParents.length; v++) {
+            if (componentOffsets[v
+                    + 1]
+                    - componentOffsets[v]
+                    == 1) {
+                position = componentPositions[componentOffsets[v]];
+                matching[distances.getSignalIndexSpectrum1(position)] = distances.getSignalIndexSpectrum2(position);
+            } else if (componentOffsets[v
+                    + 1]
+                    - componentOffsets[v]
+                    > 1) {
+                buildOptimalMatching(distances, componentPositions, componentOffsets[v], componentOffsets[v
+                        + 1], localIndices1, localIndices2, matching);
+            }
+        }
+
+        return matching;
+    }
+
+    private static int findComponentRoot(final int[] componentParents, final int v) {
+        int root = v;
+        while (componentParents[root]
+                != root) {
+            root = componentParents[root];
+        }
+        // path compression
+        int next, current = v;
+        while (componentParents[current]
+                != root) {
+            next = componentParents[current];
+            componentParents[current] = root;
+            current = next;
+        }
+
+        return root;
+    }
+
+    private static void buildOptimalMatching(final Distances distances, final int[] componentPositions,
+                                             final int from, final int to, final int[] localIndices1,
+                                             final int[] localIndices2, final int[] matching) {
+        // local nodes: 0 = source, 1..n1 = signals of spectrum 1, n1+1..n1+n2 = signals of spectrum 2, last = sink
+        final int edgeCount = to
+                - from;
+        final int[] signalIndices1 = new int[edgeCount];
+        final int[] signalIndices2 = new int[edgeCount];
+        int n1 = 0;
+        int n2 = 0;
+        int position;
+        for (int e = from; e
+                < to; e++) {
+            position = componentPositions[e];
+            if (localIndices1[distances.getSignalIndexSpectrum1(position)]
+                    == -1) {
+                localIndices1[distances.getSignalIndexSpectrum1(position)] = n1;
+                signalIndices1[n1++] = distances.getSignalIndexSpectrum1(position);
+            }
+            if (localIndices2[distances.getSignalIndexSpectrum2(position)]
+                    == -1) {
+                localIndices2[distances.getSignalIndexSpectrum2(position)] = n2;
+                signalIndices2[n2++] = distances.getSignalIndexSpectrum2(position);
+            }
+        }
+        // adjacency of the signals of spectrum 1, in ascending order of distances
+        final int[] edgeOffsets = new int[n1
+                + 1];
+        for (int e = from; e
+                < to; e++) {
+            edgeOffsets[localIndices1[distances.getSignalIndexSpectrum1(componentPositions[e])]
+                    + 1]++;
+        }
+        for (int l = 0; l
+                < n1; l++) {
+            edgeOffsets[l
+                    + 1] += edgeOffsets[l];
+        }
+        final int[] edgeTargets = new int[edgeCount];
+        final double[] edgeCosts = new double[edgeCount];
+        final int[] fillPositions = Arrays.copyOf(edgeOffsets, n1);
+        int l;
+        for (int e = from; e
+                < to; e++) {
+            position = componentPositions[e];
+            l = localIndices1[distances.getSignalIndexSpectrum1(position)];
+            edgeTargets[fillPositions[l]] = localIndices2[distances.getSignalIndexSpectrum2(position)];
+            edgeCosts[fillPositions[l]] = distances.getValue(position);
+            fillPositions[l]++;
+        }
+        for (int i = 0; i
+                < n1; i++) {
+            localIndices1[signalIndices1[i]] = -1;
+        }
+        for (int j = 0; j
+                < n2; j++) {
+            localIndices2[signalIndices2[j]] = -1;
+        }
+
+        final int source = 0;
+        final int sink = n1
+                + n2
+                + 1;
+        final int nodeCount = sink
+                + 1;
+        final double[] potentials = new double[nodeCount];
+        final double[] nodeDistances = new double[nodeCount];
+        final int[] predecessors = new int[nodeCount];
+        final double[] predecessorCosts = new double[nodeCount];
+        final boolean[] settled = new boolean[nodeCount];
+        final int[] matches1 = new int[n1];
+        final int[] matches2 = new int[n2];
+        final double[] matchCosts2 = new double[n2];
+        Arrays.fill(matches1, -1);
+        Arrays.fill(matches2, -1);
+        int u, r;
+        double reducedCost;
+        while (true) {
+            Arrays.fill(nodeDistances, Double.POSITIVE_INFINITY);
+            Arrays.fill(settled, false);
+            nodeDistances[source] = 0;
+            // Dijkstra on reduced costs of the residual graph
+            while (true) {
+                u = -1;
+                for (int v = 0; v
+                        < nodeCount; v++) {
+                    if (!settled[v]
+                            && nodeDistances[v]
+                            < Double.POSITIVE_INFINITY
+                            && (u
+                            == -1
+                            || nodeDistances[v]
+                            < nodeDistances[u])) {
+                        u = v;
+                    }
+                }
+                if (u
+                        == -1) {
+                    break;
+                }
+                settled[u] = true;
+                if (u
+                        == source) {
+                    for (int i = 0; i
+                            < n1; i++) {
+                        if (matches1[i]
+                                == -1) {
+                            reducedCost = potentials[source]
+                                    - potentials[i
+                                    + 1];
+                            relax(u, i
+                                    + 1, reducedCost, 0, nodeDistances, predecessors, predecessorCosts);
+                        }
+                    }
+                } else if (u
+                        <= n1) {
+                    for (int e = edgeOffsets[u
+                            - 1]; e
+                                 < edgeOffsets[u]; e++) {
+                        if (matches1[u
+                                - 1]
+                                != edgeTargets[e]) {
+                            reducedCost = edgeCosts[e]
+                                    + potentials[u]
+                                    - potentials[n1
+                                    + 1
+                                    + edgeTargets[e]];
+                            relax(u, n1
+                                    + 1
+                                    + edgeTargets[e], reducedCost, edgeCosts[e], nodeDistances, predecessors,
+                                  predecessorCosts);
+                        }
+                    }
+                } else if (u
+                        < sink) {
+                    r = u
+                            - n1
+                            - 1;
+                    if (matches2[r]
+                            == -1) {
+                        reducedCost = potentials[u]
+                                - potentials[sink];
+                        relax(u, sink, reducedCost, 0, nodeDistances, predecessors, predecessorCosts);
+                    } else {
+                        reducedCost = -matchCosts2[r]
+                                + potentials[u]
+                                - potentials[matches2[r]
+                                + 1];
+                        relax(u, matches2[r]
+                                + 1, reducedCost, 0, nodeDistances, predecessors, predecessorCosts);
+                    }
+                }
+            }
+            if (!settled[sink]) {
+                break;
+            }
+            for (int v = 0; v
+                    < nodeCount; v++) {
+                if (settled[v]) {
+                    potentials[v] += nodeDistances[v];
+                }
+            }
+            // augment along the shortest path, which alternates between both spectra
+            u = predecessors[sink];
+            while (true) {
+                r = u
+                        - n1
+                        - 1;
+                l = predecessors[u]
+                        - 1;
+                matches1[l] = r;
+                matches2[r] = l;
+                matchCosts2[r] = predecessorCosts[u];
+                if (predecessors[l
+                        + 1]
+                        == source) {
+                    break;
+                }
+                u = predecessors[l
+                        + 1];
+            }
+        }
+        for (int i = 0; i
+                < n1; i++) {
+            if (matches1[i]
+                    != -1) {
+                matching[signalIndices1[i]] = signalIndices2[matches1[i]];
+            }
+        }
+    }
+
+    private static void relax(final int u, final int v, final double reducedCost, final double cost,
+                              final double[] nodeDistances, final int[] predecessors,
+                              final double[] predecessorCosts) {
+        // reduced costs are non-negative, apart from rounding errors
+        final double distance = nodeDistances[u]
+                + Math.max(reducedCost, 0);
+        if (distance
+                < nodeDistances[v]) {
+            nodeDistances[v] = distance;
+            predecessors[v] = u;
+            predecessorCosts[v] = cost;
+        }
     }
 
     public static Double getDistanceValue(final Signal signal1, final Signal signal2, final int dim1, final int dim2,
                                           final boolean checkMultiplicity, final boolean checkEquivalencesCount,
                                           final boolean allowLowerEquivalencesCount, final double shiftTolerance) {
+        if (!checkSignalProperties(signal1, signal2, checkMultiplicity, checkEquivalencesCount,
+                                   allowLowerEquivalencesCount)) {
+            return null;
+        }
+        final double distanceValue = Math.abs(signal1.getShift(dim1)
+                                                      - signal2.getShift(dim2));
+
+        return distanceValue
+                       > shiftTolerance
+               ? null
+               : distanceValue;
+    }
+
+    private static boolean checkSignalProperties(final Signal signal1, final Signal signal2,
+                                                 final boolean checkMultiplicity,
+                                                 final boolean checkEquivalencesCount,
+                                                 final boolean allowLowerEquivalencesCount) {
+        return checkSignalProperties(signal1.getMultiplicity(), signal1.getEquivalencesCount(),
+                                     signal2.getMultiplicity(), signal2.getEquivalencesCount(), checkMultiplicity,
+                                     checkEquivalencesCount, allowLowerEquivalencesCount);
+    }
+
+    private static boolean checkSignalProperties(final String multiplicity1, final int equivalencesCount1,
+                                                 final String multiplicity2, final int equivalencesCount2,
+                                                 final boolean checkMultiplicity,
+                                                 final boolean checkEquivalencesCount,
+                                                 final boolean allowLowerEquivalencesCount) {
         boolean passed = true;
         // @TODO maybe consider further parameters to check ? e.g. intensity
         if (checkMultiplicity) {
-            passed = (signal1.getMultiplicity()
+            passed = (multiplicity1
                     == null
-                    && signal2.getMultiplicity()
+                    && multiplicity2
                     == null)
-                    || (signal1.getMultiplicity()
+                    || (multiplicity1
                     != null
-                    && signal1.getMultiplicity()
-                              .equalsIgnoreCase(signal2.getMultiplicity()));
+                    && multiplicity1.equalsIgnoreCase(multiplicity2));
         }
         if (passed
                 && checkEquivalencesCount) {
-            if (allowLowerEquivalencesCount) {
-                passed = signal1.getEquivalencesCount()
-                        <= signal2.getEquivalencesCount();
-            } else {
-                passed = signal1.getEquivalencesCount()
-                        == signal2.getEquivalencesCount();
-            }
+            passed = checkEquivalencesCounts(equivalencesCount1, equivalencesCount2, allowLowerEquivalencesCount);
         }
-        if (!passed) {
-            return null;
+
+        return passed;
+    }
+
+    /**
+     * Same check as {@link #checkSignalProperties(String, int, String, int, boolean, boolean, boolean)},
+     * but multiplicities are compared by their codes first.
+     */
+    private static boolean checkSignalProperties(final MatchingSignals matchingSignals1, final int signalIndex1,
+                                                 final MatchingSignals matchingSignals2, final int signalIndex2,
+                                                 final boolean checkMultiplicity,
+                                                 final boolean checkEquivalencesCount,
+                                                 final boolean allowLowerEquivalencesCount) {
+        if (checkMultiplicity
+                && !ColumnarSpectrum.equalsMultiplicityIgnoreCase(matchingSignals1.getMultiplicityCodes()[signalIndex1],
+                                                                  matchingSignals1.getMultiplicities()[signalIndex1],
+                                                                  matchingSignals2.getMultiplicityCodes()[signalIndex2],
+                                                                  matchingSignals2.getMultiplicities()[signalIndex2])) {
+            return false;
         }
-        final double distanceValue = Math.abs(signal1.getShift(dim1)
-                                                      - signal2.getShift(dim2));
 
-        return distanceValue
-                       > shiftTolerance
-               ? null
-               : distanceValue;
+        return !checkEquivalencesCount
+                || checkEquivalencesCounts(matchingSignals1.getEquivalencesCounts()[signalIndex1],
+                                           matchingSignals2.getEquivalencesCounts()[signalIndex2],
+                                           allowLowerEquivalencesCount);
+    }
+
+    private static boolean checkEquivalencesCounts(final int equivalencesCount1, final int equivalencesCount2,
+                                                   final boolean allowLowerEquivalencesCount) {
+        if (allowLowerEquivalencesCount) {
+            return equivalencesCount1
+                    <= equivalencesCount2;
+        }
+
+        return equivalencesCount1
+                == equivalencesCount2;
     }
 
     /**
@@ -110,72 +759,48 @@ public class Utilities {
                                                    final boolean allowLowerEquivalencesCount,
                                                    final IAtomContainer structure, final Assignment assignment,
                                                    final Detections detections) {
-        final List<Distance> distanceList = new ArrayList<>();
-        Double distanceValue;
-        List<Integer> hybridizations;
-        Set<String> forbiddenNeighbors, setNeighbors, setNeighborsTemp;
+        return toDistanceList(
+                buildDistances(spectrum1, spectrum2, dim1, dim2, shiftTolerance, checkMultiplicity,
+                               checkEquivalencesCount, allowLowerEquivalencesCount, structure, assignment,
+                               detections));
+    }
+
+    private static boolean checkStructuralConstraints(final int i, final int j, final IAtomContainer structure,
+                                                      final Assignment assignment, final Detections detections) {
+        final Set<String> forbiddenNeighbors = detections.getForbiddenNeighbors()
+                                                         .get(j)
+                                                         .keySet();
+        final Set<String> setNeighbors = detections.getSetNeighbors()
+                                                   .get(j)
+                                                   .keySet();
+        final List<Integer> hybridizations = detections.getDetectedHybridizations()
+                                                       .get(j);
+        Set<String> setNeighborsTemp;
         IAtom atom;
-        boolean skip;
-        for (int i = 0; i
-                < spectrum1.getSignalCount(); i++) {
-            for (int j = 0; j
-                    < spectrum2.getSignalCount(); j++) {
-                // check spectral constraints
-                distanceValue = getDistanceValue(spectrum1.getSignal(i), spectrum2.getSignal(j), dim1, dim2,
-                                                 checkMultiplicity, checkEquivalencesCount, allowLowerEquivalencesCount,
-                                                 shiftTolerance);
-                if (distanceValue
-                        == null) {
-                    continue;
+        for (int equiv = 0; equiv
+                < assignment.getAssignment(0, i).length; equiv++) {
+            atom = structure.getAtom(assignment.getAssignment(0, i, equiv));
+            // if certain hybridizations are given and the atom's hybridization is known
+            if (!hybridizations.isEmpty()
+                    && Constants.hybridizationConversionMap.containsKey(atom.getHybridization()
+                                                                            .name())) {
+                if (!hybridizations.contains(Constants.hybridizationConversionMap.get(atom.getHybridization()
+                                                                                          .name()))) {
+                    return false;
                 }
-                skip = false;
-                // check structural constraints
-                forbiddenNeighbors = detections.getForbiddenNeighbors()
-                                               .get(j)
-                                               .keySet();
-                setNeighbors = detections.getSetNeighbors()
-                                         .get(j)
-                                         .keySet();
-                hybridizations = detections.getDetectedHybridizations()
-                                           .get(j);
-                for (int equiv = 0; equiv
-                        < assignment.getAssignment(0, i).length; equiv++) {
-                    atom = structure.getAtom(assignment.getAssignment(0, i, equiv));
-                    // if certain hybridizations are given and the atom's hybridization is known
-                    if (!hybridizations.isEmpty()
-                            && Constants.hybridizationConversionMap.containsKey(atom.getHybridization()
-                                                                                    .name())) {
-                        skip = !hybridizations.contains(Constants.hybridizationConversionMap.get(atom.getHybridization()
-                                                                                                     .name()));
-                        if (skip) {
-                            break;
-                        }
-                    }
-                    setNeighborsTemp = new HashSet<>(setNeighbors);
-                    for (final IAtom neighborAtom : structure.getConnectedAtomsList(atom)) {
-                        skip = forbiddenNeighbors.contains(neighborAtom.getSymbol());
-                        if (skip) {
-                            break;
-                        }
-                        setNeighborsTemp.remove(neighborAtom.getSymbol());
-                    }
-                    if (!setNeighborsTemp.isEmpty()) {
-                        skip = true;
-                    }
-                    if (skip) {
-                        break;
-                    }
-                }
-                if (skip) {
-                    continue;
+            }
+            setNeighborsTemp = new HashSet<>(setNeighbors);
+            for (final IAtom neighborAtom : structure.getConnectedAtomsList(atom)) {
+                if (forbiddenNeighbors.contains(neighborAtom.getSymbol())) {
+                    return false;
                 }
-
-                // if passed all check then add to distance list
-                distanceList.add(new Distance(i, j, distanceValue));
+                setNeighborsTemp.remove(neighborAtom.getSymbol());
+            }
+            if (!setNeighborsTemp.isEmpty()) {
+                return false;
             }
         }
-        distanceList.sort(Comparator.comparingDouble(Distance::getValue));
 
-        return distanceList;
+        return true;
     }
 }
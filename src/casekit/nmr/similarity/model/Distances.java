@@ -0,0 +1,141 @@
+package casekit.nmr.similarity.model;
+
+import java.util.Arrays;
+
+/**
+ * List of distances between signals of two spectra, stored in primitive
+ * arrays instead of one {@link Distance} object per signal pair.
+ */
+public class Distances {
+
+    private int[] signalIndicesSpectrum1;
+    private int[] signalIndicesSpectrum2;
+    private double[] values;
+    private int size;
+
+    public Distances(final int initialCapacity) {
+        final int capacity = Math.max(initialCapacity, 1);
+        this.signalIndicesSpectrum1 = new int[capacity];
+        this.signalIndicesSpectrum2 = new int[capacity];
+        this.values = new double[capacity];
+        this.size = 0;
+    }
+
+    public void add(final int signalIndexSpectrum1, final int signalIndexSpectrum2, final double value) {
+        if (this.size
+                == this.values.length) {
+            final int newCapacity = 2
+                    * this.values.length;
+            this.signalIndicesSpectrum1 = Arrays.copyOf(this.signalIndicesSpectrum1, newCapacity);
+            this.signalIndicesSpectrum2 = Arrays.copyOf(this.signalIndicesSpectrum2, newCapacity);
+            this.values = Arrays.copyOf(this.values, newCapacity);
+        }
+        this.signalIndicesSpectrum1[this.size] = signalIndexSpectrum1;
+        this.signalIndicesSpectrum2[this.size] = signalIndexSpectrum2;
+        this.values[this.size] = value;
+        this.size++;
+    }
+
+    /**
+     * Sorts the distances ascending by value, then by signal index in first
+     * spectrum and then by signal index in second spectrum. This is the same
+     * order as a stable sort by value of a list built in signal index order.
+     */
+    public void sort() {
+        final int[] order = new int[this.size];
+        for (int k = 0; k
+                < this.size; k++) {
+            order[k] = k;
+        }
+        int[] source = order;
+        int[] target = new int[this.size];
+        int[] temp;
+        int left, right, leftEnd, rightEnd, t;
+        // bottom-up merge sort on positions
+        for (int width = 1; width
+                < this.size; width *= 2) {
+            for (int start = 0; start
+                    < this.size; start += 2
+                    * width) {
+                left = start;
+                leftEnd = Math.min(start
+                                           + width, this.size);
+                right = leftEnd;
+                rightEnd = Math.min(start
+                                            + 2
+                                            * width, this.size);
+                t = start;
+                while (left
+                        < leftEnd
+                        && right
+                        < rightEnd) {
+                    target[t++] = this.compare(source[right], source[left])
+                                          < 0
+                                  ? source[right++]
+                                  : source[left++];
+                }
+                while (left
+                        < leftEnd) {
+                    target[t++] = source[left++];
+                }
+                while (right
+                        < rightEnd) {
+                    target[t++] = source[right++];
+                }
+            }
+            temp = source;
+            source = target;
+            target = temp;
+        }
+        final int[] sortedSignalIndicesSpectrum1 = new int[this.values.length];
+        final int[] sortedSignalIndicesSpectrum2 = new int[this.values.length];
+        final double[] sortedValues = new double[this.values.length];
+        for (int k = 0; k
+                < this.size; k++) {
+            sortedSignalIndicesSpectrum1[k] = this.signalIndicesSpectrum1[source[k]];
+            sortedSignalIndicesSpectrum2[k] = this.signalIndicesSpectrum2[source[k]];
+            sortedValues[k] = this.values[source[k]];
+        }
+        this.signalIndicesSpectrum1 = sortedSignalIndicesSpectrum1;
+        this.signalIndicesSpectrum2 = sortedSignalIndicesSpectrum2;
+        this.values = sortedValues;
+    }
+
+    private int compare(final int position1, final int position2) {
+        final int valueComparison = Double.compare(this.values[position1], this.values[position2]);
+        if (valueComparison
+                != 0) {
+            return valueComparison;
+        }
+        if (this.signalIndicesSpectrum1[position1]
+                != this.signalIndicesSpectrum1[position2]) {
+            return Integer.compare(this.signalIndicesSpectrum1[position1], this.signalIndicesSpectrum1[position2]);
+        }
+
+        return Integer.compare(this.signalIndicesSpectrum2[position1], this.signalIndicesSpectrum2[position2]);
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public int getSignalIndexSpectrum1(final int position) {
+        return this.signalIndicesSpectrum1[position];
+    }
+
+    public int getSignalIndexSpectrum2(final int position) {
+        return this.signalIndicesSpectrum2[position];
+    }
+
+    public double getValue(final int position) {
+        return this.values[position];
+    }
+
+    @Override
+    public String toString() {
+        return "Distances{"
+                + "size="
+                + this.size
+                + '}';
+    }
+}
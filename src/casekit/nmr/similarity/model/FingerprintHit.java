@@ -0,0 +1,20 @@
+package casekit.nmr.similarity.model;
+
+import casekit.nmr.model.DataSet;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Result of a fingerprint similarity search: a data set with its index in the
+ * searched fingerprint store and its Tanimoto coefficient to the query.
+ */
+@AllArgsConstructor
+@Getter
+@ToString
+public class FingerprintHit {
+
+    private final DataSet dataSet;
+    private final int index;
+    private final double tanimotoCoefficient;
+}
@@ -0,0 +1,29 @@
+package casekit.nmr.similarity.model;
+
+import casekit.nmr.model.ColumnarSpectrum;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Signal properties of one spectrum dimension which are needed for spectra
+ * matching, stored in primitive arrays indexed by signal index. <br>
+ * Missing shifts are stored as NaN and are not contained in the signal
+ * indices sorted by shift. Multiplicities are also stored as codes, see
+ * {@link ColumnarSpectrum#getMultiplicityCode(String)}.
+ */
+@AllArgsConstructor
+@Getter
+public class MatchingSignals {
+
+    private final String[] nuclei;
+    private final int dim;
+    private final double[] shifts;
+    private final String[] multiplicities;
+    private final byte[] multiplicityCodes;
+    private final int[] equivalencesCounts;
+    private final int[] sortedSignalIndices;
+
+    public int getSignalCount() {
+        return this.shifts.length;
+    }
+}
@@ -332,4 +332,106 @@ public class Statistics {
 
         return getRMSD(data);
     }
+
+    /**
+     * Returns the mean of all non-NaN values, or NaN if there is none. <br>
+     * Same as {@link #getMean(Double[])} with NaN instead of null.
+     *
+     * @param data array of values
+     *
+     * @return
+     */
+    public static double getMean(final double[] data) {
+        if (data
+                == null) {
+            return Double.NaN;
+        }
+        double sum = 0;
+        int count = 0;
+        for (final double d : data) {
+            if (!Double.isNaN(d)) {
+                sum += d;
+                count++;
+            }
+        }
+
+        return count
+                       != 0
+               ? sum
+                       / count
+               : Double.NaN;
+    }
+
+    /**
+     * Same as {@link #getRMSD(Double[])} with NaN instead of null.
+     *
+     * @param data array of values
+     *
+     * @return
+     */
+    public static double getRMSD(final double[] data) {
+        if (data
+                == null
+                || data.length
+                == 0) {
+            return Double.NaN;
+        }
+        if (data.length
+                == 1) {
+            return data[0];
+        }
+        double qSum = 0;
+        int count = 0;
+        for (final double d : data) {
+            if (!Double.isNaN(d)) {
+                qSum += d
+                        * d;
+                count++;
+            }
+        }
+
+        return count
+                       != 0
+               ? Math.sqrt(qSum
+                                   / count)
+               : Double.NaN;
+    }
+
+    /**
+     * Same as {@link #calculateAverageDeviation(Double[])} with NaN instead of
+     * null for missing deviations and the result.
+     *
+     * @param deviations array of deviations
+     *
+     * @return
+     */
+    public static double calculateAverageDeviation(final double[] deviations) {
+        // every signal has to have a match
+        for (final double deviation : deviations) {
+            if (Double.isNaN(deviation)) {
+                return Double.NaN;
+            }
+        }
+
+        return getMean(deviations);
+    }
+
+    /**
+     * Same as {@link #calculateRMSD(Double[])} with NaN instead of null for
+     * missing deviations and the result.
+     *
+     * @param data array of deviations
+     *
+     * @return
+     */
+    public static double calculateRMSD(final double[] data) {
+        // every signal has to have a match
+        for (final double value : data) {
+            if (Double.isNaN(value)) {
+                return Double.NaN;
+            }
+        }
+
+        return getRMSD(data);
+    }
 }
@@ -33,7 +33,9 @@ import java.util.stream.Collectors;
 
 public class Utils {
 
-    private static final StructureDiagramGenerator structureDiagramGenerator = new StructureDiagramGenerator();
+    // the generator keeps the molecule to lay out as state, so each thread needs its own instance
+    private static final ThreadLocal<StructureDiagramGenerator> structureDiagramGenerator = ThreadLocal.withInitial(
+            StructureDiagramGenerator::new);
 
     /**
      * Specified for carbons only -> not generic!!!
@@ -454,6 +456,66 @@ public class Utils {
         return getExplicitHydrogenIndices(ac).size();
     }
 
+    /**
+     * Returns for each atom index i in a structure the number of explicit
+     * hydrogens with a lower index than i. The last array entry at index atom
+     * count holds the total number of explicit hydrogens. <br>
+     * Subtracting that number from an atom index gives the index of the same
+     * atom after the removal of all explicit hydrogens, see
+     * {@link #convertToAtomIndicesWithoutExplicitHydrogens(Assignment, int[])}.
+     *
+     * @param ac structure
+     *
+     * @return array of length atom count + 1
+     */
+    public static int[] getExplicitHydrogenCountsBefore(final IAtomContainer ac) {
+        final int[] explicitHydrogenCountsBefore = new int[ac.getAtomCount()
+                + 1];
+        for (int i = 0; i < ac.getAtomCount(); i++) {
+            explicitHydrogenCountsBefore[i
+                    + 1] = explicitHydrogenCountsBefore[i];
+            if (ac.getAtom(i)
+                    .getSymbol()
+                    .equals("H")) {
+                explicitHydrogenCountsBefore[i
+                        + 1]++;
+            }
+        }
+
+        return explicitHydrogenCountsBefore;
+    }
+
+    /**
+     * Converts all atom indices in an assignment into the atom indices after
+     * the removal of all explicit hydrogens from the structure. Indices below
+     * zero stay unchanged and indices beyond the structure are reduced by the
+     * total number of explicit hydrogens.
+     *
+     * @param assignment                   assignment to convert in place
+     * @param explicitHydrogenCountsBefore explicit hydrogen counts of the structure, see
+     *                                     {@link #getExplicitHydrogenCountsBefore(IAtomContainer)}
+     */
+    public static void convertToAtomIndicesWithoutExplicitHydrogens(final Assignment assignment,
+            final int[] explicitHydrogenCountsBefore) {
+        final int atomCount = explicitHydrogenCountsBefore.length
+                - 1;
+        if (explicitHydrogenCountsBefore[atomCount] == 0) {
+            return;
+        }
+        int[] atomIndices;
+        for (int dim = 0; dim < assignment.getNDim(); dim++) {
+            for (int i = 0; i < assignment.getSize(); i++) {
+                atomIndices = assignment.getAssignment(dim, i);
+                for (int k = 0; k < atomIndices.length; k++) {
+                    atomIndices[k] -= explicitHydrogenCountsBefore[Math.max(0,
+                            Math.min(atomIndices[k], atomCount))];
+                }
+                // notify the assignment about the changed indices
+                assignment.setAssignment(dim, i, atomIndices);
+            }
+        }
+    }
+
     public static void setAromaticity(final IAtomContainer ac) throws CDKException {
         AtomContainerManipulator.percieveAtomTypesAndConfigureAtoms(ac);
         final ElectronDonation model = Aromaticity.Model.CDK_2x;
@@ -740,6 +802,7 @@ public class Utils {
             k++;
         }
         // set 2D coordinates
+        final StructureDiagramGenerator structureDiagramGenerator = Utils.structureDiagramGenerator.get();
         structureDiagramGenerator.setMolecule(structure);
         structureDiagramGenerator.generateCoordinates(structure);
         /* !!! No explicit H in mol !!! */
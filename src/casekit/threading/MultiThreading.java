@@ -1,15 +1,46 @@
 package casekit.threading;
 
-import java.util.Collection;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class MultiThreading {
 
+    private static final int ELEMENTS_IN_PROCESS_PER_THREAD = 4;
+    private static final long IDLE_DAEMON_THREAD_SECONDS = 30;
+
     public static ExecutorService initExecuter(final int nThreads) {
         return Executors.newFixedThreadPool(nThreads);
     }
 
+    /**
+     * Returns an executor with daemon worker threads, which also end when
+     * they were idle for a while, e.g. for executors whose shut down depends
+     * on callers.
+     *
+     * @param nThreads number of threads
+     *
+     * @return
+     */
+    private static ExecutorService initDaemonExecuter(final int nThreads) {
+        final ThreadFactory defaultThreadFactory = Executors.defaultThreadFactory();
+        final ThreadFactory daemonThreadFactory = runnable -> {
+            final Thread thread = defaultThreadFactory.newThread(runnable);
+            thread.setDaemon(true);
+
+            return thread;
+        };
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(nThreads, nThreads, IDLE_DAEMON_THREAD_SECONDS,
+                                                                   TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                                                                   daemonThreadFactory);
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
     public static void stopExecuter(final ExecutorService executor, final long seconds) {
         executor.shutdown();
         try {
@@ -41,4 +72,132 @@ public class MultiThreading {
         // shut down the executor service
         stopExecuter(executor, seconds);
     }
+
+    /**
+     * Applies a function to the elements of a source in parallel and returns
+     * the results in source order, as lazy sequential stream. The source is
+     * read on the thread consuming the stream and only a bounded number of
+     * elements is in process at once, so sources of any size can be used. <br>
+     * The function should handle its own errors, a failed element ends the
+     * stream with an {@link IllegalStateException}. <br>
+     * The worker threads are stopped when the source is exhausted, when the
+     * stream fails or when it is closed. They are daemon threads which end
+     * when idle for a while, so an abandoned stream which was not closed
+     * neither keeps the JVM alive nor its threads forever. Closing the
+     * stream still stops them right away.
+     *
+     * @param source   source elements
+     * @param function function to apply
+     * @param nThreads number of worker threads
+     * @param <S>      source element type
+     * @param <T>      result type
+     *
+     * @return
+     */
+    public static <S, T> Stream<T> processOrdered(final Iterator<S> source, final Function<S, T> function,
+                                                  final int nThreads) {
+        final OrderedResultIterator<S, T> orderedResultIterator = new OrderedResultIterator<>(source, function,
+                                                                                              nThreads);
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(orderedResultIterator, Spliterator.ORDERED),
+                                    false)
+                            .onClose(orderedResultIterator::stop);
+    }
+
+    /**
+     * Applies a function to the elements of a source in parallel and passes
+     * the results to a consumer in source order, on the calling thread, see
+     * {@link #processOrdered(Iterator, Function, int)}.
+     *
+     * @param source   source elements
+     * @param function function to apply
+     * @param consumer consumer of the results
+     * @param nThreads number of worker threads
+     * @param <S>      source element type
+     * @param <T>      result type
+     */
+    public static <S, T> void processOrdered(final Iterator<S> source, final Function<S, T> function,
+                                             final Consumer<T> consumer, final int nThreads) {
+        try (final Stream<T> results = processOrdered(source, function, nThreads)) {
+            results.forEach(consumer);
+        }
+    }
+
+    private static class OrderedResultIterator<S, T>
+            implements Iterator<T> {
+
+        private final Iterator<S> source;
+        private final Function<S, T> function;
+        private final int maxElementsInProcess;
+        private final ExecutorService executor;
+        private final Deque<Future<T>> futures;
+
+        OrderedResultIterator(final Iterator<S> source, final Function<S, T> function, final int nThreads) {
+            this.source = source;
+            this.function = function;
+            this.maxElementsInProcess = ELEMENTS_IN_PROCESS_PER_THREAD
+                    * nThreads;
+            this.executor = initDaemonExecuter(nThreads);
+            this.futures = new ArrayDeque<>();
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                this.fill();
+            } catch (final RuntimeException e) {
+                // failing source
+                this.stop();
+                throw e;
+            }
+            if (this.futures.isEmpty()) {
+                // all results were returned
+                this.executor.shutdown();
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Future<T> future = this.futures.poll();
+            try {
+                return future.get();
+            } catch (final InterruptedException e) {
+                this.stop();
+                Thread.currentThread()
+                      .interrupt();
+                throw new IllegalStateException(e);
+            } catch (final ExecutionException e) {
+                this.stop();
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void fill() {
+            while (this.futures.size()
+                    < this.maxElementsInProcess
+                    && !this.executor.isShutdown()) {
+                if (!this.source.hasNext()) {
+                    // no new tasks, the workers end after the submitted ones
+                    this.executor.shutdown();
+                    break;
+                }
+                final S element = this.source.next();
+                this.futures.add(this.executor.submit(() -> this.function.apply(element)));
+            }
+        }
+
+        void stop() {
+            for (final Future<T> future : this.futures) {
+                future.cancel(true);
+            }
+            this.futures.clear();
+            stopExecuter(this.executor, 5);
+        }
+    }
 }